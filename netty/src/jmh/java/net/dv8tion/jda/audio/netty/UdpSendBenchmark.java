@@ -0,0 +1,107 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares sending a sub-tick worth of voice packets the default way, with a blocking
+ * {@link DatagramSocket#send(DatagramPacket)} per packet, with the {@link NettySendFactory NettySendFactory} way of
+ * writing pooled buffers on an event loop and flushing them at once.
+ * <br>The packets go to a local socket that is never read, so the kernel drops them once its buffer is full.
+ * The Netty benchmark includes handing the work to the event loop and waiting for it.
+ * <br>Run with {@code gradlew :netty:jmh -PjmhInclude=UdpSendBenchmark}, add {@code -prof gc} to the JMH arguments to
+ * compare the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UdpSendBenchmark
+{
+    //About the size of an encrypted 20ms Opus frame.
+    private static final int PACKET_SIZE = 190;
+
+    @Param({"1", "16", "64"})
+    public int packets;
+
+    private DatagramChannel sink;
+    private DatagramSocket socket;
+    private DatagramPacket packet;
+    private NettyEventLoops eventLoops;
+    private Channel channel;
+    private Runnable nettyTick;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        sink = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        InetSocketAddress address = (InetSocketAddress) sink.getLocalAddress();
+
+        socket = new DatagramSocket();
+        packet = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE, address);
+
+        eventLoops = new NettyEventLoops(1);
+        channel = eventLoops.bind(eventLoops.getEventLoop(0), new ChannelInboundHandlerAdapter());
+        nettyTick = () ->
+        {
+            for (int i = 0; i < packets; i++)
+            {
+                ByteBuf buffer = channel.alloc().directBuffer(PACKET_SIZE);
+                buffer.writeBytes(packet.getData(), packet.getOffset(), packet.getLength());
+                channel.write(new io.netty.channel.socket.DatagramPacket(buffer, address), channel.voidPromise());
+            }
+            channel.flush();
+        };
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        channel.close().awaitUninterruptibly();
+        eventLoops.shutdown();
+        socket.close();
+        sink.close();
+    }
+
+    @Benchmark
+    public void blockingSocket() throws IOException
+    {
+        for (int i = 0; i < packets; i++)
+            socket.send(packet);
+    }
+
+    @Benchmark
+    public void nettyBatched()
+    {
+        channel.eventLoop().submit(nettyTick).awaitUninterruptibly();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import net.dv8tion.jda.DefaultExecutorProvider;
+import net.dv8tion.jda.IExecutorProvider;
+import net.dv8tion.jda.IExecutorProvider.ThreadType;
+import net.dv8tion.jda.utils.SimpleLog;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Netty event loops shared by a {@link NettySendFactory NettySendFactory} and a
+ * {@link NettyUdpMultiplexer NettyUdpMultiplexer}.
+ * <br>Uses the native epoll transport where it is available, and NIO everywhere else. All channels allocate their
+ * buffers from the {@link PooledByteBufAllocator#DEFAULT pooled allocator}.
+ * <p>
+ * Usage:
+ * <pre>{@code
+ * NettyEventLoops eventLoops = new NettyEventLoops(4, runtime.getExecutorProvider());
+ * runtime.setUdpMultiplexer(new NettyUdpMultiplexer(eventLoops, runtime.getUdpDiscovery()));
+ * core.setAudioSendFactory(new NettySendFactory(eventLoops));
+ * }</pre>
+ * The event loops send and receive audio, so their threads are created as
+ * {@link ThreadType#AUDIO_EVENT_LOOP AUDIO_EVENT_LOOP} threads. They aren't shut down with the runtime, call {@link #shutdown()}
+ * once the factory and multiplexer using them are shut down.
+ */
+public class NettyEventLoops
+{
+    public static final SimpleLog LOG = SimpleLog.getLog("JDANetty");
+    //Enough for any packet Discord sends us, voice packets are far smaller.
+    public static final int RECEIVE_BUFFER_SIZE = 1920;
+
+    private final EventLoopGroup group;
+    private final EventLoop[] loops;
+    private final Class<? extends DatagramChannel> channelClass;
+    private final boolean epoll;
+
+    public NettyEventLoops()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads
+     *        The amount of event loops.
+     */
+    public NettyEventLoops(int threads)
+    {
+        this(threads, new DefaultExecutorProvider());
+    }
+
+    /**
+     * @param threads
+     *        The amount of event loops.
+     * @param executorProvider
+     *        Creates the threads of the event loops.
+     */
+    public NettyEventLoops(int threads, IExecutorProvider executorProvider)
+    {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Thread count must be positive");
+
+        AtomicInteger count = new AtomicInteger(0);
+        ThreadFactory threadFactory = task ->
+                executorProvider.newThread(ThreadType.AUDIO_EVENT_LOOP, "JDA Audio-Netty Event Loop " + count.incrementAndGet(), task);
+
+        epoll = Epoll.isAvailable();
+        if (epoll)
+        {
+            group = new EpollEventLoopGroup(threads, threadFactory);
+            channelClass = EpollDatagramChannel.class;
+        }
+        else
+        {
+            LOG.debug("Native epoll transport is unavailable, using NIO. Cause: " + Epoll.unavailabilityCause());
+            group = new NioEventLoopGroup(threads, threadFactory);
+            channelClass = NioDatagramChannel.class;
+        }
+
+        //The group hands out its loops in turn, so this gets every loop once.
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++)
+            loops[i] = group.next();
+    }
+
+    public int getThreadCount()
+    {
+        return loops.length;
+    }
+
+    public EventLoop getEventLoop(int index)
+    {
+        return loops[index];
+    }
+
+    /**
+     * @return True, if the native epoll transport is used.
+     */
+    public boolean isEpoll()
+    {
+        return epoll;
+    }
+
+    /**
+     * Opens a UDP channel bound to an ephemeral port, served by the provided event loop.
+     * <br>Must not be called from an event loop, as it waits for the channel to be bound.
+     *
+     * @param  loop
+     *         The event loop of the channel.
+     * @param  handler
+     *         The handler of the channel.
+     *
+     * @throws IOException
+     *         If the channel could not be bound.
+     *
+     * @return The bound channel.
+     */
+    public Channel bind(EventLoop loop, ChannelHandler handler) throws IOException
+    {
+        ChannelFuture future = new Bootstrap()
+                .group(loop)
+                .channel(channelClass)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(RECEIVE_BUFFER_SIZE))
+                .handler(handler)
+                .bind(0)
+                .awaitUninterruptibly();
+        if (!future.isSuccess())
+            throw new IOException("Could not bind UDP channel", future.cause());
+        return future.channel();
+    }
+
+    /**
+     * Shuts down the event loops, closing all of their channels.
+     */
+    public void shutdown()
+    {
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.ScheduledFuture;
+import net.dv8tion.jda.audio.AudioConnection;
+import net.dv8tion.jda.audio.factory.IAudioSendFactory;
+import net.dv8tion.jda.audio.factory.IAudioSendSystem;
+import net.dv8tion.jda.audio.factory.IPacketProvider;
+import net.dv8tion.jda.audio.factory.PhaseBalancer;
+import net.dv8tion.jda.audio.factory.QosClass;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static net.dv8tion.jda.audio.AudioConnection.OPUS_FRAME_TIME_AMOUNT;
+
+/**
+ * {@link IAudioSendFactory IAudioSendFactory} sending the audio of many connections from the event loops of a
+ * {@link NettyEventLoops NettyEventLoops}.
+ * <br>Works like the {@link net.dv8tion.jda.audio.factory.SharedSendFactory SharedSendFactory}: every event loop
+ * serves its connections on scheduled sub-ticks, staggered with a {@link PhaseBalancer PhaseBalancer}, in order of their
+ * {@link QosClass QosClass}, skipping {@link QosClass#BEST_EFFORT BEST_EFFORT} connections when running more than
+ * half a frame late.
+ * <p>
+ * Every event loop sends from its own channel. The packets of a sub-tick are copied into pooled direct buffers and
+ * written without waiting for each other, then flushed at once, which the epoll transport can send with a single
+ * {@code sendmmsg} call. Discord identifies connections by their SSRC, so sending from another local socket than the
+ * one used for the UDP discovery works, like native sending libraries do.
+ * <br>Writes don't report errors to the connections. A lost connection is still detected by the keep-alive of the
+ * connection, which uses its own socket.
+ */
+public class NettySendFactory implements IAudioSendFactory
+{
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(OPUS_FRAME_TIME_AMOUNT);
+    private static final long BEST_EFFORT_LATENESS = FRAME_NANOS / 2;
+    private static final int SUB_TICKS = 4;
+    private static final long SUB_TICK_NANOS = FRAME_NANOS / SUB_TICKS;
+
+    private final SendLoop[] loops;
+
+    /**
+     * @param  eventLoops
+     *         The event loops to send from, every loop gets a channel.
+     *
+     * @throws IOException
+     *         If a channel could not be bound.
+     */
+    public NettySendFactory(NettyEventLoops eventLoops) throws IOException
+    {
+        loops = new SendLoop[eventLoops.getThreadCount()];
+        try
+        {
+            for (int i = 0; i < loops.length; i++)
+            {
+                Channel channel = eventLoops.bind(eventLoops.getEventLoop(i), new ErrorHandler());
+                loops[i] = new SendLoop(channel);
+                loops[i].start(i * FRAME_NANOS / loops.length);
+            }
+        }
+        catch (IOException e)
+        {
+            shutdown();
+            throw e;
+        }
+    }
+
+    @Override
+    public IAudioSendSystem createSendSystem(IPacketProvider packetProvider)
+    {
+        return new NettySendSystem(packetProvider);
+    }
+
+    /**
+     * Closes the channels of this factory. Connections still using this factory stop sending.
+     * <br>The event loops keep running.
+     */
+    public void shutdown()
+    {
+        for (SendLoop loop : loops)
+        {
+            if (loop != null)
+                loop.stop();
+        }
+    }
+
+    private synchronized SendLoop register(NettySendSystem system)
+    {
+        SendLoop target = loops[0];
+        for (SendLoop loop : loops)
+        {
+            if (loop.systems.size() < target.systems.size())
+                target = loop;
+        }
+        system.phase = target.phases.join();
+        target.add(system);
+        return target;
+    }
+
+    //Synchronized with register, which inserts at a position depending on the current systems.
+    private synchronized void unregister(SendLoop loop, NettySendSystem system)
+    {
+        if (loop.systems.remove(system))
+            system.phase.leave();
+    }
+
+    private class NettySendSystem implements IAudioSendSystem
+    {
+        private final IPacketProvider packetProvider;
+        private final QosClass qosClass;
+        private volatile SendLoop loop;
+        private volatile PhaseBalancer.Phase phase;
+
+        private NettySendSystem(IPacketProvider packetProvider)
+        {
+            this.packetProvider = packetProvider;
+            this.qosClass = packetProvider.getQosClass();
+        }
+
+        @Override
+        public void start()
+        {
+            if (loop == null)
+                loop = register(this);
+        }
+
+        @Override
+        public void shutdown()
+        {
+            SendLoop current = loop;
+            loop = null;
+            if (current != null)
+                unregister(current, this);
+        }
+
+        //Returns whether a packet was written and has to be flushed.
+        private boolean send(Channel channel, boolean changeTalking)
+        {
+            if (!packetProvider.isUdpOpen())
+            {
+                shutdown();
+                return false;
+            }
+            try
+            {
+                java.net.DatagramPacket packet = packetProvider.getNextPacket(changeTalking);
+                //The packet was still taken so the connection stays on time, but the socket buffer is full.
+                if (packet == null || !channel.isWritable())
+                    return false;
+
+                ByteBuf buffer = channel.alloc().directBuffer(packet.getLength());
+                buffer.writeBytes(packet.getData(), packet.getOffset(), packet.getLength());
+                channel.write(new DatagramPacket(buffer, (InetSocketAddress) packet.getSocketAddress()), channel.voidPromise());
+                return true;
+            }
+            catch (Exception e)
+            {
+                AudioConnection.LOG.log(e);
+                return false;
+            }
+        }
+    }
+
+    private static class SendLoop implements Runnable
+    {
+        //Sorted by QosClass, higher classes first.
+        private final List<NettySendSystem> systems = new CopyOnWriteArrayList<>();
+        private final PhaseBalancer phases = new PhaseBalancer(SUB_TICKS);
+        private final Channel channel;
+        private ScheduledFuture<?> task;
+        //Only used on the event loop.
+        private long deadline;
+        private int subTick = 0;
+
+        private SendLoop(Channel channel)
+        {
+            this.channel = channel;
+        }
+
+        private void start(long offset)
+        {
+            deadline = System.nanoTime() + offset;
+            task = channel.eventLoop().scheduleAtFixedRate(this, offset, SUB_TICK_NANOS, TimeUnit.NANOSECONDS);
+        }
+
+        private void stop()
+        {
+            if (task != null)
+                task.cancel(false);
+            channel.close();
+        }
+
+        //Only called while holding the lock of the factory.
+        private void add(NettySendSystem system)
+        {
+            int index = 0;
+            while (index < systems.size() && systems.get(index).qosClass.compareTo(system.qosClass) <= 0)
+                index++;
+            systems.add(index, system);
+        }
+
+        @Override
+        public void run()
+        {
+            long now = System.nanoTime();
+            //Like DefaultSendSystem, connections may only change their speaking state once they fell a frame behind.
+            boolean changeTalking = now - deadline > FRAME_NANOS;
+            boolean written = false;
+            for (NettySendSystem system : systems)
+            {
+                if (system.phase.getSlot() != subTick)
+                    continue;
+                if (system.qosClass == QosClass.BEST_EFFORT && System.nanoTime() - deadline > BEST_EFFORT_LATENESS)
+                    break;  //Only best-effort connections are left, they wait for the next frame.
+                written |= system.send(channel, changeTalking);
+            }
+            if (written)
+                channel.flush();
+
+            subTick = (subTick + 1) % SUB_TICKS;
+            deadline += SUB_TICK_NANOS;
+            if (System.nanoTime() - deadline > 2 * FRAME_NANOS)
+                deadline = System.nanoTime();   //Too far behind to catch up, skip the missed frames.
+        }
+    }
+
+    private static class ErrorHandler extends ChannelInboundHandlerAdapter
+    {
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+        {
+            //Failed writes end up here, as they are written with the void promise.
+            AudioConnection.LOG.debug("Could not send audio packet: " + cause);
+        }
+    }
+}
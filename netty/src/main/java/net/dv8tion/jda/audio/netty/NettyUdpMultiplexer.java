@@ -0,0 +1,143 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package net.dv8tion.jda.audio.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+import io.netty.channel.SimpleChannelInboundHandler;
+import net.dv8tion.jda.audio.AbstractUdpMultiplexer;
+import net.dv8tion.jda.audio.UdpDiscovery;
+import net.dv8tion.jda.audio.factory.IUdpMultiplexer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link IUdpMultiplexer IUdpMultiplexer} sharing one Netty channel per event loop of a
+ * {@link NettyEventLoops NettyEventLoops}, instead of a socket and reading thread per connection.
+ * <br>Received packets are dispatched as described by {@link AbstractUdpMultiplexer AbstractUdpMultiplexer}. They are
+ * read into pooled buffers and handled on the event loop of their channel, which also runs the housekeeping of its
+ * connections.
+ * <p>
+ * The registrations have no {@link DatagramSocket DatagramSocket}, connections send through
+ * {@link Registration#send(DatagramPacket)} instead.
+ */
+public class NettyUdpMultiplexer extends AbstractUdpMultiplexer
+{
+    private final NettyEventLoops eventLoops;
+
+    /**
+     * @param eventLoops
+     *        The event loops, every loop gets a channel once the first connection needs it.
+     * @param discovery
+     *        The discovery of the runtime, providing the timeout of the first discovery packet.
+     */
+    public NettyUdpMultiplexer(NettyEventLoops eventLoops, UdpDiscovery discovery)
+    {
+        super(discovery);
+        this.eventLoops = eventLoops;
+        for (int i = 0; i < eventLoops.getThreadCount(); i++)
+            addSocket(new SharedChannel(eventLoops.getEventLoop(i)));
+    }
+
+    public int getChannelCount()
+    {
+        return eventLoops.getThreadCount();
+    }
+
+    private class SharedChannel extends SharedSocket
+    {
+        private final EventLoop eventLoop;
+        //Only used on the event loop, receivers may only use it until they return.
+        private final DatagramPacket packet = new DatagramPacket(new byte[NettyEventLoops.RECEIVE_BUFFER_SIZE], NettyEventLoops.RECEIVE_BUFFER_SIZE);
+        private volatile Channel channel;
+        private ScheduledFuture<?> tickTask;
+
+        private SharedChannel(EventLoop eventLoop)
+        {
+            this.eventLoop = eventLoop;
+        }
+
+        @Override
+        protected void open() throws IOException
+        {
+            if (channel != null && channel.isOpen())
+                return;
+
+            channel = eventLoops.bind(eventLoop, new Reader());
+            if (tickTask == null)
+                tickTask = eventLoop.scheduleWithFixedDelay(() -> tick(System.currentTimeMillis()), TICK_INTERVAL, TICK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        protected void close()
+        {
+            if (tickTask != null)
+                tickTask.cancel(false);
+            if (channel != null)
+                channel.close();
+        }
+
+        @Override
+        protected void send(DatagramPacket packet, InetSocketAddress server) throws IOException
+        {
+            Channel current = channel;
+            if (current == null || !current.isOpen())
+                throw new ClosedChannelException();
+
+            ByteBuf buffer = current.alloc().directBuffer(packet.getLength());
+            buffer.writeBytes(packet.getData(), packet.getOffset(), packet.getLength());
+            current.writeAndFlush(new io.netty.channel.socket.DatagramPacket(buffer, server), current.voidPromise());
+        }
+
+        @Override
+        protected ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit)
+        {
+            return eventLoop.schedule(task, delay, unit);
+        }
+
+        private class Reader extends SimpleChannelInboundHandler<io.netty.channel.socket.DatagramPacket>
+        {
+            @Override
+            protected void channelRead0(ChannelHandlerContext ctx, io.netty.channel.socket.DatagramPacket msg)
+            {
+                //The pooled buffer is released once we return, so the packet gets a copy.
+                ByteBuf content = msg.content();
+                int length = Math.min(content.readableBytes(), packet.getData().length);
+                content.getBytes(content.readerIndex(), packet.getData(), 0, length);
+                packet.setData(packet.getData(), 0, length);
+                packet.setSocketAddress(msg.sender());
+                dispatch(msg.sender(), packet);
+            }
+
+            @Override
+            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+            {
+                LOG.log(cause);
+            }
+        }
+    }
+}
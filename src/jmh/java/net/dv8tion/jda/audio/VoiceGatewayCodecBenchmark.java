@@ -0,0 +1,106 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link VoiceGatewayCodec} with building and parsing {@link JSONObject JSONObjects}.
+ * <br>Run with {@code gradlew jmh -PjmhInclude=VoiceGatewayCodecBenchmark}, add {@code -prof gc} to the JMH
+ * arguments to compare the allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VoiceGatewayCodecBenchmark
+{
+    private final String heartbeatAck = "{\"op\":3,\"d\":1500000000123}";
+    private boolean speaking;
+
+    @Benchmark
+    public String speakingJson()
+    {
+        speaking = !speaking;
+        return new JSONObject()
+                .put("op", 5)
+                .put("d", new JSONObject()
+                        .put("speaking", speaking)
+                        .put("delay", 0)
+                ).toString();
+    }
+
+    @Benchmark
+    public String speakingCodec()
+    {
+        speaking = !speaking;
+        return VoiceGatewayCodec.speaking(speaking);
+    }
+
+    @Benchmark
+    public String heartbeatJson()
+    {
+        return new JSONObject()
+                .put("op", 3)
+                .put("d", System.currentTimeMillis())
+                .toString();
+    }
+
+    @Benchmark
+    public String heartbeatCodec()
+    {
+        return VoiceGatewayCodec.heartbeat(System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public String voiceStateUpdateJson()
+    {
+        return new JSONObject()
+                .put("op", 4)
+                .put("d", new JSONObject()
+                        .put("guild_id", "125227483518861312")
+                        .put("channel_id", "125227483518861313")
+                        .put("self_mute", false)
+                        .put("self_deaf", true)
+                ).toString();
+    }
+
+    @Benchmark
+    public String voiceStateUpdateCodec()
+    {
+        return VoiceGatewayCodec.voiceStateUpdate("125227483518861312", "125227483518861313", false, true);
+    }
+
+    @Benchmark
+    public long heartbeatAckJson()
+    {
+        JSONObject message = new JSONObject(heartbeatAck);
+        return message.getInt("op") == 3 ? message.getLong("d") : -1;
+    }
+
+    @Benchmark
+    public long heartbeatAckCodec()
+    {
+        return VoiceGatewayCodec.scanOp(heartbeatAck) == 3 ? VoiceGatewayCodec.scanLongPayload(heartbeatAck) : -1;
+    }
+}
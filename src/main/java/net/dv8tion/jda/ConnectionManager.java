@@ -16,46 +16,145 @@
 
 package net.dv8tion.jda;
 
-import net.dv8tion.jda.audio.hooks.ConnectionListener;
+import net.dv8tion.jda.audio.VoiceGatewayCodec;
 import net.dv8tion.jda.audio.hooks.ConnectionStatus;
 import net.dv8tion.jda.manager.AudioManager;
 import net.dv8tion.jda.utils.SimpleLog;
-import org.apache.commons.lang3.tuple.MutablePair;
-import org.json.JSONObject;
+import net.dv8tion.jda.utils.TokenBucket;
 
+import java.util.ArrayDeque;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Sends every voice state update (op 4) of this Core to the main gateway.
+ * <p>
+ * Updates are sent through a token bucket, so they never use more than
+ * {@link #getMaxWebsocketMessagesPerMinute()} of the gateway's budget in any minute.
+ * Each guild has at most one pending update. A newer update for the same guild replaces the pending one,
+ * so a move followed by a mute and a deafen is sent as a single frame. Disconnects are sent before connects,
+ * and connects are sent in the order the guilds were queued, so every guild gets its turn.
+ * <br>Connects are repeated every {@link #CONNECT_RETRY_DELAY} milliseconds until Discord provides the voice server.
+ * <p>
+ * Updates are sent from the scheduler of the {@link CoreRuntime}, so no thread is kept per Core.
+ */
 public class ConnectionManager
 {
     public static final SimpleLog LOG = SimpleLog.getLog("ConnectionManager");
+    public static final long CONNECT_RETRY_DELAY = 2000;
+    public static final long CLIENT_DISCONNECTED_RETRY_DELAY = 1000;
 
-    //GuildId, <TimeOfNextAttempt, AudioConnection (ChannelId)>
-    private final HashMap<String, MutablePair<Long, String>> queuedAudioConnections = new HashMap<>();
+    //GuildId -> the pending update of that guild. Guarded by itself.
+    private final HashMap<String, VoiceStateRequest> queuedAudioConnections = new HashMap<>();
+    //Requests that can be sent as soon as there is a token. Entries that were superseded are skipped when polled.
+    private final ArrayDeque<VoiceStateRequest> disconnects = new ArrayDeque<>();
+    private final ArrayDeque<VoiceStateRequest> connects = new ArrayDeque<>();
+    //Connects waiting to be retried, ordered by the time they are due.
+    private final PriorityQueue<ScheduledRequest> schedule = new PriorityQueue<>();
     private final Core core;
+    private final HandshakeAdmission handshakeAdmission = new HandshakeAdmission();
 
-    private volatile Thread ratelimitThread = null;
-    protected volatile long ratelimitResetTime;
-    protected volatile int messagesSent;
-    protected volatile boolean printedRateLimitMessage = false;
+    private final ScheduledExecutorService scheduler;
+    //The pending run of drain(), guarded by queuedAudioConnections.
+    private ScheduledFuture<?> drainTask;
+    private long drainTime;
+    private long nextDrainDelay;
+    private boolean draining;
+    private volatile TokenBucket ratelimit;
+    private volatile boolean printedRateLimitMessage = false;
 
     private int maxWebsocketMessagesPerMinute = 115;
 
     public ConnectionManager(Core core)
     {
         this.core = core;
-        setupSendingThread();
+        this.scheduler = core.getRuntime().getScheduler();
+        this.ratelimit = createRateLimit(maxWebsocketMessagesPerMinute);
     }
 
     public void queueAudioConnect(String guildId, String channelId)
     {
-        queuedAudioConnections.put(guildId, new MutablePair<>(System.currentTimeMillis(), channelId));
+        queueAudioConnect(guildId, channelId, 0);
+    }
+
+    /**
+     * Queues a connect that isn't sent before the provided delay passed, used to back off reconnects.
+     * <br>Any other update queued for the guild in the meantime is sent right away and replaces the delayed connect.
+     */
+    public void queueAudioConnect(String guildId, String channelId, long delay)
+    {
+        synchronized (queuedAudioConnections)
+        {
+            VoiceStateRequest request = getRequest(guildId);
+            request.channelId = channelId;
+            request.notBefore = delay > 0 ? System.currentTimeMillis() + delay : 0;
+            if (request.notBefore == 0)
+                makeReady(request);
+            else if (!request.disconnect)   //A pending disconnect schedules the connect once it is sent.
+                scheduleRetry(request, delay);
+        }
+    }
+
+    public void queueAudioDisconnect(String guildId)
+    {
+        synchronized (queuedAudioConnections)
+        {
+            //Connects and moves that haven't been sent yet are superseded by the disconnect.
+            VoiceStateRequest request = getRequest(guildId);
+            request.channelId = null;
+            request.disconnect = true;
+            makeReady(request);
+        }
+    }
+
+    public boolean removeAudioConnectRequest(String guildId)
+    {
+        synchronized (queuedAudioConnections)
+        {
+            VoiceStateRequest request = queuedAudioConnections.get(guildId);
+            if (request == null || request.channelId == null)
+                return false;
+
+            request.channelId = null;
+            request.inFlight = false;
+            if (!request.disconnect)
+                queuedAudioConnections.remove(guildId);
+            return true;
+        }
+    }
+
+    public boolean hasQueuedRequest(String guildId)
+    {
+        synchronized (queuedAudioConnections)
+        {
+            return queuedAudioConnections.containsKey(guildId);
+        }
+    }
+
+    public boolean isAudioConnectQueued(String guildId)
+    {
+        synchronized (queuedAudioConnections)
+        {
+            VoiceStateRequest request = queuedAudioConnections.get(guildId);
+            return request != null && request.channelId != null;
+        }
+    }
+
+    public int getQueuedAudioConnectCount()
+    {
+        synchronized (queuedAudioConnections)
+        {
+            return queuedAudioConnections.size();
+        }
     }
 
-    public HashMap<String, MutablePair<Long, String>> getQueuedAudioConnectionMap()
+    public HandshakeAdmission getHandshakeAdmission()
     {
-        return queuedAudioConnections;
+        return handshakeAdmission;
     }
 
     public int getMaxWebsocketMessagesPerMinute()
@@ -67,161 +166,353 @@ public class ConnectionManager
     {
         if (max > 120 || max <= 0)
             throw new IllegalArgumentException("Provided max must be between 1 and 120");
+
+        synchronized (queuedAudioConnections)
+        {
+            this.maxWebsocketMessagesPerMinute = max;
+            this.ratelimit = createRateLimit(max);
+            scheduleDrain(0);
+        }
     }
 
-    private Map.Entry<String, MutablePair<Long, String>> getNextAudioConnectRequest()
+    private static TokenBucket createRateLimit(int maxPerMinute)
     {
-        synchronized (queuedAudioConnections)
+        //A bucket allows its capacity plus a minute of refill in any minute, so split the budget between the two.
+        int burst = Math.max(1, maxPerMinute / 2);
+        return new TokenBucket(burst, Math.max(1, maxPerMinute - burst), 60000);
+    }
+
+    //Must hold the queuedAudioConnections lock.
+    private VoiceStateRequest getRequest(String guildId)
+    {
+        VoiceStateRequest request = queuedAudioConnections.get(guildId);
+        if (request == null)
         {
-            long now = System.currentTimeMillis();
-            Iterator<Map.Entry<String, MutablePair<Long, String>>> it =  queuedAudioConnections.entrySet().iterator();
-            while (it.hasNext())
+            request = new VoiceStateRequest(guildId);
+            queuedAudioConnections.put(guildId, request);
+        }
+        return request;
+    }
+
+    //Must hold the queuedAudioConnections lock.
+    private void makeReady(VoiceStateRequest request)
+    {
+        request.inFlight = false;
+        request.nextAttemptTime = -1;
+
+        ArrayDeque<VoiceStateRequest> queue = request.disconnect ? disconnects : connects;
+        if (request.ready != queue)
+        {
+            //If it is still in the connect queue, that entry is skipped once it is polled.
+            request.ready = queue;
+            queue.add(request);
+            scheduleDrain(0);
+        }
+    }
+
+    //Must hold the queuedAudioConnections lock.
+    private void scheduleRetry(VoiceStateRequest request, long delay)
+    {
+        request.inFlight = false;
+        request.ready = null;
+        request.nextAttemptTime = System.currentTimeMillis() + delay;
+        schedule.add(new ScheduledRequest(request, request.nextAttemptTime));
+        scheduleDrain(delay);
+    }
+
+    //Must hold the queuedAudioConnections lock.
+    private VoiceStateRequest pollReady(ArrayDeque<VoiceStateRequest> queue, boolean remove)
+    {
+        VoiceStateRequest request;
+        while ((request = queue.peek()) != null)
+        {
+            if (request.ready == queue && queuedAudioConnections.get(request.guildId) == request)
             {
-                Map.Entry<String, MutablePair<Long, String>> entry = it.next();
-                MutablePair<Long, String> audioRequest = entry.getValue();
-                if (audioRequest.getLeft() < now)
+                if (remove)
                 {
-                    String channelId = audioRequest.getRight();
-                    String guildId = entry.getKey();
-                    ConnectionListener listener = core.getAudioManager(guildId).getConnectionListener();
-
-                    if (!core.getClient().inGuild(guildId))
-                    {
-                        it.remove();
-                        if (listener != null)
-                            listener.onStatusChange(ConnectionStatus.DISCONNECTED_REMOVED_FROM_GUILD);
-                        continue;
-                    }
-
-                    if (!core.getClient().voiceChannelExists(channelId))
-                    {
-                        it.remove();
-                        if (listener != null)
-                            listener.onStatusChange(ConnectionStatus.DISCONNECTED_CHANNEL_DELETED);
-                        continue;
-                    }
-
-                    if (!core.getClient().hasPermissionInChannel(channelId, 1 << 20)) //VOICE_CONNECT
-                    {
-                        it.remove();
-                        if (listener != null)
-                            listener.onStatusChange(ConnectionStatus.DISCONNECTED_LOST_PERMISSION);
-                        continue;
-                    }
-
-                    return entry;
+                    queue.poll();
+                    request.ready = null;
                 }
+                return request;
             }
+            queue.poll();
         }
-
         return null;
     }
 
-    private boolean send(String message)
+    //Must hold the queuedAudioConnections lock.
+    private long moveDueRequests()
     {
-        if (!core.getClient().isConnected())
-            return false;
-
         long now = System.currentTimeMillis();
+        ScheduledRequest next;
+        while ((next = schedule.peek()) != null)
+        {
+            VoiceStateRequest request = next.request;
+            if (queuedAudioConnections.get(request.guildId) != request || request.nextAttemptTime != next.time)
+            {
+                schedule.poll();
+                continue;
+            }
+            if (next.time > now)
+                return next.time - now;
+
+            schedule.poll();
+            makeReady(request);
+        }
+        return 0;
+    }
+
+    /**
+     * Takes the next update that can be sent right away and a token from the rate limit for it. Never blocks, if
+     * nothing can be sent yet, {@code nextDrainDelay} is set to when the drain should run again on the runtime's scheduler.
+     *
+     * @return The update to send, with its state at the time it was taken, or null if nothing can be sent yet.
+     */
+    //Must hold the queuedAudioConnections lock.
+    private VoiceStateRequest pollNextRequest()
+    {
+        long delay = moveDueRequests();
+        nextDrainDelay = delay == 0 ? -1 : delay;
+        if (pollReady(disconnects, false) == null && pollReady(connects, false) == null)
+            return null;
 
-        if (this.ratelimitResetTime <= now)
+        TokenBucket bucket = ratelimit;
+        if (!bucket.tryAcquire())
         {
-            this.messagesSent = 0;
-            this.ratelimitResetTime = now + 60000;//60 seconds
-            this.printedRateLimitMessage = false;
+            if (!printedRateLimitMessage)
+            {
+                LOG.debug("Voice state updates are waiting on the WebSocket RateLimit.");
+                printedRateLimitMessage = true;
+            }
+            long tokenDelay = Math.max(1, bucket.getDelay());
+            nextDrainDelay = nextDrainDelay < 0 ? tokenDelay : Math.min(nextDrainDelay, tokenDelay);
+            return null;
         }
 
-        //Allows 115 messages to be sent before limiting. (unless changed)
-        if (this.messagesSent <= maxWebsocketMessagesPerMinute) //technically we could go to 120, but we aren't going to chance it
+        printedRateLimitMessage = false;
+        VoiceStateRequest request = pollReady(disconnects, true);
+        if (request == null)
+            request = pollReady(connects, true);
+
+        VoiceStateRequest sent = request.copy();
+        if (request.disconnect)
         {
-            LOG.trace("<- " + message);
-            core.getClient().sendWS(message);
-            this.messagesSent++;
-            return true;
+            //The disconnect goes first, a connect queued after it is sent on its next turn.
+            request.disconnect = false;
+            long now = System.currentTimeMillis();
+            if (request.channelId != null && request.notBefore > now)
+                scheduleRetry(request, request.notBefore - now);
+            else if (request.channelId != null)
+                makeReady(request);
+            else
+                queuedAudioConnections.remove(request.guildId);
         }
         else
         {
-            if (!printedRateLimitMessage)
+            request.inFlight = true;
+        }
+        return sent;
+    }
+
+    //Runs on the scheduler of the CoreRuntime until nothing can be sent, then schedules itself for the next due update.
+    private void drain()
+    {
+        synchronized (queuedAudioConnections)
+        {
+            if (draining)
+                return;
+            draining = true;
+            drainTask = null;
+        }
+
+        while (true)
+        {
+            VoiceStateRequest request;
+            synchronized (queuedAudioConnections)
             {
-                LOG.warn("Hit the WebSocket RateLimit! If you see this message a lot then you might need to talk to DV8FromTheWorld.");
-                printedRateLimitMessage = true;
+                request = pollNextRequest();
+                if (request == null)
+                {
+                    draining = false;
+                    if (nextDrainDelay >= 0)
+                        scheduleDrain(nextDrainDelay);
+                    return;
+                }
+            }
+
+            try
+            {
+                handleRequest(request);
+            }
+            catch (Exception e)
+            {
+                LOG.log(e);
             }
-            return false;
         }
     }
 
-    private void setupSendingThread()
+    //Must hold the queuedAudioConnections lock.
+    private void scheduleDrain(long delay)
     {
-        ratelimitThread = new Thread("Core ConnectionManager Thread")
+        //A running drain picks up new requests before it finishes.
+        if (draining)
+            return;
+
+        long time = System.currentTimeMillis() + delay;
+        if (drainTask != null)
+        {
+            if (drainTime <= time)
+                return;
+            drainTask.cancel(false);
+        }
+        drainTime = time;
+        try
+        {
+            drainTask = scheduler.schedule(this::drain, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e)
         {
+            LOG.debug("Could not schedule voice state updates, the CoreRuntime was shut down.");
+            drainTask = null;
+        }
+    }
 
-            @Override
-            public void run()
+    //Done outside of the lock, these calls go to the client and may be slow.
+    private ConnectionStatus checkRequest(VoiceStateRequest request)
+    {
+        CoreClient client = core.getClient();
+        if (!client.inGuild(request.guildId))
+            return ConnectionStatus.DISCONNECTED_REMOVED_FROM_GUILD;
+        if (!client.voiceChannelExists(request.channelId))
+            return ConnectionStatus.DISCONNECTED_CHANNEL_DELETED;
+        if (!client.hasPermissionInChannel(request.channelId, 1 << 20)) //VOICE_CONNECT
+            return ConnectionStatus.DISCONNECTED_LOST_PERMISSION;
+        return null;
+    }
+
+    private void handleRequest(VoiceStateRequest request)
+    {
+        if (!core.getClient().isConnected())
+        {
+            synchronized (queuedAudioConnections)
             {
-                boolean needRatelimit;
-                boolean attemptedToSend;
-                while (!this.isInterrupted())
+                VoiceStateRequest current = queuedAudioConnections.get(request.guildId);
+                if (request.disconnect)
                 {
-                    try
-                    {
-                        //Make sure that we don't send any packets before sending auth info.
-//                        if (!sentAuthInfo)
-//                        {
-//                            Thread.sleep(500);
-//                            continue;
-//                        }
-                        attemptedToSend = false;
-                        needRatelimit = false;
-
-                        Map.Entry<String, MutablePair<Long, String>> requestEntry = getNextAudioConnectRequest();
-
-                        System.out.println(requestEntry);
-                        if (requestEntry != null)
-                        {
-                            String guildId = requestEntry.getKey();
-                            MutablePair<Long, String> audioRequest = requestEntry.getValue();
-                            String channelId = audioRequest.getRight();
-                            AudioManager audioManager = core.getAudioManager(guildId);
-                            JSONObject audioConnectPacket = new JSONObject()
-                                    .put("op", 4)
-                                    .put("d", new JSONObject()
-                                            .put("guild_id", guildId)
-                                            .put("channel_id", channelId)
-                                            .put("self_mute", audioManager.isSelfMuted())
-                                            .put("self_deaf", audioManager.isSelfDeafened())
-                                    );
-                            needRatelimit = !send(audioConnectPacket.toString());
-                            System.out.println(needRatelimit);
-                            if (!needRatelimit)
-                            {
-                                //If we didn't get RateLimited, Next allowed connect request will be 2 seconds from now
-                                audioRequest.setLeft(System.currentTimeMillis() + 2000);
-
-                                //If the connection is already established, then the packet just sent
-                                // was a move channel packet, thus, it won't trigger the removal from
-                                // queuedAudioConnections in VoiceServerUpdateHandler because we won't receive
-                                // that event just for a move, so we remove it here after successfully sending.
-                                if (audioManager.isConnected())
-                                {
-                                    queuedAudioConnections.remove(guildId);
-                                }
-                            }
-                            attemptedToSend = true;
-                        }
-
-                        if (needRatelimit || !attemptedToSend)
-                        {
-                            Thread.sleep(1000);
-                        }
-                    }
-                    catch (InterruptedException ignored)
-                    {
-                        LOG.debug("ConnectionManager thread interrupted. Most likely shutting down.");
-                        break;
-                    }
+                    //The disconnect was already taken from the request, put it back in front of any connect.
+                    current = getRequest(request.guildId);
+                    current.disconnect = true;
+                    scheduleRetry(current, CLIENT_DISCONNECTED_RETRY_DELAY);
                 }
+                else if (current != null && current.inFlight)
+                {
+                    scheduleRetry(current, CLIENT_DISCONNECTED_RETRY_DELAY);
+                }
+            }
+            return;
+        }
+
+        if (request.disconnect)
+        {
+            send(VoiceGatewayCodec.voiceStateUpdate(request.guildId, null, false, false));
+            return;
+        }
+
+        ConnectionStatus failure = checkRequest(request);
+        synchronized (queuedAudioConnections)
+        {
+            //Superseded while we checked it, the newer state is already queued.
+            VoiceStateRequest current = queuedAudioConnections.get(request.guildId);
+            if (current == null || !current.inFlight)
+                return;
+
+            if (failure != null)
+            {
+                current.channelId = null;
+                current.inFlight = false;
+                queuedAudioConnections.remove(request.guildId);
+            }
+        }
+
+        AudioManager audioManager = core.getAudioManager(request.guildId);
+        if (failure != null)
+        {
+            audioManager.getListenerProxy().onStatusChange(failure);
+            audioManager.handleStatusChange(failure);
+            return;
+        }
+
+        send(VoiceGatewayCodec.voiceStateUpdate(request.guildId, request.channelId,
+                audioManager.isSelfMuted(), audioManager.isSelfDeafened()));
+
+        synchronized (queuedAudioConnections)
+        {
+            VoiceStateRequest current = queuedAudioConnections.get(request.guildId);
+            if (current == null || !current.inFlight)
+                return;
+
+            if (audioManager.isConnected())
+            {
+                //If the connection is already established, then the packet just sent
+                // was a move or state update, thus, it won't trigger the removal in
+                // VoiceServerUpdateHandler because we won't receive that event for it,
+                // so we remove it here after successfully sending.
+                queuedAudioConnections.remove(request.guildId);
             }
-        };
-        ratelimitThread.start();
+            else
+            {
+                //Try again if Discord doesn't provide the voice server, unless the VOICE_SERVER_UPDATE removes it first.
+                scheduleRetry(current, CONNECT_RETRY_DELAY);
+            }
+        }
+    }
+
+    private void send(String message)
+    {
+        LOG.trace("<- " + message);
+        core.getClient().sendWS(message);
+    }
+
+
+    private static class VoiceStateRequest
+    {
+        final String guildId;
+        String channelId;           //The channel to connect or move to, null if there is none.
+        boolean disconnect;         //A disconnect that has to be sent before connecting again.
+        boolean inFlight;           //Taken for sending and not changed since.
+        long notBefore;             //The earliest time the connect may be sent, 0 if it isn't delayed.
+        long nextAttemptTime = -1;  //The time of its current schedule entry, -1 if it isn't scheduled.
+        ArrayDeque<VoiceStateRequest> ready;
+
+        VoiceStateRequest(String guildId)
+        {
+            this.guildId = guildId;
+        }
+
+        VoiceStateRequest copy()
+        {
+            VoiceStateRequest copy = new VoiceStateRequest(guildId);
+            copy.channelId = channelId;
+            copy.disconnect = disconnect;
+            return copy;
+        }
+    }
+
+    private static class ScheduledRequest implements Comparable<ScheduledRequest>
+    {
+        final VoiceStateRequest request;
+        final long time;
+
+        ScheduledRequest(VoiceStateRequest request, long time)
+        {
+            this.request = request;
+            this.time = time;
+        }
+
+        @Override
+        public int compareTo(ScheduledRequest other)
+        {
+            return Long.compare(time, other.time);
+        }
     }
 }
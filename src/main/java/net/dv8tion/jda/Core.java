@@ -16,39 +16,65 @@
 
 package net.dv8tion.jda;
 
-import net.dv8tion.jda.audio.AudioWebSocket;
+import net.dv8tion.jda.audio.UdpDiscovery;
+import net.dv8tion.jda.audio.factory.IAudioSendFactory;
 import net.dv8tion.jda.handle.VoiceServerUpdateHandler;
 import net.dv8tion.jda.manager.AudioManager;
 import net.dv8tion.jda.utils.SimpleLog;
 import org.json.JSONObject;
 
-import java.util.HashMap;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class Core
 {
     public static SimpleLog LOG = SimpleLog.getLog("Core");
+    public static final long DEFAULT_AUDIO_MANAGER_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+    private static final long AUDIO_MANAGER_EVICTION_INTERVAL = TimeUnit.MINUTES.toMillis(1);
 
-    private final HashMap<String, AudioManager> audioManagers = new HashMap<>();
+    private final ConcurrentHashMap<String, AudioManager> audioManagers = new ConcurrentHashMap<>();
+    private final CoreRuntime runtime;
     private final ConnectionManager connManager;
-    private final ScheduledThreadPoolExecutor audioKeepAlivePool;
     private final VoiceServerUpdateHandler vsuHandler;
     private final String userId;
     private final CoreClient coreClient;
+    private final ScheduledFuture<?> evictionTask;
+    private volatile long audioManagerIdleTimeout = DEFAULT_AUDIO_MANAGER_IDLE_TIMEOUT;
+    private volatile IAudioSendFactory sendFactory;
 
     /**
      * Creates a new Core instance. You should probably have one of these for each shard, but you do you.
+     * <br>Uses the {@link CoreRuntime#getDefault() default CoreRuntime}, shared with every other Core created this way.
      *
      * @param userId The UserId of the bot.
      * @param coreClient used to insert required functionality to connect Core to the MainWS
      */
     public Core(String userId, CoreClient coreClient)
     {
+        this(userId, coreClient, CoreRuntime.getDefault());
+    }
+
+    /**
+     * Creates a new Core instance using the threads of the provided runtime.
+     *
+     * @param userId The UserId of the bot.
+     * @param coreClient used to insert required functionality to connect Core to the MainWS
+     * @param runtime The runtime to share with other Cores, for example the ones of the other shards.
+     */
+    public Core(String userId, CoreClient coreClient, CoreRuntime runtime)
+    {
+        if (runtime == null)
+            throw new IllegalArgumentException("Provided CoreRuntime was null!");
+
         this.userId = userId;
         this.coreClient = coreClient;
+        this.runtime = runtime;
         this.connManager = new ConnectionManager(this);
         this.vsuHandler = new VoiceServerUpdateHandler(this);
-        this.audioKeepAlivePool = new ScheduledThreadPoolExecutor(1, new AudioWebSocket.KeepAliveThreadFactory());
+        this.evictionTask = runtime.getScheduler().scheduleWithFixedDelay(this::evictIdleAudioManagers,
+                AUDIO_MANAGER_EVICTION_INTERVAL, AUDIO_MANAGER_EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
     }
 
     // ==================================================================
@@ -65,21 +91,63 @@ public class Core
     {
         AudioManager manager = audioManagers.get(guildId);
         if (manager == null)
-        {
-            synchronized (audioManagers)
-            {
-                manager = audioManagers.get(guildId);
-                if (manager == null)
-                {
-                    manager = new AudioManager(this, guildId);
-                    audioManagers.put(guildId, manager);
-                }
-            }
-        }
+            manager = audioManagers.computeIfAbsent(guildId, id -> new AudioManager(this, id));
 
         return manager;
     }
 
+    /**
+     * Sets how long an {@link AudioManager} has to be unused before it is removed, so the managers of guilds
+     * the bot left don't accumulate. A manager is unused while it has no connection, no queued connection and no handlers
+     * or listeners. If an evicted manager is used again, it is registered again.
+     *
+     * @param idleTimeout The time in milliseconds, 0 or less disables the eviction.
+     */
+    public void setAudioManagerIdleTimeout(long idleTimeout)
+    {
+        this.audioManagerIdleTimeout = idleTimeout;
+    }
+
+    public long getAudioManagerIdleTimeout()
+    {
+        return audioManagerIdleTimeout;
+    }
+
+    public int getAudioManagerCount()
+    {
+        return audioManagers.size();
+    }
+
+    /**
+     * Sets the send factory of the connections of this Core, instead of the one of its {@link CoreRuntime}.
+     * <br>Single guilds can override this with {@link AudioManager#setSendFactory(IAudioSendFactory)}.
+     * Connections that are already sending switch to the new factory.
+     *
+     * @param sendFactory The send factory, or null to use the one of the runtime again.
+     */
+    public void setAudioSendFactory(IAudioSendFactory sendFactory)
+    {
+        this.sendFactory = sendFactory;
+        audioManagers.values().forEach(AudioManager::updateSendFactory);
+    }
+
+    public IAudioSendFactory getAudioSendFactory()
+    {
+        IAudioSendFactory factory = sendFactory;
+        return factory != null ? factory : runtime.getSendFactory();
+    }
+
+    /**
+     * Closes the audio connections of this Core and stops its tasks on the {@link CoreRuntime}, which keeps running
+     * for the other Cores using it. This Core should not be used afterwards.
+     */
+    public void shutdown()
+    {
+        evictionTask.cancel(false);
+        audioManagers.values().forEach(AudioManager::closeAudioConnection);
+        audioManagers.clear();
+    }
+
     // ====================================================================
     // =                         Helper Methods
     // ====================================================================
@@ -94,13 +162,52 @@ public class Core
         return coreClient;
     }
 
-    public ScheduledThreadPoolExecutor getAudioKeepAlivePool()
+    public CoreRuntime getRuntime()
     {
-        return audioKeepAlivePool;
+        return runtime;
+    }
+
+    public ScheduledExecutorService getAudioKeepAlivePool()
+    {
+        return runtime.getScheduler();
+    }
+
+    public UdpDiscovery getUdpDiscovery()
+    {
+        return runtime.getUdpDiscovery();
     }
 
     public String getUserId()
     {
         return userId;
     }
+
+    public void registerAudioManager(AudioManager manager)
+    {
+        AudioManager current = audioManagers.putIfAbsent(manager.getGuildId(), manager);
+        if (current != null && current != manager)
+            LOG.warn("An evicted AudioManager was used again while another one exists for guild " + manager.getGuildId());
+    }
+
+    public void unregisterAudioManager(AudioManager manager)
+    {
+        audioManagers.remove(manager.getGuildId(), manager);
+    }
+
+    private void evictIdleAudioManagers()
+    {
+        long idleTimeout = audioManagerIdleTimeout;
+        if (idleTimeout <= 0)
+            return;
+
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        for (AudioManager manager : audioManagers.values())
+        {
+            if (manager.evictIfIdle(now, idleTimeout))
+                evicted++;
+        }
+        if (evicted > 0)
+            LOG.debug("Evicted " + evicted + " idle AudioManagers");
+    }
 }
@@ -0,0 +1,196 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda;
+
+import net.dv8tion.jda.IExecutorProvider.ThreadType;
+import net.dv8tion.jda.audio.AudioConnection;
+import net.dv8tion.jda.audio.UdpDiscovery;
+import net.dv8tion.jda.audio.UdpMultiplexer;
+import net.dv8tion.jda.audio.factory.IUdpMultiplexer;
+import net.dv8tion.jda.audio.factory.DefaultSendFactory;
+import net.dv8tion.jda.audio.factory.IAudioSendFactory;
+import net.dv8tion.jda.audio.factory.SharedSendFactory;
+import net.dv8tion.jda.utils.HashedWheelTimer;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The threads and pools used by {@link Core} instances. Many Cores, for example one per shard, can share one runtime,
+ * so the amount of threads depends on the hardware instead of the amount of shards.
+ * <p>
+ * A runtime owns the scheduler used for timeouts, the voice state update queue and the mixing of combined audio,
+ * the timer sending heartbeats, the UDP discovery, and the {@link IAudioSendFactory IAudioSendFactory} of its connections.
+ * All of their threads are created by the {@link IExecutorProvider IExecutorProvider} of the runtime.
+ * Cores created without a runtime use {@link #getDefault()}.
+ */
+public class CoreRuntime
+{
+    private static CoreRuntime defaultRuntime;
+
+    private final IExecutorProvider executorProvider;
+    private final ScheduledExecutorService scheduler;
+    private final HashedWheelTimer heartbeatTimer;
+    private final UdpDiscovery udpDiscovery;
+    private final IAudioSendFactory sendFactory;
+    private final DefaultSendFactory defaultSendFactory;
+    private volatile IUdpMultiplexer udpMultiplexer;
+
+    /**
+     * Creates a runtime with a scheduler thread per two cores, sending through the default send factory,
+     * or through the deprecated {@link AudioConnection#setAudioSendFactory(IAudioSendFactory) global one} if it was set.
+     */
+    public CoreRuntime()
+    {
+        this(Math.max(2, Runtime.getRuntime().availableProcessors() / 2), null);
+    }
+
+    /**
+     * @param schedulerThreads
+     *        The amount of threads of the scheduler.
+     * @param sendFactory
+     *        The send factory of the connections of this runtime, for example a {@link SharedSendFactory SharedSendFactory}
+     *        to share the sending threads as well. If null, the global send factory is used.
+     */
+    public CoreRuntime(int schedulerThreads, IAudioSendFactory sendFactory)
+    {
+        this(schedulerThreads, sendFactory, new DefaultExecutorProvider());
+    }
+
+    /**
+     * @param schedulerThreads
+     *        The amount of threads of the scheduler.
+     * @param sendFactory
+     *        The send factory of the connections of this runtime. If null, the global send factory is used, with its
+     *        sending threads created by the executor provider if it is a {@link DefaultSendFactory DefaultSendFactory}.
+     * @param executorProvider
+     *        Creates the threads and the scheduler of this runtime.
+     */
+    public CoreRuntime(int schedulerThreads, IAudioSendFactory sendFactory, IExecutorProvider executorProvider)
+    {
+        if (schedulerThreads <= 0)
+            throw new IllegalArgumentException("Scheduler thread count must be positive");
+        if (executorProvider == null)
+            throw new NullPointerException("Provided IExecutorProvider was null!");
+
+        this.executorProvider = executorProvider;
+        this.scheduler = executorProvider.newScheduler(schedulerThreads);
+        //Ticks of 20ms are precise enough for heartbeats, and cheap with many connections.
+        this.heartbeatTimer = new HashedWheelTimer(
+                r -> executorProvider.newThread(ThreadType.HEARTBEAT, "JDA Audio-Heartbeat Timer", r),
+                20, TimeUnit.MILLISECONDS, 512);
+        this.udpDiscovery = new UdpDiscovery(executorProvider);
+        this.sendFactory = sendFactory;
+        this.defaultSendFactory = new DefaultSendFactory(executorProvider);
+    }
+
+    public static synchronized CoreRuntime getDefault()
+    {
+        if (defaultRuntime == null)
+            defaultRuntime = new CoreRuntime();
+        return defaultRuntime;
+    }
+
+    public IExecutorProvider getExecutorProvider()
+    {
+        return executorProvider;
+    }
+
+    public ScheduledExecutorService getScheduler()
+    {
+        return scheduler;
+    }
+
+    public HashedWheelTimer getHeartbeatTimer()
+    {
+        return heartbeatTimer;
+    }
+
+    public UdpDiscovery getUdpDiscovery()
+    {
+        return udpDiscovery;
+    }
+
+    /**
+     * Makes new connections share the provided amount of local UDP sockets, instead of opening a socket and receiving
+     * thread each. This saves file descriptors and socket buffers when there are many connections.
+     * <br>Has to be called before connecting, and only once.
+     *
+     * @param socketCount
+     *        The amount of shared sockets.
+     *
+     * @see UdpMultiplexer
+     */
+    public void enableSharedUdpSockets(int socketCount)
+    {
+        setUdpMultiplexer(new UdpMultiplexer(socketCount, executorProvider, scheduler, udpDiscovery));
+    }
+
+    /**
+     * Makes new connections share their UDP sockets through the provided multiplexer, which is shut down with this
+     * runtime.
+     * <br>Has to be called before connecting, and only once.
+     *
+     * @param multiplexer
+     *        The multiplexer to use.
+     *
+     * @see #enableSharedUdpSockets(int)
+     */
+    public synchronized void setUdpMultiplexer(IUdpMultiplexer multiplexer)
+    {
+        if (udpMultiplexer != null)
+        {
+            multiplexer.shutdown();
+            throw new IllegalStateException("Shared UDP sockets are already enabled");
+        }
+        udpMultiplexer = multiplexer;
+    }
+
+    /**
+     * @return The multiplexer of the shared UDP sockets, or null if every connection opens its own socket.
+     */
+    public IUdpMultiplexer getUdpMultiplexer()
+    {
+        return udpMultiplexer;
+    }
+
+    @SuppressWarnings("deprecation")
+    public IAudioSendFactory getSendFactory()
+    {
+        if (sendFactory != null)
+            return sendFactory;
+        //Still honoured so code setting the deprecated global factory keeps working.
+        IAudioSendFactory global = AudioConnection.sendFactory;
+        //The global default only differs from ours in where its threads come from.
+        return global.getClass() == DefaultSendFactory.class ? defaultSendFactory : global;
+    }
+
+    /**
+     * Stops the threads of this runtime. The Cores using it can't be used afterwards.
+     */
+    public void shutdown()
+    {
+        scheduler.shutdownNow();
+        heartbeatTimer.shutdown();
+        udpDiscovery.shutdown();
+        if (udpMultiplexer != null)
+            udpMultiplexer.shutdown();
+        if (sendFactory instanceof SharedSendFactory)
+            ((SharedSendFactory) sendFactory).shutdown();
+    }
+}
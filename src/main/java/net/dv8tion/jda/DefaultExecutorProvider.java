@@ -0,0 +1,35 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda;
+
+/**
+ * The default implementation of the {@link IExecutorProvider IExecutorProvider}, creating daemon platform threads.
+ * <br>Sending threads, including the event loops that also send, get a raised priority, as late audio packets are audible.
+ */
+public class DefaultExecutorProvider implements IExecutorProvider
+{
+    @Override
+    public Thread newThread(ThreadType type, String name, Runnable task)
+    {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        if (type == ThreadType.AUDIO_SEND || type == ThreadType.AUDIO_EVENT_LOOP)
+            thread.setPriority((Thread.NORM_PRIORITY + Thread.MAX_PRIORITY) / 2);
+        return thread;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dv8tion.jda;
+
+import net.dv8tion.jda.audio.AudioWebSocket;
+import net.dv8tion.jda.utils.SimpleLog;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Limits how many audio connections of a Core are in their handshake at the same time.
+ * <br>A handshake starts when the audio websocket connects and ends once the connection is ready or closed.
+ * Handshakes over the limit wait in a FIFO queue, so after an outage thousands of guilds are connected
+ * a few at a time instead of all at once.
+ */
+public class HandshakeAdmission
+{
+    public static final SimpleLog LOG = SimpleLog.getLog("HandshakeAdmission");
+    public static final int DEFAULT_MAX_CONCURRENT_HANDSHAKES = 16;
+
+    private final Set<AudioWebSocket> active = new HashSet<>();
+    private final ArrayDeque<AudioWebSocket> waiting = new ArrayDeque<>();
+    private int maxConcurrentHandshakes = DEFAULT_MAX_CONCURRENT_HANDSHAKES;
+
+    /**
+     * Starts the handshake of the provided websocket, or queues it until a running handshake finishes.
+     *
+     * @param socket
+     *        The websocket to start.
+     */
+    public void admit(AudioWebSocket socket)
+    {
+        synchronized (active)
+        {
+            if (active.size() >= maxConcurrentHandshakes)
+            {
+                waiting.add(socket);
+                LOG.trace("Queued audio handshake, " + waiting.size() + " waiting.");
+                return;
+            }
+            active.add(socket);
+        }
+        start(socket);
+    }
+
+    /**
+     * Ends the handshake of the provided websocket, or removes it from the queue if it wasn't started.
+     * <br>Calling this more than once has no effect.
+     *
+     * @param socket
+     *        The websocket that finished its handshake.
+     */
+    public void release(AudioWebSocket socket)
+    {
+        synchronized (active)
+        {
+            if (!active.remove(socket))
+            {
+                waiting.remove(socket);
+                return;
+            }
+        }
+        startWaiting();
+    }
+
+    public int getActiveHandshakeCount()
+    {
+        synchronized (active)
+        {
+            return active.size();
+        }
+    }
+
+    /**
+     * The amount of handshakes waiting for one of the running handshakes to finish.
+     *
+     * @return The queue depth.
+     */
+    public int getQueuedHandshakeCount()
+    {
+        synchronized (active)
+        {
+            return waiting.size();
+        }
+    }
+
+    public int getMaxConcurrentHandshakes()
+    {
+        return maxConcurrentHandshakes;
+    }
+
+    public void setMaxConcurrentHandshakes(int max)
+    {
+        if (max <= 0)
+            throw new IllegalArgumentException("Provided max must be positive");
+
+        synchronized (active)
+        {
+            maxConcurrentHandshakes = max;
+        }
+        startWaiting();
+    }
+
+    private void startWaiting()
+    {
+        while (true)
+        {
+            AudioWebSocket next;
+            synchronized (active)
+            {
+                if (waiting.isEmpty() || active.size() >= maxConcurrentHandshakes)
+                    return;
+                next = waiting.poll();
+                active.add(next);
+            }
+            start(next);
+        }
+    }
+
+    private void start(AudioWebSocket socket)
+    {
+        try
+        {
+            socket.startConnection();
+            //Closed while it was waiting, close() may have run before it counted as active.
+            if (socket.isShutdown())
+                release(socket);
+        }
+        catch (Exception e)
+        {
+            LOG.log(e);
+            release(socket);
+        }
+    }
+}
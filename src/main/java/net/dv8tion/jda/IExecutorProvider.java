@@ -0,0 +1,86 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates every thread and executor used internally by a {@link CoreRuntime CoreRuntime} and its connections.
+ * <br>Implement this to run JDA on your own threads, for example virtual threads, threads pinned to specific cores
+ * or with real-time priority, or instrumented pools.
+ *
+ * @see DefaultExecutorProvider
+ */
+public interface IExecutorProvider
+{
+    /**
+     * Creates the (not yet started) thread of a long running internal loop. JDA starts the thread itself and stops
+     * it by interrupting it.
+     *
+     * @param  type
+     *         What the thread is used for.
+     * @param  name
+     *         The name JDA would give the thread.
+     * @param  task
+     *         The loop run by the thread.
+     *
+     * @return A new, unstarted thread running the task.
+     */
+    Thread newThread(ThreadType type, String name, Runnable task);
+
+    /**
+     * Creates the scheduler of a {@link CoreRuntime CoreRuntime}, used for timeouts, the voice state update queue,
+     * speaking detection and the mixing of combined audio.
+     * <br>By default this is a {@link ScheduledThreadPoolExecutor ScheduledThreadPoolExecutor} using threads
+     * created by {@link #newThread(ThreadType, String, Runnable)}.
+     *
+     * @param  threads
+     *         The amount of threads requested for the scheduler.
+     *
+     * @return A new scheduler.
+     */
+    default ScheduledExecutorService newScheduler(int threads)
+    {
+        AtomicInteger count = new AtomicInteger(1);
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(threads,
+                r -> newThread(ThreadType.SCHEDULER, "JDA Audio-Scheduler Thread " + count.getAndIncrement(), r));
+        //Cancelled timeouts are removed right away instead of when they would have run.
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    enum ThreadType
+    {
+        /** Threads of the scheduler of a runtime. */
+        SCHEDULER,
+        /** The thread of the timer sending the voice gateway and UDP heartbeats. */
+        HEARTBEAT,
+        /** The selector thread finding the external address of new UDP connections. */
+        UDP_DISCOVERY,
+        /** Threads sending audio, these have to run every 20 milliseconds. */
+        AUDIO_SEND,
+        /** Threads receiving and decoding audio. */
+        AUDIO_RECEIVE,
+        /** Event-loop threads both sending and receiving audio, like the ones of the Netty module. */
+        AUDIO_EVENT_LOOP,
+        /** Event-loop threads of an {@link net.dv8tion.jda.audio.factory.IVoiceTransportFactory IVoiceTransportFactory}. */
+        TRANSPORT
+    }
+}
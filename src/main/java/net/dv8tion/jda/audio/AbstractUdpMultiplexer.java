@@ -0,0 +1,422 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package net.dv8tion.jda.audio;
+
+import net.dv8tion.jda.audio.factory.IUdpMultiplexer;
+import net.dv8tion.jda.utils.SimpleLog;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bookkeeping of an {@link IUdpMultiplexer IUdpMultiplexer}: placing connections on sockets, the UDP discovery
+ * through the shared sockets, and handing received packets to the right connection.
+ * <br>Implementations only provide the socket I/O, by adding their {@link SharedSocket SharedSockets} in their
+ * constructor.
+ * <p>
+ * Received packets are handed to the connection registered for the address they came from. When several connections
+ * on a socket use the same voice server, the SSRC in the RTP header decides, so audio of users a connection doesn't
+ * know yet can't be delivered until Discord told it about them. Such packets are dropped here, they never reach the
+ * {@link PendingPacketBuffer PendingPacketBuffer} of a connection that would hold them until the SSRC is mapped.
+ * New connections are therefore put on the socket with the fewest connections to the same voice server, a connection
+ * alone with its voice server on a socket gets all of its packets.
+ */
+public abstract class AbstractUdpMultiplexer implements IUdpMultiplexer
+{
+    public static final SimpleLog LOG = SimpleLog.getLog("JDAUdpMultiplexer");
+    //How often connections get to do their housekeeping while no packets arrive.
+    public static final long TICK_INTERVAL = 1000;
+
+    private final UdpDiscovery discovery;
+    private final List<SharedSocket> sockets = new ArrayList<>();
+    private boolean shutdown = false;
+
+    /**
+     * @param discovery
+     *        The discovery of the runtime, providing the timeout of the first discovery packet.
+     */
+    protected AbstractUdpMultiplexer(UdpDiscovery discovery)
+    {
+        this.discovery = discovery;
+    }
+
+    /**
+     * Adds a socket connections can be placed on, only to be called by the constructor of the implementation.
+     *
+     * @param socket
+     *        The socket, opened once the first connection needs it.
+     */
+    protected void addSocket(SharedSocket socket)
+    {
+        sockets.add(socket);
+    }
+
+    @Override
+    public synchronized Registration register(InetSocketAddress server, int ssrc) throws IOException
+    {
+        if (shutdown)
+            throw new IOException(getClass().getSimpleName() + " was shut down");
+        if (sockets.isEmpty())
+            throw new IOException(getClass().getSimpleName() + " has no sockets");
+
+        SharedSocket target = sockets.get(0);
+        for (SharedSocket socket : sockets)
+        {
+            int sameServer = socket.getRegistrations(server).size();
+            int targetSameServer = target.getRegistrations(server).size();
+            if (sameServer < targetSameServer || (sameServer == targetSameServer && socket.count < target.count))
+                target = socket;
+        }
+        target.open();
+
+        SocketRegistration registration = new SocketRegistration(target, server, ssrc);
+        target.byServer.computeIfAbsent(server, s -> new CopyOnWriteArrayList<>()).add(registration);
+        target.count++;
+        return registration;
+    }
+
+    public synchronized int getRegistrationCount()
+    {
+        int count = 0;
+        for (SharedSocket socket : sockets)
+            count += socket.count;
+        return count;
+    }
+
+    @Override
+    public synchronized void shutdown()
+    {
+        shutdown = true;
+        for (SharedSocket socket : sockets)
+            socket.close();
+    }
+
+    private synchronized void unregister(SocketRegistration registration)
+    {
+        SharedSocket socket = registration.socket;
+        List<SocketRegistration> registrations = socket.byServer.get(registration.server);
+        if (registrations == null || !registrations.remove(registration))
+            return;
+        if (registrations.isEmpty())
+            socket.byServer.remove(registration.server);
+        socket.count--;
+    }
+
+    /**
+     * A local socket shared by connections. Implementations open and close it, send through it, and pass every
+     * received packet to {@link #dispatch(InetSocketAddress, DatagramPacket)}.
+     */
+    protected abstract static class SharedSocket
+    {
+        private final ConcurrentHashMap<InetSocketAddress, List<SocketRegistration>> byServer = new ConcurrentHashMap<>();
+        private int count = 0;
+
+        /**
+         * Opens the socket if it isn't open already. Only called while holding the lock of the multiplexer.
+         *
+         * @throws IOException
+         *         If the socket could not be opened.
+         */
+        protected abstract void open() throws IOException;
+
+        /**
+         * Closes the socket, called once the multiplexer is shut down.
+         */
+        protected abstract void close();
+
+        /**
+         * Sends a packet to the provided voice server.
+         *
+         * @param  packet
+         *         The packet, which can be reused once this method returns.
+         * @param  server
+         *         The address of the voice server, also set on the packet.
+         *
+         * @throws IOException
+         *         If the packet could not be sent.
+         */
+        protected abstract void send(DatagramPacket packet, InetSocketAddress server) throws IOException;
+
+        /**
+         * Schedules a retransmission of the UDP discovery.
+         *
+         * @throws RejectedExecutionException
+         *         If the socket is shutting down.
+         */
+        protected abstract ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit);
+
+        /**
+         * @return The socket given to connections by {@link Registration#getSocket()}, or null.
+         */
+        protected DatagramSocket getSocket()
+        {
+            return null;
+        }
+
+        /**
+         * @return The channel set on the {@link UdpDiscovery.Result UdpDiscovery.Result}, or null.
+         */
+        protected DatagramChannel getChannel()
+        {
+            return null;
+        }
+
+        /**
+         * Lets the connections on this socket do their housekeeping, to be called about every
+         * {@value AbstractUdpMultiplexer#TICK_INTERVAL} milliseconds.
+         *
+         * @param now
+         *        The current time in milliseconds.
+         */
+        protected final void tick(long now)
+        {
+            for (List<SocketRegistration> registrations : byServer.values())
+                registrations.forEach(registration -> registration.tick(now));
+        }
+
+        /**
+         * Hands a received packet to the connection it belongs to.
+         *
+         * @param from
+         *        The address the packet came from.
+         * @param packet
+         *        The packet, only used until this method returns.
+         */
+        protected final void dispatch(InetSocketAddress from, DatagramPacket packet)
+        {
+            List<SocketRegistration> registrations = byServer.get(from);
+            if (registrations == null || registrations.isEmpty())
+                return;     //Nobody on this socket uses that voice server (anymore).
+
+            if (packet.getLength() == UdpDiscovery.DISCOVERY_PACKET_LENGTH)
+            {
+                //Discovery responses start with the SSRC we sent.
+                int ssrc = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()).getInt(packet.getOffset());
+                for (SocketRegistration registration : registrations)
+                {
+                    if (registration.ssrc == ssrc && registration.onDiscoveryResponse(packet))
+                        return;
+                }
+            }
+
+            if (registrations.size() == 1)
+            {
+                registrations.get(0).deliver(packet);
+                return;
+            }
+            if (packet.getLength() < AudioPacket.RTP_HEADER_BYTE_LENGTH)
+                return;
+
+            int ssrc = AudioPacket.getSSRC(packet);
+            for (SocketRegistration registration : registrations)
+            {
+                if (registration.accepts(ssrc))
+                {
+                    registration.deliver(packet);
+                    return;
+                }
+            }
+            //Audio of a user none of the connections knows yet, we can't tell which one it belongs to.
+            // Dropped, as buffering it until the SSRC is mapped would need a buffer shared by these connections.
+        }
+
+        private List<SocketRegistration> getRegistrations(InetSocketAddress server)
+        {
+            List<SocketRegistration> registrations = byServer.get(server);
+            return registrations != null ? registrations : Collections.emptyList();
+        }
+    }
+
+    private class SocketRegistration implements Registration
+    {
+        private final SharedSocket socket;
+        private final InetSocketAddress server;
+        private final int ssrc;
+        private final Object receiveLock = new Object();
+        private volatile Receiver receiver;
+        private volatile boolean closed = false;
+
+        private CompletableFuture<UdpDiscovery.Result> discoveryFuture;
+        private ScheduledFuture<?> retransmission;
+        private long started;
+        private long timeout;
+        private int attempts = 0;
+
+        private SocketRegistration(SharedSocket socket, InetSocketAddress server, int ssrc)
+        {
+            this.socket = socket;
+            this.server = server;
+            this.ssrc = ssrc;
+        }
+
+        @Override
+        public synchronized CompletableFuture<UdpDiscovery.Result> discover()
+        {
+            if (discoveryFuture == null)
+            {
+                discoveryFuture = new CompletableFuture<>();
+                started = System.nanoTime();
+                timeout = discovery.getInitialTimeout();
+                sendDiscovery();
+            }
+            return discoveryFuture;
+        }
+
+        @Override
+        public void send(DatagramPacket packet) throws IOException
+        {
+            socket.send(packet, server);
+        }
+
+        @Override
+        public DatagramSocket getSocket()
+        {
+            return socket.getSocket();
+        }
+
+        @Override
+        public void setReceiver(Receiver receiver)
+        {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+            return closed;
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+            receiver = null;
+            unregister(this);
+            synchronized (this)
+            {
+                if (retransmission != null)
+                    retransmission.cancel(false);
+                if (discoveryFuture != null)
+                    discoveryFuture.completeExceptionally(new IOException("Connection was closed during UDP discovery"));
+            }
+        }
+
+        private synchronized void sendDiscovery()
+        {
+            if (closed || discoveryFuture.isDone())
+                return;
+            if (attempts >= UdpDiscovery.MAX_ATTEMPTS)
+            {
+                discoveryFuture.completeExceptionally(new IOException("No response to UDP discovery from " + server
+                        + " after " + attempts + " attempts"));
+                return;
+            }
+            if (attempts > 0)
+            {
+                timeout = Math.min(UdpDiscovery.MAX_TIMEOUT, timeout * 2);
+                LOG.debug("UDP discovery with " + server + " timed out, retrying with a timeout of " + timeout + "ms");
+            }
+
+            //A packet of 70 bytes containing our ssrc, Discord responds with the same length.
+            byte[] data = new byte[UdpDiscovery.DISCOVERY_PACKET_LENGTH];
+            ByteBuffer.wrap(data).putInt(ssrc);
+            try
+            {
+                socket.send(new DatagramPacket(data, data.length, server), server);
+                attempts++;
+                retransmission = socket.schedule(this::sendDiscovery, timeout, TimeUnit.MILLISECONDS);
+            }
+            catch (IOException | RejectedExecutionException e)
+            {
+                discoveryFuture.completeExceptionally(e);
+            }
+        }
+
+        private synchronized boolean onDiscoveryResponse(DatagramPacket packet)
+        {
+            if (discoveryFuture == null || discoveryFuture.isDone())
+                return false;
+            if (retransmission != null)
+                retransmission.cancel(false);
+
+            byte[] received = new byte[packet.getLength()];
+            System.arraycopy(packet.getData(), packet.getOffset(), received, 0, received.length);
+            long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            LOG.debug("UDP discovery with " + server + " took " + time + "ms and " + attempts + " attempt(s)");
+            discoveryFuture.complete(new UdpDiscovery.Result(socket.getChannel(), server, UdpDiscovery.parse(received), time, attempts));
+            return true;
+        }
+
+        private boolean accepts(int ssrc)
+        {
+            Receiver current = receiver;
+            return current != null && current.accepts(ssrc);
+        }
+
+        //Receiving and the housekeeping may run on different threads, the lock keeps them from overlapping.
+        private void deliver(DatagramPacket packet)
+        {
+            synchronized (receiveLock)
+            {
+                Receiver current = receiver;
+                if (current == null)
+                    return;
+                try
+                {
+                    current.receive(packet);
+                }
+                catch (Exception e)
+                {
+                    LOG.log(e);
+                }
+            }
+        }
+
+        private void tick(long now)
+        {
+            synchronized (receiveLock)
+            {
+                Receiver current = receiver;
+                if (current == null)
+                    return;
+                try
+                {
+                    current.tick(now);
+                }
+                catch (Exception e)
+                {
+                    LOG.log(e);
+                }
+            }
+        }
+    }
+}
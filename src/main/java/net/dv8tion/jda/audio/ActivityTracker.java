@@ -0,0 +1,316 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dv8tion.jda.audio;
+
+import net.dv8tion.jda.audio.hooks.ActivityListener;
+
+import java.net.DatagramPacket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks which users of an {@link net.dv8tion.jda.audio.AudioConnection AudioConnection} are speaking and
+ * approximately how loud they are, using only the received RTP stream.
+ * <p>
+ * The Opus payload is encrypted, so the level is estimated from the size of the encrypted payload, which for
+ * Opus' variable bitrate grows with the energy and complexity of the audio. If a decode interval is set, every Nth
+ * frame of a user is decrypted and decoded to calibrate that estimate against the real level. Audio that is decoded
+ * for an {@link net.dv8tion.jda.audio.AudioReceiveHandler AudioReceiveHandler} anyway is used for calibration for free.
+ */
+public class ActivityTracker
+{
+    /** Time, in milliseconds, without audio after which a user is no longer considered to be speaking. */
+    public static final long SPEAKING_TIMEOUT = 200;
+    /** Time, in milliseconds, between level updates for speaking users. */
+    public static final long UPDATE_INTERVAL = 100;
+    /** Minimum change of a level before a new level is published. */
+    public static final float LEVEL_CHANGE_THRESHOLD = 0.05f;
+    /** Opus payload size, in bytes, that is considered to be full level. This is about 64kbps for a 20ms frame. */
+    public static final int FULL_LEVEL_PAYLOAD_LENGTH = 160;
+
+    private static final int SILENCE_PAYLOAD_LENGTH = 3;
+
+    private final AudioWebSocket webSocket;
+    private final ConcurrentHashMap<String, UserActivity> activity = new ConcurrentHashMap<>();
+    private final ActivityListener listener;
+    private final int decodeInterval;
+    //Only used by the receiving thread, so the occasional decode for calibration reuses a single frame.
+    private final UserAudio refineAudio = new UserAudio(null, new short[PcmAudio.FRAME_SAMPLE_COUNT]);
+    private ScheduledFuture<?> updateTask;
+
+    public ActivityTracker(AudioWebSocket webSocket, ActivityListener listener, int decodeInterval)
+    {
+        this.webSocket = webSocket;
+        this.listener = listener;
+        this.decodeInterval = decodeInterval;
+    }
+
+    /**
+     * Called by the receiving thread for every packet of a known user.
+     *
+     * @param userId
+     *        The user that sent the packet.
+     * @param ssrc
+     *        The SSRC of the packet.
+     * @param packet
+     *        The still encrypted packet.
+     * @param decoded
+     *        Whether the packet is going to be decoded for a receive handler anyway.
+     */
+    protected void handlePacket(String userId, int ssrc, DatagramPacket packet, boolean decoded)
+    {
+        int payloadLength = packet.getLength() - AudioPacket.getHeaderLength(packet) - AudioPacket.XSALSA20_MAC_LENGTH;
+        if (payloadLength <= 0)
+            return;
+
+        UserActivity user = activity.get(userId);
+        if (user == null)
+        {
+            user = new UserActivity(userId, ssrc);
+            UserActivity existing = activity.putIfAbsent(userId, user);
+            if (existing != null)
+                user = existing;
+        }
+
+        //Discord clients send a few frames of Opus silence when a user stops talking.
+        if (payloadLength <= SILENCE_PAYLOAD_LENGTH)
+        {
+            setSpeaking(user, false);
+            return;
+        }
+
+        user.lastPacket = System.currentTimeMillis();
+        user.lastPayloadLength = payloadLength;
+        float estimate = Math.min(1.0f, estimateLevel(payloadLength) * user.calibration);
+        user.level = user.level * 0.7f + estimate * 0.3f;
+
+        if (!decoded && decodeInterval > 0 && ++user.packets % decodeInterval == 0)
+            refine(user, packet);
+
+        setSpeaking(user, true);
+    }
+
+    /**
+     * Called by the receiving thread when audio of a user was decoded for a receive handler.
+     *
+     * @param userId
+     *        The user that sent the audio.
+     * @param audio
+     *        The decoded PCM audio.
+     */
+    protected void handleDecodedAudio(String userId, PcmAudio audio)
+    {
+        UserActivity user = activity.get(userId);
+        if (user != null)
+            calibrate(user, audio);
+    }
+
+    /**
+     * Forgets a user that left the channel or got a new SSRC, releasing the decoder used for its calibration.
+     *
+     * @param userId
+     *        The id of the user.
+     */
+    protected void removeUser(String userId)
+    {
+        UserActivity user = activity.remove(userId);
+        if (user == null)
+            return;
+        setSpeaking(user, false);
+        user.close();
+    }
+
+    /**
+     * Called about once a second with the receiving of the connection, forgets the users that sent no audio for the
+     * provided time. They are tracked again once they speak.
+     *
+     * @param now
+     *        The current time in milliseconds.
+     * @param timeout
+     *        The time in milliseconds a user has to be quiet to be forgotten.
+     */
+    protected void releaseIdleUsers(long now, long timeout)
+    {
+        for (UserActivity user : activity.values())
+        {
+            if (!user.speaking && now - user.lastPacket >= timeout && activity.remove(user.userId, user))
+                user.close();
+        }
+    }
+
+    protected synchronized void shutdown()
+    {
+        if (updateTask != null)
+        {
+            updateTask.cancel(false);
+            updateTask = null;
+        }
+        activity.values().forEach(UserActivity::close);
+        activity.clear();
+    }
+
+    private void refine(UserActivity user, DatagramPacket packet)
+    {
+        Decoder decoder = user.getDecoder();
+        if (decoder == null)
+            return;     //The user was removed while we were handling its packet.
+
+        AudioPacket decryptedPacket = AudioPacket.decryptAudioPacket(packet, webSocket.getSecretKey());
+        if (decryptedPacket == null)
+            return;
+        if (decoder.decodeFromOpus(decryptedPacket, refineAudio))
+            calibrate(user, refineAudio);
+    }
+
+    private void calibrate(UserActivity user, PcmAudio audio)
+    {
+        int sampleCount = audio.sampleCount;
+        if (sampleCount == 0)
+            return;
+
+        long sum = 0;
+        for (int i = 0; i < sampleCount; i++)
+        {
+            int sample = audio.samples.get(i);
+            sum += sample * sample;
+        }
+        float measured = (float) (Math.sqrt(sum / (double) sampleCount) / Short.MAX_VALUE);
+
+        float estimate = estimateLevel(user.lastPayloadLength);
+        if (estimate > 0.01f)
+            user.calibration = user.calibration * 0.8f + (measured / estimate) * 0.2f;
+        user.level = user.level * 0.5f + measured * 0.5f;
+    }
+
+    private void setSpeaking(UserActivity user, boolean speaking)
+    {
+        synchronized (user)
+        {
+            if (user.speaking == speaking)
+                return;
+            user.speaking = speaking;
+            if (!speaking)
+                user.level = 0;
+        }
+        publish(user, speaking, user.level);
+        if (speaking)
+            startUpdates();
+    }
+
+    private void publish(UserActivity user, boolean speaking, float level)
+    {
+        user.publishedLevel = level;
+        try
+        {
+            listener.onUserActivity(user.userId, speaking, level);
+        }
+        catch (Throwable t)
+        {
+            AudioConnection.LOG.log(t);
+        }
+    }
+
+    private synchronized void startUpdates()
+    {
+        if (updateTask != null)
+            return;
+
+        try
+        {
+            updateTask = webSocket.keepAlivePool.scheduleAtFixedRate(this::update, UPDATE_INTERVAL, UPDATE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException ignored) {} //The pool is shutting down, so is this connection.
+    }
+
+    private void update()
+    {
+        long now = System.currentTimeMillis();
+        for (UserActivity user : activity.values())
+        {
+            if (!user.speaking)
+                continue;
+
+            if (now - user.lastPacket > SPEAKING_TIMEOUT)
+                setSpeaking(user, false);
+            else if (Math.abs(user.level - user.publishedLevel) >= LEVEL_CHANGE_THRESHOLD)
+                publish(user, true, user.level);
+        }
+
+        //Stop updating while nobody is speaking. Checked under the lock so we don't race with startUpdates().
+        synchronized (this)
+        {
+            for (UserActivity user : activity.values())
+            {
+                if (user.speaking)
+                    return;
+            }
+            if (updateTask != null)
+            {
+                updateTask.cancel(false);
+                updateTask = null;
+            }
+        }
+    }
+
+    private static float estimateLevel(int payloadLength)
+    {
+        return (payloadLength - SILENCE_PAYLOAD_LENGTH) / (float) FULL_LEVEL_PAYLOAD_LENGTH;
+    }
+
+    private static class UserActivity
+    {
+        final String userId;
+        final int ssrc;
+        //Guarded by this, users may be removed by another thread while the receiving thread uses the decoder.
+        private Decoder decoder;
+        private boolean closed;
+        int packets;
+        int lastPayloadLength;
+        float calibration = 1.0f;
+        float publishedLevel;
+        volatile float level;
+        volatile long lastPacket;
+        volatile boolean speaking;
+
+        UserActivity(String userId, int ssrc)
+        {
+            this.userId = userId;
+            this.ssrc = ssrc;
+        }
+
+        synchronized Decoder getDecoder()
+        {
+            if (closed)
+                return null;
+            if (decoder == null)
+                decoder = new Decoder(ssrc);
+            return decoder;
+        }
+
+        synchronized void close()
+        {
+            closed = true;
+            if (decoder != null)
+            {
+                decoder.close();
+                decoder = null;
+            }
+        }
+    }
+}
@@ -17,18 +17,20 @@
 package net.dv8tion.jda.audio;
 
 import com.sun.jna.ptr.PointerByReference;
-import gnu.trove.map.TIntObjectMap;
-import gnu.trove.map.hash.TIntObjectHashMap;
+import net.dv8tion.jda.IExecutorProvider.ThreadType;
 import net.dv8tion.jda.audio.factory.DefaultSendFactory;
 import net.dv8tion.jda.audio.factory.IAudioSendFactory;
 import net.dv8tion.jda.audio.factory.IAudioSendSystem;
 import net.dv8tion.jda.audio.factory.IPacketProvider;
+import net.dv8tion.jda.audio.factory.IUdpMultiplexer;
+import net.dv8tion.jda.audio.factory.QosClass;
+import net.dv8tion.jda.audio.hooks.ActivityListener;
 import net.dv8tion.jda.audio.hooks.ConnectionStatus;
+import net.dv8tion.jda.utils.CopyOnWriteIntObjectMap;
 import net.dv8tion.jda.utils.SimpleLog;
-import org.apache.commons.lang3.tuple.Pair;
-import org.json.JSONObject;
 import tomp2p.opuswrapper.Opus;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketException;
@@ -37,10 +39,13 @@ import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class AudioConnection
 {
@@ -51,31 +56,78 @@ public class AudioConnection
     public static final int OPUS_CHANNEL_COUNT = 2;     //We want to use stereo. If the audio given is mono, the encoder promotes it
                                                         // to Left and Right mono (stereo that is the same on both sides)
 
-    public static IAudioSendFactory sendFactory = new DefaultSendFactory();
-
-    private final TIntObjectMap<String> ssrcMap = new TIntObjectHashMap();
-    private final TIntObjectMap<Decoder> opusDecoders = new TIntObjectHashMap<>();
-    private final HashMap<String, Queue<Pair<Long, short[]>>> combinedQueue = new HashMap<>();
+    /**
+     * @deprecated Global to every Core in the JVM. Use {@link net.dv8tion.jda.Core#setAudioSendFactory(IAudioSendFactory)},
+     *             {@link net.dv8tion.jda.manager.AudioManager#setSendFactory(IAudioSendFactory)}
+     *             or a {@link net.dv8tion.jda.CoreRuntime} instead.
+     */
+    @Deprecated
+    public static volatile IAudioSendFactory sendFactory = new DefaultSendFactory();
+
+    public static final long DEFAULT_IDLE_SUSPEND_TIMEOUT = 30000;
+    //How often a suspended connection asks its sending handler whether it can provide audio again.
+    // Kept long so idle connections barely wake the scheduler, wakeUp() is the way to resume right away.
+    public static final long SUSPENDED_PROBE_INTERVAL = 250;
+
+    //Written by the WebSocket thread, read by the receiving thread for every packet.
+    private final CopyOnWriteIntObjectMap<String> ssrcMap = new CopyOnWriteIntObjectMap<>();
+    private final CopyOnWriteIntObjectMap<Decoder> opusDecoders = new CopyOnWriteIntObjectMap<>();
+    public static final int COMBINED_QUEUE_CAPACITY = 25; //Up to half a second of audio per user waiting to be mixed.
+    public static final int USER_AUDIO_POOL_SIZE = 64;
+    public static final int COMBINED_AUDIO_POOL_SIZE = 8;
+
+    private final ConcurrentHashMap<String, Queue<UserAudio>> combinedQueue = new ConcurrentHashMap<>();
+    private final PcmAudioPool<UserAudio> userAudioPool = new PcmAudioPool<>(USER_AUDIO_POOL_SIZE, UserAudio::new);
+    private final PcmAudioPool<CombinedAudio> combinedAudioPool = new PcmAudioPool<>(COMBINED_AUDIO_POOL_SIZE, CombinedAudio::new);
+    private final PendingPacketBuffer pendingPackets = new PendingPacketBuffer();
+    private final Queue<Integer> mappedSsrcs = new ConcurrentLinkedQueue<>();
+    private final AtomicLongArray discardedPackets = new AtomicLongArray(DiscardReason.values().length);
+    //Only used by the combined thread, reused for every mix to avoid garbage every 20ms.
+    private final List<String> mixUsers = new ArrayList<>();
+    private final List<UserAudio> mixParts = new ArrayList<>();
+    private final List<String> handlerUsers = new ArrayList<>();
+    private final List<UserAudio> handlerParts = new ArrayList<>();
 
     private final String threadIdentifier;
     private final AudioWebSocket webSocket;
     private DatagramSocket udpSocket;
+    //Set once the websocket is ready, connections on a shared socket may not have a udpSocket.
+    private volatile boolean udpReady;
     private String channelId;
     private volatile AudioSendHandler sendHandler = null;
-    private volatile AudioReceiveHandler receiveHandler = null;
+    private volatile List<AudioReceiveHandler> receiveHandlers = Collections.emptyList();
+    private volatile ActivityTracker activityTracker = null;
     private PointerByReference opusEncoder;
-    private ScheduledExecutorService combinedAudioExecutor;
+    private ScheduledFuture<?> combinedAudioTask;
+    private ScheduledFuture<?> readyTimeout;
+    private long readyTimeoutMillis;
+    private ScheduledFuture<?> wakeProbe;
 
     private IAudioSendSystem sendSystem;
+    private IAudioSendFactory sendFactoryOverride;
+    private QosClass qosClass = QosClass.NORMAL;
     private Thread receiveThread;
+    private volatile boolean receiveActive = false;
     private long queueTimeout;
+    private volatile long idleSuspendTimeout = DEFAULT_IDLE_SUSPEND_TIMEOUT;
 
     private volatile boolean couldReceive = false;
     private volatile boolean speaking = false;      //Also acts as "couldProvide"
 
     private volatile int silenceCounter = 0;
     boolean sentSilenceOnConnect = false;
+    private long sendIdleSince = -1;    //Only used by the sending thread.
+    private boolean sendSuspended = false;
+    //Set when the probe got true from canProvide(), so the sender takes that frame instead of asking again.
+    private volatile boolean probedFrame = false;
+    private char seq = 0;           //Sequence of audio packets. Used to determine the order of the packets.
+    private int timestamp = 0;      //Used to sync up our packets within the same timeframe of other people talking.
+    private AudioConnection migrationSource;
+    //Held while a packet is built, so the sequence and timestamp are final once another connection took them over.
+    private final Object sendStateLock = new Object();
+    private boolean sendStateTakenOver = false;
     private final byte[] silenceBytes = new byte[] {(byte)0xF8, (byte)0xFF, (byte)0xFE};
+    private final int silencePacketLength = AudioPacket.RTP_HEADER_BYTE_LENGTH + AudioPacket.XSALSA20_MAC_LENGTH + silenceBytes.length;
 
     public AudioConnection(AudioWebSocket webSocket, String channelId)
     {
@@ -86,75 +138,200 @@ public class AudioConnection
         this.threadIdentifier = /**api.getIdentifierString() + */ " AudioConnection ChannelId: " + channelId;
     }
 
+    /**
+     * @deprecated Sets the factory of every Core in the JVM that doesn't have one of its own.
+     *             Use {@link net.dv8tion.jda.Core#setAudioSendFactory(IAudioSendFactory)} instead.
+     */
+    @Deprecated
     public static void setAudioSendFactory(IAudioSendFactory factory)
     {
-        if (sendFactory == null)
+        if (factory == null)
             throw new IllegalArgumentException("Send factory is null!");
 
         sendFactory = factory;
     }
 
-    public void ready(long timeout)
+    public synchronized void ready(long timeout)
+    {
+        //Readiness is signaled by the websocket through onReady(), this only has to watch for the timeout
+        // once the websocket starts its handshake.
+        this.readyTimeoutMillis = timeout;
+    }
+
+    protected synchronized void startReadyTimeout()
     {
-        Thread readyThread = new Thread(threadIdentifier + " Ready Thread")
+        long timeout = readyTimeoutMillis;
+        if (timeout > 0 && readyTimeout == null && !webSocket.isReady())
         {
-            @Override
-            public void run()
+            try
             {
-                long started = System.currentTimeMillis();
-                boolean connectionTimeout = false;
-                while (!webSocket.isReady() && !connectionTimeout)
+                readyTimeout = webSocket.keepAlivePool.schedule(() ->
                 {
-                    if (timeout > 0 && System.currentTimeMillis() - started > timeout)
-                    {
-                        connectionTimeout = true;
-                        break;
-                    }
+                    if (!webSocket.isReady())
+                        webSocket.close(ConnectionStatus.ERROR_CONNECTION_TIMEOUT);
+                }, timeout, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException ignored) {} //The pool is shutting down, so is this connection.
+        }
+    }
 
-                    try
-                    {
-                        Thread.sleep(10);
-                    }
-                    catch (InterruptedException e)
-                    {
-                        LOG.log(e);
-                        Thread.currentThread().interrupt();
-                    }
-                }
-                if (!connectionTimeout)
-                {
-                    AudioConnection.this.udpSocket = webSocket.getUdpSocket();
+    protected synchronized boolean onReady()
+    {
+        //If the timeout already fired, the websocket is being closed and we shouldn't start sending.
+        if (readyTimeout != null && !readyTimeout.cancel(false))
+            return false;
+        readyTimeout = null;
+
+        this.udpSocket = webSocket.getUdpSocket();
+        this.udpReady = true;
+        AudioConnection previous = migrationSource;
+        if (previous != null)
+        {
+            migrationSource = null;
+            takeOverSendState(previous);
+        }
+        setupSendSystem();
+        setupReceiveSystem();
+        return true;
+    }
 
-                    setupSendSystem();
-                    setupReceiveSystem();
-                }
-                else
+    /**
+     * Makes this connection continue sending where the provided connection, to the previous voice server, left off.
+     * <br>Takes effect once this connection is ready, until then the previous connection keeps sending.
+     *
+     * @param previous
+     *        The connection being replaced.
+     */
+    public synchronized void setMigrationSource(AudioConnection previous)
+    {
+        this.migrationSource = previous;
+    }
+
+    private void takeOverSendState(AudioConnection previous)
+    {
+        //Stop the previous sender first, so the RTP sequence and timestamp are final when we copy them. Shutting down
+        // doesn't wait for a packet being built, so its provider is retired under the lock building packets holds.
+        //Our sender starts right after, so the stream only skips about one frame.
+        synchronized (previous.sendStateLock)
+        {
+            previous.sendStateTakenOver = true;
+            synchronized (previous)
+            {
+                if (previous.sendSystem != null)
                 {
-                    webSocket.close(ConnectionStatus.ERROR_CONNECTION_TIMEOUT);
+                    previous.sendSystem.shutdown();
+                    previous.sendSystem = null;
                 }
+                previous.cancelWakeProbe();
             }
-        };
-        readyThread.setDaemon(true);
-        readyThread.start();
+            this.seq = previous.seq;
+            this.timestamp = previous.timestamp;
+            this.sentSilenceOnConnect = previous.sentSilenceOnConnect;
+            this.silenceCounter = previous.silenceCounter;
+        }
     }
 
     public void setSendingHandler(AudioSendHandler handler)
     {
         this.sendHandler = handler;
+        this.probedFrame = false;   //The frame was prepared by the previous handler.
         setupSendSystem();
     }
 
-    public void setReceivingHandler(AudioReceiveHandler handler)
+    public void setReceivingHandlers(Collection<AudioReceiveHandler> handlers)
+    {
+        //Replaced as a whole so that the receiving thread always works on a consistent set of handlers.
+        this.receiveHandlers = handlers.isEmpty()
+                ? Collections.emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(handlers));
+        setupReceiveSystem();
+    }
+
+    public synchronized void setActivityListener(ActivityListener listener, int decodeInterval)
     {
-        this.receiveHandler = handler;
+        if (activityTracker != null)
+            activityTracker.shutdown();
+        activityTracker = listener == null ? null : new ActivityTracker(webSocket, listener, decodeInterval);
         setupReceiveSystem();
     }
 
+    public long getDiscardedPackets(DiscardReason reason)
+    {
+        return discardedPackets.get(reason.ordinal());
+    }
+
     public void setQueueTimeout(long queueTimeout)
     {
         this.queueTimeout = queueTimeout;
     }
 
+    /**
+     * Sets how long the connection may be silent before it suspends sending and releases the native encoder, and
+     * before the decoders of users that stopped talking are released.
+     *
+     * @param idleSuspendTimeout
+     *        The timeout in milliseconds, 0 or less to never suspend.
+     */
+    public void setIdleSuspendTimeout(long idleSuspendTimeout)
+    {
+        this.idleSuspendTimeout = idleSuspendTimeout;
+    }
+
+    /**
+     * Sets the send factory of this connection, instead of the one of its Core.
+     *
+     * @param factory
+     *        The send factory, or null to use the one of the Core.
+     */
+    public synchronized void setSendFactory(IAudioSendFactory factory)
+    {
+        this.sendFactoryOverride = factory;
+        restartSendSystem();
+    }
+
+    public synchronized void setQosClass(QosClass qosClass)
+    {
+        if (qosClass == null)
+            throw new IllegalArgumentException("QosClass is null!");
+        if (this.qosClass == qosClass)
+            return;
+        this.qosClass = qosClass;
+        restartSendSystem();
+    }
+
+    public synchronized QosClass getQosClass()
+    {
+        return qosClass;
+    }
+
+    //Send systems are created for a factory and class, so a running one is replaced. The encoder is kept.
+    public synchronized void restartSendSystem()
+    {
+        if (sendSystem != null)
+        {
+            sendSystem.shutdown();
+            sendSystem = null;
+            setupSendSystem();
+        }
+    }
+
+    public synchronized boolean isSendingSuspended()
+    {
+        return sendSuspended;
+    }
+
+    /**
+     * Resumes sending right away if it was suspended, instead of waiting for the next probe of the sending handler.
+     */
+    public synchronized void wakeUp()
+    {
+        if (sendSuspended)
+        {
+            cancelWakeProbe();
+            setupSendSystem();
+        }
+    }
+
     public String getChannelId()
     {
         return channelId;
@@ -167,25 +344,81 @@ public class AudioConnection
 
     public void updateUserSSRC(int ssrc, String userId, boolean talking)
     {
-        if (ssrcMap.containsKey(ssrc))
+        synchronized (ssrcMap)
         {
             String previousId = ssrcMap.get(ssrc);
-            if (!previousId.equals(userId))
+            if (userId.equals(previousId))
+                return;
+
+            if (previousId != null)
+            {
+                //Discord reused the SSRC for a different user, the old user's decoder state doesn't apply to this stream.
+                LOG.debug("SSRC " + ssrc + " in channel " + channelId + " moved from user " + previousId + " to " + userId);
+                closeDecoder(ssrc);
+                removeActivity(previousId);
+            }
+
+            //A user that reconnected gets a new SSRC, the old one won't be used again.
+            for (int oldSsrc : ssrcMap.keys())
             {
-                //Different User already existed with this ssrc. What should we do? Just replace? Probably should nuke the old opusDecoder.
-                //Log for now and see if any userId report the error.
-                LOG.fatal("Yeah.. So.. JDA received a UserSSRC update for an ssrc that already had a User set. Inform DV8FromTheWorld.\n" +
-                        "ChannelId: " + channelId + " SSRC: " + ssrc + " oldId: " + previousId + " newId: " + userId);
+                if (oldSsrc != ssrc && userId.equals(ssrcMap.get(oldSsrc)))
+                {
+                    ssrcMap.remove(oldSsrc);
+                    closeDecoder(oldSsrc);
+                    removeActivity(userId);
+                }
             }
+
+            ssrcMap.put(ssrc, userId);
         }
-        else
+
+        //Only create a decoder if we are actively handling received audio from this user.
+        if (receiveActive && needsDecoding(receiveHandlers, userId))
         {
-            ssrcMap.put(ssrc, userId);
+            Decoder decoder = new Decoder(ssrc);
+            if (opusDecoders.putIfAbsent(ssrc, decoder) != null)
+                decoder.close();
+        }
+
+        //Lets the receiving thread replay audio that arrived before we knew who this SSRC belongs to.
+        if (receiveActive)
+            mappedSsrcs.add(ssrc);
+    }
 
-            //Only create a decoder if we are actively handling received audio.
-            if (receiveThread != null)
-                opusDecoders.put(ssrc, new Decoder(ssrc));
+    /**
+     * Forgets a user that left the channel, releasing the decoders used for their audio.
+     *
+     * @param userId
+     *        The id of the user.
+     */
+    public void removeUser(String userId)
+    {
+        synchronized (ssrcMap)
+        {
+            for (int ssrc : ssrcMap.keys())
+            {
+                if (userId.equals(ssrcMap.get(ssrc)))
+                {
+                    ssrcMap.remove(ssrc);
+                    closeDecoder(ssrc);
+                }
+            }
         }
+        removeActivity(userId);
+    }
+
+    private void removeActivity(String userId)
+    {
+        ActivityTracker tracker = activityTracker;
+        if (tracker != null)
+            tracker.removeUser(userId);
+    }
+
+    private void closeDecoder(int ssrc)
+    {
+        Decoder decoder = opusDecoders.remove(ssrc);
+        if (decoder != null)
+            decoder.close();
     }
 
     public void close(ConnectionStatus closeStatus)
@@ -196,21 +429,28 @@ public class AudioConnection
 
     public synchronized void shutdown()
     {
+        if (readyTimeout != null)
+        {
+            readyTimeout.cancel(false);
+            readyTimeout = null;
+        }
+        cancelWakeProbe();
 //        setSpeaking(false);
         if (sendSystem != null)
         {
             sendSystem.shutdown();
             sendSystem = null;
         }
-        if (receiveThread != null)
+        stopReceiving();
+        if (activityTracker != null)
         {
-            receiveThread.interrupt();
-            receiveThread = null;
+            activityTracker.shutdown();
+            activityTracker = null;
         }
-        if (combinedAudioExecutor != null)
+        if (combinedAudioTask != null)
         {
-            combinedAudioExecutor.shutdownNow();
-            combinedAudioExecutor = null;
+            combinedAudioTask.cancel(false);
+            combinedAudioTask = null;
         }
         if (opusEncoder != null)
         {
@@ -218,19 +458,23 @@ public class AudioConnection
             opusEncoder = null;
         }
 
-        opusDecoders.valueCollection().forEach(Decoder::close);
-        opusDecoders.clear();
+        opusDecoders.clear().forEach(Decoder::close);
+        mappedSsrcs.clear();
     }
 
     private synchronized void setupSendSystem()
     {
-        if (udpSocket != null && !udpSocket.isClosed() && sendHandler != null && sendSystem == null)
+        if (isUdpOpen() && sendHandler != null && sendSystem == null)
         {
-            IntBuffer error = IntBuffer.allocate(4);
-            opusEncoder = Opus.INSTANCE.opus_encoder_create(OPUS_SAMPLE_RATE, OPUS_CHANNEL_COUNT, Opus.OPUS_APPLICATION_AUDIO, error);
-
+            cancelWakeProbe();
+            if (opusEncoder == null)
+            {
+                IntBuffer error = IntBuffer.allocate(4);
+                opusEncoder = Opus.INSTANCE.opus_encoder_create(OPUS_SAMPLE_RATE, OPUS_CHANNEL_COUNT, Opus.OPUS_APPLICATION_AUDIO, error);
+            }
 
-            sendSystem = sendFactory.createSendSystem(new PacketProvider());
+            IAudioSendFactory factory = sendFactoryOverride != null ? sendFactoryOverride : webSocket.getCore().getAudioSendFactory();
+            sendSystem = factory.createSendSystem(new PacketProvider(qosClass));
             sendSystem.start();
         }
         else if (sendHandler == null && sendSystem != null)
@@ -244,229 +488,644 @@ public class AudioConnection
                 opusEncoder = null;
             }
         }
+        else if (sendHandler == null)
+        {
+            cancelWakeProbe();
+        }
+    }
+
+    //Called by the sending thread after every frame it had nothing to send.
+    private void onSendIdle()
+    {
+        long timeout = idleSuspendTimeout;
+        long now = System.currentTimeMillis();
+        if (sendIdleSince < 0)
+            sendIdleSince = now;
+        else if (timeout > 0 && now - sendIdleSince >= timeout)
+            suspendSending();
+    }
+
+    private synchronized void suspendSending()
+    {
+        sendIdleSince = -1;
+        if (sendSystem == null || sendHandler == null)
+            return;
+
+        //Nothing ticks while suspended, the probe on the shared scheduler is all that is left of this connection.
+        sendSystem.shutdown();
+        sendSystem = null;
+        if (speaking)
+        {
+            //No sender is left to end the speaking state, and after this long no trailing silence is needed.
+            speaking = false;
+            webSocket.send(VoiceGatewayCodec.speaking(false));
+        }
+        if (opusEncoder != null)
+        {
+            Opus.INSTANCE.opus_encoder_destroy(opusEncoder);
+            opusEncoder = null;
+        }
+        try
+        {
+            wakeProbe = webSocket.keepAlivePool.scheduleWithFixedDelay(this::probeSendHandler,
+                    SUSPENDED_PROBE_INTERVAL, SUSPENDED_PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+            sendSuspended = true;
+            LOG.debug("Suspended sending of idle connection in channel " + channelId);
+        }
+        catch (RejectedExecutionException ignored) {} //The pool is shutting down, so is this connection.
+    }
+
+    private void probeSendHandler()
+    {
+        AudioSendHandler handler;
+        synchronized (this)
+        {
+            if (!sendSuspended)
+                return;
+            handler = sendHandler;
+        }
+        if (handler == null)
+            return;
+
+        //The handler is user code, so it is asked without holding the monitor of this connection.
+        boolean canProvide;
+        try
+        {
+            canProvide = handler.canProvide();
+        }
+        catch (Exception e)
+        {
+            LOG.log(e);
+            return;
+        }
+        if (!canProvide)
+            return;
+
+        synchronized (this)
+        {
+            if (handler != sendHandler)
+                return;     //The frame belongs to a handler that was replaced meanwhile.
+            //Handlers may fetch their next frame in canProvide(), asking again would drop it. This holds as well when
+            // wakeUp() restarted the sender while the handler was being asked.
+            probedFrame = true;
+            wakeUp();
+        }
+    }
+
+    private boolean takeProbedFrame()
+    {
+        if (!probedFrame)
+            return false;
+        probedFrame = false;
+        return true;
+    }
+
+    private void cancelWakeProbe()
+    {
+        sendSuspended = false;
+        if (wakeProbe != null)
+        {
+            wakeProbe.cancel(false);
+            wakeProbe = null;
+        }
+    }
+
+    private void releaseIdleDecoders(long now)
+    {
+        long timeout = idleSuspendTimeout;
+        if (timeout <= 0)
+            return;
+        for (int ssrc : opusDecoders.keys())
+        {
+            Decoder decoder = opusDecoders.get(ssrc);
+            //Recreated on the next packet of this user.
+            if (decoder != null && now - decoder.lastUsed >= timeout)
+                closeDecoder(ssrc);
+        }
+        ActivityTracker tracker = activityTracker;
+        if (tracker != null)
+            tracker.releaseIdleUsers(now, timeout);
     }
 
     private synchronized void setupReceiveSystem()
     {
-        if (udpSocket != null && !udpSocket.isClosed() && receiveHandler != null && receiveThread == null)
+        List<AudioReceiveHandler> handlers = receiveHandlers;
+        boolean receiving = !handlers.isEmpty() || activityTracker != null;
+        if (isUdpOpen() && receiving && !receiveActive)
         {
-            setupReceiveThread();
+            setupReceiving();
         }
-        else if (receiveHandler == null && receiveThread != null)
+        else if (!receiving && receiveActive)
+        {
+            stopReceiving();
+
+            if (combinedAudioTask != null)
+            {
+                combinedAudioTask.cancel(false);
+                combinedAudioTask = null;
+            }
+
+            opusDecoders.clear().forEach(Decoder::close);
+        }
+        else if (receiveActive && canReceiveCombined(handlers))
+        {
+            setupCombinedExecutor();
+        }
+        else if (!canReceiveCombined(handlers) && combinedAudioTask != null)
+        {
+            combinedAudioTask.cancel(false);
+            combinedAudioTask = null;
+        }
+    }
+
+    private synchronized void setupReceiving()
+    {
+        if (!receiveActive)
+        {
+            IUdpMultiplexer.Registration registration = webSocket.getUdpRegistration();
+            if (registration != null)
+            {
+                //The reading thread of the shared socket hands us our packets.
+                registration.setReceiver(new SharedReceiver());
+            }
+            else
+            {
+                receiveThread = webSocket.getCore().getRuntime().getExecutorProvider()
+                        .newThread(ThreadType.AUDIO_RECEIVE, threadIdentifier + " Receiving Thread", this::receiveLoop);
+                receiveThread.start();
+            }
+            receiveActive = true;
+        }
+
+        if (canReceiveCombined(receiveHandlers))
+        {
+            setupCombinedExecutor();
+        }
+    }
+
+    private void receiveLoop()
+    {
+        try
+        {
+            udpSocket.setSoTimeout(1000);
+        }
+        catch (SocketException e)
+        {
+            LOG.log(e);
+        }
+        //Packets are fully handled before the next receive, and held packets are copied, so one buffer is enough.
+        DatagramPacket receivedPacket = new DatagramPacket(new byte[1920], 1920);
+        long lastIdleCheck = System.currentTimeMillis();
+        while (!udpSocket.isClosed() && !Thread.currentThread().isInterrupted())
+        {
+            try
+            {
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= 1000)
+                {
+                    lastIdleCheck = now;
+                    releaseIdleDecoders(now);
+                }
+                replayPendingPackets();
+                receivedPacket.setLength(receivedPacket.getData().length);
+                udpSocket.receive(receivedPacket);
+                onPacketReceived(receivedPacket);
+            }
+            catch (SocketTimeoutException e)
+            {
+                //Ignore. We set a low timeout so that we wont block forever so we can properly shutdown the loop.
+            }
+            catch (SocketException e)
+            {
+                //The socket was closed while we were listening for the next packet.
+                //This is expected. Ignore the exception. The thread will exit during the next while
+                // iteration because the udpSocket.isClosed() will return true.
+            }
+            catch (Exception e)
+            {
+                LOG.log(e);
+            }
+        }
+    }
+
+    private synchronized void stopReceiving()
+    {
+        receiveActive = false;
+        if (receiveThread != null)
         {
             receiveThread.interrupt();
             receiveThread = null;
+        }
+        IUdpMultiplexer.Registration registration = webSocket.getUdpRegistration();
+        if (registration != null)
+            registration.setReceiver(null);
+    }
+
+    private boolean isUdpOpen()
+    {
+        return udpReady && webSocket.isUdpOpen();
+    }
 
-            if (combinedAudioExecutor != null)
+    private void onPacketReceived(DatagramPacket receivedPacket)
+    {
+        List<AudioReceiveHandler> handlers = receiveHandlers;
+        ActivityTracker tracker = activityTracker;
+        if ((canReceive(handlers) || tracker != null) && webSocket.getSecretKey() != null)
+        {
+            if (!couldReceive)
             {
-                combinedAudioExecutor.shutdownNow();
-                combinedAudioExecutor = null;
+                couldReceive = true;
+                sendSilentPackets();
             }
-
-            opusDecoders.valueCollection().forEach(Decoder::close);
-            opusDecoders.clear();
+            handleReceivedPacket(receivedPacket, handlers, tracker);
         }
-        else if (receiveHandler != null && !receiveHandler.canReceiveCombined() && combinedAudioExecutor != null)
+        else if (couldReceive)
         {
-            combinedAudioExecutor.shutdownNow();
-            combinedAudioExecutor = null;
+            couldReceive = false;
+            sendSilentPackets();
         }
     }
 
-    private synchronized void setupReceiveThread()
+    private void handleReceivedPacket(DatagramPacket receivedPacket, List<AudioReceiveHandler> handlers, ActivityTracker tracker)
     {
-        if (receiveThread == null)
+        //The RTP header isn't encrypted, so we can find out what kind of packet this is, and who sent it,
+        // before spending any time on decrypting or decoding it.
+        DiscardReason invalid = AudioPacket.checkReceivedPacket(receivedPacket);
+        if (invalid != null)
+        {
+            discard(invalid, 1);
+            return;
+        }
+
+        int ssrc = AudioPacket.getSSRC(receivedPacket);
+        final String userId = ssrcMap.get(ssrc);
+        if (userId == null)
+        {
+            //If the packet only contains silence, then this was caused by a User joining the voice channelId,
+            // and as such, we haven't yet received information to pair the SSRC with the UserId.
+            //Otherwise the user most likely started talking before Discord told us who they are, so we hold
+            // onto the packet until updateUserSSRC pairs the SSRC with the UserId.
+            if (receivedPacket.getLength() != silencePacketLength)
+            {
+                LOG.trace("Received audio data with an unknown SSRC id. Holding it until the SSRC is known.");
+                pendingPackets.add(ssrc, receivedPacket, System.currentTimeMillis());
+                discard(DiscardReason.UNKNOWN_SSRC, pendingPackets.drainDropped());
+            }
+
+            return;
+        }
+
+        //Make sure packets held for this SSRC are handled before the newer one.
+        if (!pendingPackets.isEmpty() && pendingPackets.contains(ssrc))
+            replayPendingPackets(ssrc, handlers, tracker);
+
+        //Only do the work that at least one of the handlers subscribed to this user actually needs.
+        boolean needsEncoded = false;
+        boolean needsDecoded = false;
+        for (AudioReceiveHandler handler : handlers)
+        {
+            if (!handler.canReceiveFrom(userId))
+                continue;
+            needsEncoded |= handler.canReceiveEncoded();
+            needsDecoded |= handler.canReceiveUser() || handler.canReceiveCombined();
+        }
+        if (tracker != null)
+            tracker.handlePacket(userId, ssrc, receivedPacket, needsDecoded);
+        if (!needsEncoded && !needsDecoded)
         {
-            receiveThread = new Thread(threadIdentifier + " Receiving Thread")
+            discard(DiscardReason.UNSUBSCRIBED_USER, 1);
+            return;
+        }
+
+        AudioPacket decryptedPacket = AudioPacket.decryptAudioPacket(receivedPacket, webSocket.getSecretKey());
+        if (decryptedPacket == null)
+        {
+            discard(DiscardReason.DECRYPTION_FAILED, 1);
+            return;
+        }
+
+        if (needsEncoded)
+        {
+            OpusPacket opusPacket = new OpusPacket(userId, ssrc, decryptedPacket.getSequence(),
+                    decryptedPacket.getTimestamp(), decryptedPacket.getEncodedAudio());
+            for (AudioReceiveHandler handler : handlers)
             {
-                @Override
-                public void run()
+                if (handler.canReceiveEncoded() && handler.canReceiveFrom(userId))
                 {
                     try
                     {
-                        udpSocket.setSoTimeout(1000);
+                        handler.handleEncodedAudio(opusPacket);
                     }
-                    catch (SocketException e)
+                    catch (Exception e)
                     {
                         LOG.log(e);
                     }
-                    while (!udpSocket.isClosed() && !this.isInterrupted())
+                }
+            }
+        }
+
+        if (!needsDecoded)
+            return;
+
+        Decoder decoder = opusDecoders.get(ssrc);
+        if (decoder == null)
+        {
+            decoder = new Decoder(ssrc);
+            Decoder existing = opusDecoders.putIfAbsent(ssrc, decoder);
+            if (existing != null)
+            {
+                decoder.close();
+                decoder = existing;
+            }
+        }
+        if (!decoder.isInOrder(decryptedPacket.getSequence()))
+        {
+            LOG.trace("Got out-of-order audio packet. Ignoring.");
+            discard(DiscardReason.OUT_OF_ORDER, 1);
+            return;
+        }
+
+        UserAudio userAudio = userAudioPool.acquire();
+        try
+        {
+            //If decoding fails, the Opus decode returned an error, so throw away the packet.
+            if (!decoder.decodeFromOpus(decryptedPacket, userAudio))
+            {
+                LOG.trace("Received audio data but Opus failed to properly decode, instead it returned an error");
+                discard(DiscardReason.DECODE_FAILED, 1);
+                return;
+            }
+            userAudio.userId = userId;
+            userAudio.receivedTime = System.currentTimeMillis();
+            if (tracker != null)
+                tracker.handleDecodedAudio(userId, userAudio);
+
+            //Queue the audio before providing it, so a handler releasing it too often can't recycle it early.
+            for (AudioReceiveHandler handler : handlers)
+            {
+                if (handler.canReceiveCombined() && handler.canReceiveFrom(userId))
+                {
+                    queueCombinedAudio(userAudio);
+                    break;
+                }
+            }
+
+            //Every handler gets the same UserAudio instance, it doesn't allow modification of the decoded data.
+            for (AudioReceiveHandler handler : handlers)
+            {
+                if (handler.canReceiveUser() && handler.canReceiveFrom(userId))
+                {
+                    try
+                    {
+                        handler.handleUserAudio(userAudio);
+                    }
+                    catch (Exception e)
                     {
-                        DatagramPacket receivedPacket = new DatagramPacket(new byte[1920], 1920);
-                        try
-                        {
-                            udpSocket.receive(receivedPacket);
-
-                            if (receiveHandler != null && (receiveHandler.canReceiveUser() || receiveHandler.canReceiveCombined()) && webSocket.getSecretKey() != null)
-                            {
-                                if (!couldReceive)
-                                {
-                                    couldReceive = true;
-                                    sendSilentPackets();
-                                }
-                                AudioPacket decryptedPacket = AudioPacket.decryptAudioPacket(receivedPacket, webSocket.getSecretKey());
-
-                                int ssrc = decryptedPacket.getSSRC();
-                                final String userId = ssrcMap.get(ssrc);
-                                Decoder decoder = opusDecoders.get(ssrc);
-                                if (userId == null)
-                                {
-                                    byte[] audio = decryptedPacket.getEncodedAudio();
-
-                                    //If the bytes are silence, then this was caused by a User joining the voice channelId,
-                                    // and as such, we haven't yet received information to pair the SSRC with the UserId.
-                                    if (!Arrays.equals(audio, silenceBytes))
-                                        LOG.debug("Received audio data with an unknown SSRC id. Ignoring");
-
-                                    continue;
-                                }
-                                if (decoder == null)
-                                {
-                                    decoder = new Decoder(ssrc);
-                                    opusDecoders.put(ssrc, decoder);
-                                }
-                                if (!decoder.isInOrder(decryptedPacket.getSequence()))
-                                {
-                                    LOG.trace("Got out-of-order audio packet. Ignoring.");
-                                    continue;
-                                }
-
-                                short[] decodedAudio = decoder.decodeFromOpus(decryptedPacket);
-
-                                //If decodedAudio is null, then the Opus decode failed, so throw away the packet.
-                                if (decodedAudio == null)
-                                {
-                                    LOG.trace("Received audio data but Opus failed to properly decode, instead it returned an error");
-                                }
-                                else
-                                {
-                                    if (receiveHandler.canReceiveUser())
-                                    {
-                                        receiveHandler.handleUserAudio(new UserAudio(userId, decodedAudio));
-                                    }
-                                    if (receiveHandler.canReceiveCombined())
-                                    {
-                                        Queue<Pair<Long, short[]>> queue = combinedQueue.get(userId);
-                                        if (queue == null)
-                                        {
-                                            queue = new ConcurrentLinkedQueue<>();
-                                            combinedQueue.put(userId, queue);
-                                        }
-                                        queue.add(Pair.<Long, short[]>of(System.currentTimeMillis(), decodedAudio));
-                                    }
-                                }
-                            }
-                            else if (couldReceive)
-                            {
-                                couldReceive = false;
-                                sendSilentPackets();
-                            }
-                        }
-                        catch (SocketTimeoutException e)
-                        {
-                            //Ignore. We set a low timeout so that we wont block forever so we can properly shutdown the loop.
-                        }
-                        catch (SocketException e)
-                        {
-                            //The socket was closed while we were listening for the next packet.
-                            //This is expected. Ignore the exception. The thread will exit during the next while
-                            // iteration because the udpSocket.isClosed() will return true.
-                        }
-                        catch (Exception e)
-                        {
-                            LOG.log(e);
-                        }
+                        LOG.log(e);
                     }
                 }
-            };
-            receiveThread.setDaemon(true);
-            receiveThread.start();
+            }
         }
+        finally
+        {
+            userAudio.release();
+        }
+    }
 
-        if (receiveHandler.canReceiveCombined())
+    private void queueCombinedAudio(UserAudio userAudio)
+    {
+        Queue<UserAudio> queue = combinedQueue.computeIfAbsent(userAudio.userId, id -> new ArrayBlockingQueue<>(COMBINED_QUEUE_CAPACITY));
+
+        userAudio.retain();
+        while (!queue.offer(userAudio))
         {
-            setupCombinedExecutor();
+            //The mixer isn't keeping up, drop the oldest audio of this user.
+            UserAudio dropped = queue.poll();
+            if (dropped != null)
+                dropped.release();
         }
     }
 
+    private void replayPendingPackets()
+    {
+        Integer ssrc;
+        while ((ssrc = mappedSsrcs.poll()) != null)
+        {
+            List<AudioReceiveHandler> handlers = receiveHandlers;
+            ActivityTracker tracker = activityTracker;
+            if ((canReceive(handlers) || tracker != null) && webSocket.getSecretKey() != null)
+                replayPendingPackets(ssrc, handlers, tracker);
+            else
+                discard(DiscardReason.UNKNOWN_SSRC, countPackets(pendingPackets.take(ssrc, System.currentTimeMillis())) + pendingPackets.drainDropped());
+        }
+    }
+
+    private void replayPendingPackets(int ssrc, List<AudioReceiveHandler> handlers, ActivityTracker tracker)
+    {
+        DatagramPacket[] packets = pendingPackets.take(ssrc, System.currentTimeMillis());
+        discard(DiscardReason.UNKNOWN_SSRC, pendingPackets.drainDropped());
+        if (packets == null)
+            return;
+
+        LOG.trace("Replaying " + packets.length + " audio packets received before SSRC " + ssrc + " was known.");
+        for (DatagramPacket packet : packets)
+        {
+            try
+            {
+                handleReceivedPacket(packet, handlers, tracker);
+            }
+            catch (Exception e)
+            {
+                LOG.log(e);
+            }
+        }
+    }
+
+    private void discard(DiscardReason reason, int count)
+    {
+        if (count > 0)
+            discardedPackets.addAndGet(reason.ordinal(), count);
+    }
+
+    private static int countPackets(DatagramPacket[] packets)
+    {
+        return packets == null ? 0 : packets.length;
+    }
+
     private synchronized void setupCombinedExecutor()
     {
-        if (combinedAudioExecutor == null)
+        if (combinedAudioTask == null)
         {
-            combinedAudioExecutor = Executors.newSingleThreadScheduledExecutor( r -> new Thread(r, threadIdentifier + " Combined Thread"));
-            combinedAudioExecutor.scheduleAtFixedRate(() ->
+            //Runs on the scheduler of the CoreRuntime, a fixed rate task never runs concurrently with itself.
+            combinedAudioTask = webSocket.keepAlivePool.scheduleAtFixedRate(() ->
             {
                 try
                 {
-                    List<String> users = new LinkedList<>();
-                    List<short[]> audioParts = new LinkedList<>();
-                    if (receiveHandler != null && receiveHandler.canReceiveCombined())
+                    List<AudioReceiveHandler> handlers = receiveHandlers;
+                    if (canReceiveCombined(handlers))
+                        mixCombinedAudio(handlers);
+                }
+                catch (Exception e)
+                {
+                    LOG.log(e);
+                }
+            }, 0, 20, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void mixCombinedAudio(List<AudioReceiveHandler> handlers)
+    {
+        long currentTime = System.currentTimeMillis();
+        for (Map.Entry<String, Queue<UserAudio>> entry : combinedQueue.entrySet())
+        {
+            Queue<UserAudio> queue = entry.getValue();
+            UserAudio audioData = queue.poll();
+            //Make sure the audio packet is younger than the queue timeout
+            while (audioData != null && currentTime - audioData.receivedTime > queueTimeout)
+            {
+                audioData.release();
+                audioData = queue.poll();
+            }
+
+            //If none of the audio packets were young enough, then there is nothing to add.
+            if (audioData == null)
+                continue;
+            mixUsers.add(entry.getKey());
+            mixParts.add(audioData);
+        }
+
+        //Handlers subscribed to every user that spoke can all share the same mix.
+        CombinedAudio fullMix = null;
+        try
+        {
+            for (AudioReceiveHandler handler : handlers)
+            {
+                if (!handler.canReceiveCombined())
+                    continue;
+
+                for (int i = 0; i < mixUsers.size(); i++)
+                {
+                    if (handler.canReceiveFrom(mixUsers.get(i)))
                     {
-                        long currentTime = System.currentTimeMillis();
-                        for (Map.Entry<String, Queue<Pair<Long, short[]>>> entry : combinedQueue.entrySet())
-                        {
-                            String user = entry.getKey();
-                            Queue<Pair<Long, short[]>> queue = entry.getValue();
-            
-                            if (queue.isEmpty())
-                                continue;
-            
-                            Pair<Long, short[]> audioData = queue.poll();
-                            //Make sure the audio packet is younger than 100ms
-                            while (audioData != null && currentTime - audioData.getLeft() > queueTimeout)
-                            {
-                                audioData = queue.poll();
-                            }
-            
-                            //If none of the audio packets were younger than 100ms, then there is nothing to add.
-                            if (audioData == null)
-                            {
-                                continue;
-                            }
-                            users.add(user);
-                            audioParts.add(audioData.getRight());
-                        }
-            
-                        if (!audioParts.isEmpty())
-                        {
-                            int audioLength = audioParts.get(0).length;
-                            short[] mix = new short[1920];  //960 PCM samples for each channelId
-                            int sample;
-                            for (int i = 0; i < audioLength; i++)
-                            {
-                                sample = 0;
-                                for (short[] audio : audioParts)
-                                {
-                                    sample += audio[i];
-                                }
-                                if (sample > Short.MAX_VALUE)
-                                    mix[i] = Short.MAX_VALUE;
-                                else if (sample < Short.MIN_VALUE)
-                                    mix[i] = Short.MIN_VALUE;
-                                else
-                                    mix[i] = (short) sample;
-                            }
-                            receiveHandler.handleCombinedAudio(new CombinedAudio(users, mix));
-                        }
-                        else
-                        {
-                            //No audio to mix, provide 20 MS of silence. (960 PCM samples for each channelId)
-                            receiveHandler.handleCombinedAudio(new CombinedAudio(Collections.emptyList(), new short[1920]));
-                        }
+                        handlerUsers.add(mixUsers.get(i));
+                        handlerParts.add(mixParts.get(i));
+                    }
+                }
+
+                CombinedAudio combinedAudio;
+                boolean shared = handlerUsers.size() == mixUsers.size();
+                if (shared)
+                {
+                    if (fullMix == null)
+                    {
+                        fullMix = combinedAudioPool.acquire();
+                        fullMix.mix(mixUsers, mixParts);
                     }
+                    combinedAudio = fullMix;
+                }
+                else
+                {
+                    combinedAudio = combinedAudioPool.acquire();
+                    combinedAudio.mix(handlerUsers, handlerParts);
+                }
+                handlerUsers.clear();
+                handlerParts.clear();
+
+                try
+                {
+                    handler.handleCombinedAudio(combinedAudio);
                 }
                 catch (Exception e)
                 {
                     LOG.log(e);
                 }
-            }, 0, 20, TimeUnit.MILLISECONDS);
+                finally
+                {
+                    if (!shared)
+                        combinedAudio.release();
+                }
+            }
+        }
+        finally
+        {
+            if (fullMix != null)
+                fullMix.release();
+            mixParts.forEach(UserAudio::release);
+            mixUsers.clear();
+            mixParts.clear();
+            handlerUsers.clear();
+            handlerParts.clear();
+        }
+    }
+
+    private static boolean canReceive(List<AudioReceiveHandler> handlers)
+    {
+        for (AudioReceiveHandler handler : handlers)
+        {
+            if (handler.canReceiveUser() || handler.canReceiveCombined() || handler.canReceiveEncoded())
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean canReceiveCombined(List<AudioReceiveHandler> handlers)
+    {
+        for (AudioReceiveHandler handler : handlers)
+        {
+            if (handler.canReceiveCombined())
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean needsDecoding(List<AudioReceiveHandler> handlers, String userId)
+    {
+        for (AudioReceiveHandler handler : handlers)
+        {
+            if ((handler.canReceiveUser() || handler.canReceiveCombined()) && handler.canReceiveFrom(userId))
+                return true;
+        }
+        return false;
+    }
+
+    //Does what the receiving thread does, for connections sharing their socket through an IUdpMultiplexer.
+    private class SharedReceiver implements IUdpMultiplexer.Receiver
+    {
+        @Override
+        public void receive(DatagramPacket packet)
+        {
+            replayPendingPackets();
+            onPacketReceived(packet);
+        }
+
+        @Override
+        public boolean accepts(int ssrc)
+        {
+            return ssrcMap.containsKey(ssrc);
+        }
+
+        @Override
+        public void tick(long now)
+        {
+            releaseIdleDecoders(now);
+            replayPendingPackets();
         }
     }
 
     private class PacketProvider implements IPacketProvider
     {
-        char seq = 0;           //Sequence of audio packets. Used to determine the order of the packets.
-        int timestamp = 0;      //Used to sync up our packets within the same timeframe of other people talking.
+        private final QosClass qosClass;
+
+        private PacketProvider(QosClass qosClass)
+        {
+            this.qosClass = qosClass;
+        }
+
+        @Override
+        public QosClass getQosClass()
+        {
+            return qosClass;
+        }
 
         @Override
         public String getIdentifier()
@@ -486,14 +1145,36 @@ public class AudioConnection
             return AudioConnection.this.udpSocket;
         }
 
+        @Override
+        public void sendPacket(DatagramPacket packet) throws IOException
+        {
+            webSocket.sendUdp(packet);
+        }
+
+        @Override
+        public boolean isUdpOpen()
+        {
+            return AudioConnection.this.isUdpOpen();
+        }
+
         @Override
         public DatagramPacket getNextPacket(boolean changeTalking)
+        {
+            synchronized (sendStateLock)
+            {
+                if (sendStateTakenOver)
+                    return null;
+                return buildNextPacket(changeTalking);
+            }
+        }
+
+        private DatagramPacket buildNextPacket(boolean changeTalking)
         {
             DatagramPacket nextPacket = null;
 
             try
             {
-                if (sentSilenceOnConnect && sendHandler != null && sendHandler.canProvide())
+                if (sentSilenceOnConnect && sendHandler != null && (takeProbedFrame() || sendHandler.canProvide()))
                 {
                     silenceCounter = -1;
                     byte[] rawAudio = sendHandler.provide20MsAudio();
@@ -548,6 +1229,12 @@ public class AudioConnection
             if (nextPacket != null)
                 timestamp += OPUS_FRAME_SIZE;
 
+            //Senders rarely allow changing the speaking state, so it can't tell whether we are idle.
+            if (nextPacket == null && silenceCounter == -1)
+                onSendIdle();
+            else
+                sendIdleSince = -1;
+
             return nextPacket;
         }
 
@@ -598,13 +1285,7 @@ public class AudioConnection
     private void setSpeaking(boolean isSpeaking)
     {
         this.speaking = isSpeaking;
-        JSONObject obj = new JSONObject()
-                .put("op", 5)
-                .put("d", new JSONObject()
-                        .put("speaking", isSpeaking)
-                        .put("delay", 0)
-                );
-        webSocket.send(obj.toString());
+        webSocket.send(VoiceGatewayCodec.speaking(isSpeaking));
         if (!isSpeaking)
             sendSilentPackets();
     }
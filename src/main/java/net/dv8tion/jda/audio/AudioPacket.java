@@ -31,16 +31,22 @@ public class AudioPacket
 {
     public static final int RTP_HEADER_BYTE_LENGTH = 12;
     public static final int XSALSA20_NONCE_LENGTH = 24;
+    public static final int XSALSA20_MAC_LENGTH = TweetNaclFast.SecretBox.overheadLength;
 
     /**
      * Bit index 0 and 1 represent the RTP Protocol version used. Discord uses the latest RTP protocol version, 2.<br>
      * Bit index 2 represents whether or not we pad. Opus uses an internal padding system, so RTP padding is not used.<br>
-     * Bit index 3 represents if we use extensions. Discord does not use RTP extensions.<br>
+     * Bit index 3 represents if we use extensions. We don't send RTP extensions, but Discord does use them for
+     *      packets it sends to us.<br>
      * Bit index 4 to 7 represent the CC or CSRC count. CSRC is Combined SSRC. Discord doesn't combine audio streams,
      *      so the Combined count will always be 0 (binary: 0000).<br>
      * This byte should always be the same, no matter the library implementation.
      */
     public static final byte RTP_VERSION_PAD_EXTEND = (byte) 0x80;  //Binary: 1000 0000
+    public static final int RTP_VERSION_MASK = 0xC0;                //Binary: 1100 0000
+    public static final int RTP_EXTENSION_BIT = 0x10;               //Binary: 0001 0000
+    public static final int RTP_CSRC_COUNT_MASK = 0x0F;             //Binary: 0000 1111
+    public static final int RTP_EXTENSION_HEADER_LENGTH = 4;        //2 bytes profile, 2 bytes length in 32bit words
 
     /**
      * This is Discord's RTP Profile Payload type.<br>
@@ -49,6 +55,15 @@ public class AudioPacket
      */
     public static final byte RTP_PAYLOAD_TYPE = (byte) 0x78;        //Binary: 0100 1000
 
+    /**
+     * RTCP packets share the UDP socket with the RTP audio packets. Their packet type is in the same position as
+     * the RTP marker bit and payload type, and is always between 200 (Sender Report) and 204 (Application Defined),
+     * which does not overlap with RTP payload types in use (RFC 5761).
+     */
+    public static final int RTCP_PACKET_TYPE_MIN = 200;
+    public static final int RTCP_PACKET_TYPE_MAX = 204;
+    public static final int RTP_PAYLOAD_TYPE_MASK = 0x7F;           //Strips the marker bit.
+
     public static final int RTP_VERSION_PAD_EXTEND_INDEX =  0;
     public static final int RTP_PAYLOAD_INDEX =             1;
     public static final int SEQ_INDEX =                     2;
@@ -166,20 +181,108 @@ public class AudioPacket
         return new AudioPacket(buffer.array());
     }
 
-    public static AudioPacket decryptAudioPacket(DatagramPacket packet, byte[] secretKey)
+    /**
+     * Reads the SSRC of a received packet directly from its RTP header. The header is not encrypted, so this can
+     * be used to decide whether a packet is worth decrypting at all.
+     *
+     * @param  packet
+     *         The received, still encrypted, packet.
+     *
+     * @return The SSRC of the packet.
+     */
+    public static int getSSRC(DatagramPacket packet)
     {
-        TweetNaclFast.SecretBox boxer = new TweetNaclFast.SecretBox(secretKey);
-        AudioPacket encryptedPacket = new AudioPacket(packet);
+        return ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()).getInt(packet.getOffset() + SSRC_INDEX);
+    }
 
-        byte[] extendedNonce = new byte[XSALSA20_NONCE_LENGTH];
-        System.arraycopy(encryptedPacket.getNonce(), 0, extendedNonce, 0, RTP_HEADER_BYTE_LENGTH);
+    /**
+     * Checks whether a received packet is an RTP audio packet that is worth decrypting. This only looks at the
+     * unencrypted header, so it can be used to cheaply reject RTCP and other packets we can't use.
+     *
+     * @param  packet
+     *         The received, still encrypted, packet.
+     *
+     * @return Possibly-null reason for which the packet can't be used. Null if the packet looks like usable audio.
+     */
+    public static DiscardReason checkReceivedPacket(DatagramPacket packet)
+    {
+        byte[] data = packet.getData();
+        int offset = packet.getOffset();
+        int length = packet.getLength();
+        //The constant is a signed byte, so it has to be masked like the received byte to compare as an int.
+        if (length < 2 || (data[offset] & RTP_VERSION_MASK) != (RTP_VERSION_PAD_EXTEND & RTP_VERSION_MASK))
+            return DiscardReason.MALFORMED;
+
+        int type = data[offset + RTP_PAYLOAD_INDEX] & 0xFF;
+        if (type >= RTCP_PACKET_TYPE_MIN && type <= RTCP_PACKET_TYPE_MAX)
+            return DiscardReason.RTCP;
+        if ((type & RTP_PAYLOAD_TYPE_MASK) != RTP_PAYLOAD_TYPE)
+            return DiscardReason.UNSUPPORTED_PAYLOAD_TYPE;
+
+        if (length < RTP_HEADER_BYTE_LENGTH || length < getHeaderLength(packet) + XSALSA20_MAC_LENGTH)
+            return DiscardReason.MALFORMED;
+        return null;
+    }
+
+    /**
+     * The length of the unencrypted RTP header of a received packet, including the CSRC list.
+     *
+     * @param  packet
+     *         The received, still encrypted, packet.
+     *
+     * @return The offset at which the encrypted part of the packet begins.
+     */
+    public static int getHeaderLength(DatagramPacket packet)
+    {
+        return RTP_HEADER_BYTE_LENGTH + (packet.getData()[packet.getOffset()] & RTP_CSRC_COUNT_MASK) * 4;
+    }
 
-        byte[] decryptedAudio = boxer.open(encryptedPacket.getEncodedAudio(), extendedNonce);
-        byte[] decryptedRawPacket = new byte[RTP_HEADER_BYTE_LENGTH + decryptedAudio.length];
+    /**
+     * Decrypts a received packet that passed {@link #checkReceivedPacket(DatagramPacket)}.
+     * <br>Discord encrypts the RTP header extension, if there is one, together with the audio, so it is
+     * removed after decryption. The returned packet only contains the 12 byte RTP header and the Opus audio.
+     *
+     * @param  packet
+     *         The received, still encrypted, packet.
+     * @param  secretKey
+     *         The secret key of the connection.
+     *
+     * @return Possibly-null decrypted packet. Null if the packet couldn't be decrypted with the provided key
+     *         or its RTP header extension was malformed.
+     */
+    public static AudioPacket decryptAudioPacket(DatagramPacket packet, byte[] secretKey)
+    {
+        byte[] data = packet.getData();
+        int offset = packet.getOffset();
+        int headerLength = getHeaderLength(packet);
+        boolean hasExtension = (data[offset] & RTP_EXTENSION_BIT) != 0;
 
-        System.arraycopy(encryptedPacket.getNonce(), 0, decryptedRawPacket, 0, RTP_HEADER_BYTE_LENGTH);
-        System.arraycopy(decryptedAudio, 0, decryptedRawPacket, RTP_HEADER_BYTE_LENGTH, decryptedAudio.length);
+        //The nonce is always just the first 12 bytes, even if a CSRC list follows them.
+        byte[] extendedNonce = new byte[XSALSA20_NONCE_LENGTH];
+        System.arraycopy(data, offset, extendedNonce, 0, RTP_HEADER_BYTE_LENGTH);
 
+        TweetNaclFast.SecretBox boxer = new TweetNaclFast.SecretBox(secretKey);
+        byte[] decryptedAudio = boxer.open(data, offset + headerLength, packet.getLength() - headerLength, extendedNonce);
+        if (decryptedAudio == null)
+            return null;
+
+        int audioOffset = 0;
+        if (hasExtension)
+        {
+            if (decryptedAudio.length < RTP_EXTENSION_HEADER_LENGTH)
+                return null;
+            int extensionLength = ((decryptedAudio[2] & 0xFF) << 8) | (decryptedAudio[3] & 0xFF);
+            audioOffset = RTP_EXTENSION_HEADER_LENGTH + extensionLength * 4;
+            if (audioOffset > decryptedAudio.length)
+                return null;
+        }
+
+        byte[] decryptedRawPacket = new byte[RTP_HEADER_BYTE_LENGTH + decryptedAudio.length - audioOffset];
+        System.arraycopy(data, offset, decryptedRawPacket, 0, RTP_HEADER_BYTE_LENGTH);
+        System.arraycopy(decryptedAudio, audioOffset, decryptedRawPacket, RTP_HEADER_BYTE_LENGTH, decryptedAudio.length - audioOffset);
+
+        //The CSRC list and extension are gone, so the header has to say so too.
+        decryptedRawPacket[RTP_VERSION_PAD_EXTEND_INDEX] = RTP_VERSION_PAD_EXTEND;
         return new AudioPacket(decryptedRawPacket);
     }
 }
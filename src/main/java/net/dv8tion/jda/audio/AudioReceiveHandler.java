@@ -43,6 +43,39 @@ public interface AudioReceiveHandler
      */
     boolean canReceiveUser();
 
+    /**
+     * If this method returns true, then JDA will provide the decrypted, but still Opus encoded, audio data to the
+     * {@link #handleEncodedAudio(OpusPacket)} method.
+     * <br>If no registered handler needs PCM audio for a user, JDA will not decode the audio of that user at all.
+     *
+     * @return If true, JDA provides userId specific Opus audio data.
+     *         <br>Default - False.
+     */
+    default boolean canReceiveEncoded()
+    {
+        return false;
+    }
+
+    /**
+     * Used to limit received audio to a subset of the users in the channel. JDA checks this using the SSRC found in the
+     * unencrypted RTP header, so audio from users for which this returns false is dropped <b>before</b> it is decrypted
+     * or decoded. Such audio is neither provided to {@link #handleUserAudio(UserAudio)} nor mixed into the data
+     * provided to {@link #handleCombinedAudio(CombinedAudio)}.
+     * <p>
+     * This is checked for every received packet, so it should be cheap to evaluate (for example a lookup in a
+     * concurrent set of userIds) and may change its answer at runtime.
+     *
+     * @param  userId
+     *         The id of the user that sent the audio.
+     *
+     * @return If true, JDA will process the audio sent by this userId.
+     *         <br>Default - True for every userId.
+     */
+    default boolean canReceiveFrom(String userId)
+    {
+        return true;
+    }
+
     /**
      * If {@link #canReceiveCombined()} returns true, JDA will provide a {@link net.dv8tion.jda.core.audio.CombinedAudio CombinedAudio}
      * object to this method <b>every 20 milliseconds</b>. The data provided by CombinedAudio is all audio that occurred
@@ -58,6 +91,9 @@ public interface AudioReceiveHandler
      * <p>
      * Output audio format: 48KHz 16bit stereo signed BigEndian PCM
      * <br>and is defined by: {@link net.dv8tion.jda.core.audio.AudioReceiveHandler#OUTPUT_FORMAT AudioRecieveHandler.OUTPUT_FORMAT}
+     * <p>
+     * The provided object is pooled and only valid until this method returns. Use {@link CombinedAudio#retain()} to keep it
+     * for longer, and {@link CombinedAudio#release()} it once done.
      *
      * @param  combinedAudio
      *         The combined audio data.
@@ -81,9 +117,25 @@ public interface AudioReceiveHandler
      * <p>
      * Output audio format: 48KHz 16bit stereo signed BigEndian PCM
      * <br>and is defined by: {@link net.dv8tion.jda.core.audio.AudioReceiveHandler#OUTPUT_FORMAT AudioRecieveHandler.OUTPUT_FORMAT}
+     * <p>
+     * The provided object is pooled and only valid until this method returns. Use {@link UserAudio#retain()} to keep it
+     * for longer, and {@link UserAudio#release()} it once done.
      *
      * @param  userAudio
      *         The userId audio data
      */
     void handleUserAudio(UserAudio userAudio);
+
+    /**
+     * If {@link #canReceiveEncoded()} returns true, JDA will provide an {@link net.dv8tion.jda.audio.OpusPacket OpusPacket}
+     * to this method <b>every time the userId speaks</b>, before any decoding takes place.
+     * <p>
+     * This is useful when the audio is going to be stored or forwarded as Opus anyway, as it avoids the cost of
+     * decoding the audio to PCM. Packets are provided in the order they were received and are not checked for
+     * ordering or loss, see {@link OpusPacket#getSequence()}.
+     *
+     * @param  packet
+     *         The Opus encoded audio data of the userId
+     */
+    default void handleEncodedAudio(OpusPacket packet) {}
 }
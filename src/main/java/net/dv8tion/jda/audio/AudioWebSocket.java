@@ -16,11 +16,16 @@
 
 package net.dv8tion.jda.audio;
 
-import com.neovisionaries.ws.client.*;
 import net.dv8tion.jda.Core;
+import net.dv8tion.jda.audio.factory.DefaultVoiceTransportFactory;
+import net.dv8tion.jda.audio.factory.IUdpMultiplexer;
+import net.dv8tion.jda.audio.factory.IVoiceTransport;
+import net.dv8tion.jda.audio.factory.IVoiceTransportFactory;
+import net.dv8tion.jda.audio.factory.IVoiceTransportListener;
 import net.dv8tion.jda.audio.hooks.ConnectionListener;
 import net.dv8tion.jda.audio.hooks.ConnectionStatus;
 import net.dv8tion.jda.manager.AudioManager;
+import net.dv8tion.jda.utils.HashedWheelTimer;
 import net.dv8tion.jda.utils.SimpleLog;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -28,16 +33,15 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
-public class AudioWebSocket extends WebSocketAdapter
+public class AudioWebSocket implements IVoiceTransportListener
 {
     public static final SimpleLog LOG = SimpleLog.getLog("JDAAudioSocket");
     public static final int DISCORD_SECRET_KEY_LENGTH = 32;
@@ -46,10 +50,26 @@ public class AudioWebSocket extends WebSocketAdapter
     public static final int HEARTBEAT_PING_RETURN = 3;
     public static final int CONNECTING_COMPLETED = 4;
     public static final int USER_SPEAKING_UPDATE = 5;
+    public static final int RESUME = 7;
     public static final int HEARTBEAT_START = 8;
+    public static final int RESUMED = 9;
+    public static final int USER_DISCONNECT = 13;
+
+    public static final long RESUME_TIMEOUT = 5000;
+
+    public static IVoiceTransportFactory transportFactory = new DefaultVoiceTransportFactory();
+
+    //Close codes after which the voice session can't be resumed.
+    public static final int CLOSE_AUTHENTICATION_FAILED = 4004;
+    public static final int CLOSE_SESSION_NO_LONGER_VALID = 4006;
+    public static final int CLOSE_SESSION_TIMEOUT = 4009;
+    public static final int CLOSE_DISCONNECTED = 4014;
+    public static final int CLOSE_VOICE_SERVER_CRASHED = 4015;
+    public static final int CLOSE_GOING_AWAY = 1001;
+    public static final int CLOSE_ABNORMAL = 1006;
 
     protected final ConnectionListener listener;
-    protected final ScheduledThreadPoolExecutor keepAlivePool;
+    protected final ScheduledExecutorService keepAlivePool;
     protected AudioConnection audioConnection;
     protected ConnectionStatus connectionStatus = ConnectionStatus.NOT_CONNECTED;
 
@@ -60,17 +80,23 @@ public class AudioWebSocket extends WebSocketAdapter
     private final String token;
     private boolean connected = false;
     private boolean ready = false;
-    private boolean shutdown;
-    private Runnable keepAliveRunnable;
+    private volatile boolean shutdown;
+    private volatile boolean resuming = false;
+    private ScheduledFuture<?> resumeTimeout;
+    private HashedWheelTimer.Timeout keepAlive;
+    private volatile long ping = -1;
     private String wssEndpoint;
     private boolean shouldReconnect;
 
     private int ssrc;
     private byte[] secretKey;
     private DatagramSocket udpSocket;
+    //Set if the runtime shares its UDP sockets, udpSocket is then the shared socket (or null) and must not be closed by us.
+    private volatile IUdpMultiplexer.Registration udpRegistration;
     private InetSocketAddress address;
+    private long udpDiscoveryTime = -1;
 
-    public WebSocket socket;
+    public volatile IVoiceTransport socket;
 
     public AudioWebSocket(ConnectionListener listener, String endpoint, Core core, String guildId, String sessionId, String token, boolean shouldReconnect)
     {
@@ -94,33 +120,63 @@ public class AudioWebSocket extends WebSocketAdapter
             throw new IllegalArgumentException("Cannot create a voice connection using a null/empty token!");
     }
 
+    public static void setTransportFactory(IVoiceTransportFactory factory)
+    {
+        if (factory == null)
+            throw new IllegalArgumentException("Transport factory is null!");
+
+        transportFactory = factory;
+    }
+
     public void send(String message)
     {
         socket.sendText(message);
     }
 
     @Override
-    public void onConnected(WebSocket websocket, Map<String, List<String>> headers)
-    {
-        JSONObject connectObj = new JSONObject()
-                .put("op", 0)
-                .put("d", new JSONObject()
-                        .put("server_id", guildId)
-                        .put("user_id", core.getUserId())
-                        .put("session_id", sessionId)
-                        .put("token", token)
-                );
-        send(connectObj.toString());
+    public void onConnected(IVoiceTransport transport)
+    {
+        if (resuming)
+        {
+            send(VoiceGatewayCodec.resume(guildId, sessionId, token));
+            return;
+        }
+
+        send(VoiceGatewayCodec.identify(guildId, core.getUserId(), sessionId, token));
         connected = true;
         changeStatus(ConnectionStatus.CONNECTING_AWAITING_AUTHENTICATING);
     }
 
     @Override
-    public void onTextMessage(WebSocket websocket, String message)
+    public void onTextMessage(IVoiceTransport transport, String message)
     {
-        JSONObject contentAll = new JSONObject(message);
-        int opCode = contentAll.getInt("op");
+        //Heartbeat acknowledgements and hellos never reach the full parse, the other messages need it.
+        int opCode = VoiceGatewayCodec.scanOp(message);
+        switch (opCode)
+        {
+            case HEARTBEAT_START:
+            {
+                return;
+            }
+            case HEARTBEAT_PING_RETURN:
+            {
+                long timePingSent = VoiceGatewayCodec.scanLongPayload(message);
+                if (timePingSent < 0)
+                {
+                    LOG.debug("Ignoring a heartbeat acknowledgement without a nonce: " + message);
+                    return;
+                }
+                long ping = System.currentTimeMillis() - timePingSent;
+                this.ping = ping;
+                listener.onPing(ping);
+                return;
+            }
+            default:
+                break;
+        }
 
+        JSONObject contentAll = new JSONObject(message);
+        opCode = contentAll.getInt("op");
         switch(opCode)
         {
             case INITIAL_CONNECTION_RESPONSE:
@@ -130,47 +186,20 @@ public class AudioWebSocket extends WebSocketAdapter
                 int port = content.getInt("port");
                 int heartbeatInterval = content.getInt("heartbeat_interval");
 
-                //Find our external IP and Port using Discord
-                InetSocketAddress externalIpAndPort = null;
-
+                //Find our external IP and Port using Discord, without blocking the websocket reading thread.
                 changeStatus(ConnectionStatus.CONNECTING_ATTEMPTING_UDP_DISCOVERY);
-                int tries = 0;
-                do
+                discoverUdp(new InetSocketAddress(endpoint, port)).whenComplete((result, error) ->
                 {
-                    externalIpAndPort = handleUdpDiscovery(new InetSocketAddress(endpoint, port), ssrc);
-                    tries++;
-                    if (externalIpAndPort == null && tries > 5)
+                    if (error != null)
                     {
+                        LOG.warn("UDP discovery failed: " + error.getMessage());
                         close(ConnectionStatus.ERROR_UDP_UNABLE_TO_CONNECT);
-                        return;
                     }
-                } while (externalIpAndPort == null);
-
-                send(new JSONObject()
-                        .put("op", 1)
-                        .put("d", new JSONObject()
-                            .put("protocol", "udp")
-                            .put("data", new JSONObject()
-                                .put("address", externalIpAndPort.getHostString())
-                                .put("port", externalIpAndPort.getPort())
-                                .put("mode", "xsalsa20_poly1305")   //Discord requires encryption
-                            )
-                        )
-                        .toString());
-
-                setupKeepAlive(heartbeatInterval);
-                changeStatus(ConnectionStatus.CONNECTING_AWAITING_READY);
-                break;
-            }
-            case HEARTBEAT_START:
-            {
-                break;
-            }
-            case HEARTBEAT_PING_RETURN:
-            {
-                long timePingSent  = contentAll.getLong("d");
-                long ping = System.currentTimeMillis() - timePingSent;
-                listener.onPing(ping);
+                    else
+                    {
+                        handleUdpDiscovery(result, heartbeatInterval);
+                    }
+                });
                 break;
             }
             case CONNECTING_COMPLETED:
@@ -184,6 +213,27 @@ public class AudioWebSocket extends WebSocketAdapter
 
                 LOG.trace("Audio connection has finished connecting!");
                 ready = true;
+                core.getConnectionManager().getHandshakeAdmission().release(this);
+                if (audioConnection.onReady())
+                {
+                    //If this connection replaces one to the previous voice server, this switches over to it.
+                    core.getAudioManager(guildId).completeRegionMigration(audioConnection);
+                    changeStatus(ConnectionStatus.CONNECTED);
+                }
+                break;
+            }
+            case RESUMED:
+            {
+                LOG.debug("Resumed the audio connection of guild " + guildId);
+                synchronized (this)
+                {
+                    resuming = false;
+                    if (resumeTimeout != null)
+                    {
+                        resumeTimeout.cancel(false);
+                        resumeTimeout = null;
+                    }
+                }
                 changeStatus(ConnectionStatus.CONNECTED);
                 break;
             }
@@ -198,6 +248,13 @@ public class AudioWebSocket extends WebSocketAdapter
                 listener.onUserSpeaking(userId, speaking);
                 break;
             }
+            case USER_DISCONNECT:
+            {
+                //A user left the voice channel, their SSRC and decoding state won't be used again.
+                String userId = contentAll.getJSONObject("d").getString("user_id");
+                audioConnection.removeUser(userId);
+                break;
+            }
             default:
                 LOG.debug("Unknown Audio OP code.\n" + contentAll.toString(4));
         }
@@ -205,20 +262,34 @@ public class AudioWebSocket extends WebSocketAdapter
 
 
     @Override
-    public void onDisconnected(WebSocket websocket, WebSocketFrame serverCloseFrame, WebSocketFrame clientCloseFrame, boolean closedByServer)
+    public void onDisconnected(IVoiceTransport transport, int serverCloseCode, String serverCloseReason, int clientCloseCode, boolean closedByServer)
     {
+        //Only the current websocket matters, a replaced one is closing after a resume.
+        if (transport != socket)
+            return;
+
         LOG.debug("The Audio connection was closed!");
         LOG.debug("By remote? " + closedByServer);
-        if (serverCloseFrame != null)
+        if (serverCloseCode != NO_CLOSE_CODE)
         {
-            LOG.debug("Reason: " + serverCloseFrame.getCloseReason());
-            LOG.debug("Close code: " + serverCloseFrame.getCloseCode());
+            LOG.debug("Reason: " + serverCloseReason);
+            LOG.debug("Close code: " + serverCloseCode);
         }
-        if (clientCloseFrame != null)
+        if (canResume(serverCloseCode))
         {
-            LOG.debug("ClientReason: " + clientCloseFrame.getCloseReason());
-            LOG.debug("ClientCode: " + clientCloseFrame.getCloseCode());
-            if (clientCloseFrame.getCloseCode() != 1000)
+            resume();
+            return;
+        }
+        if (resuming)
+        {
+            //The resume was rejected, fall back to a full reconnect.
+            this.close(ConnectionStatus.ERROR_LOST_CONNECTION);
+            return;
+        }
+        if (clientCloseCode != NO_CLOSE_CODE)
+        {
+            LOG.debug("ClientCode: " + clientCloseCode);
+            if (clientCloseCode != 1000)
                 this.close(ConnectionStatus.ERROR_LOST_CONNECTION);
         }
         else
@@ -226,45 +297,25 @@ public class AudioWebSocket extends WebSocketAdapter
     }
 
     @Override
-    public void onUnexpectedError(WebSocket websocket, WebSocketException cause)
-    {
-        handleCallbackError(websocket, cause);
-    }
-
-    @Override
-    public void handleCallbackError(WebSocket websocket, Throwable cause)
+    public void onError(IVoiceTransport transport, Throwable cause)
     {
         LOG.log(cause);
     }
 
     @Override
-    public void onThreadCreated(WebSocket websocket, ThreadType threadType, Thread thread) throws Exception
+    public void onConnectError(IVoiceTransport transport, Throwable e)
     {
-        String identifier = "JDA-Audio";
-        String guildId = this.guildId;
-        switch (threadType)
+        if (transport != socket)
+            return;
+        if (resuming)
         {
-            case CONNECT_THREAD:
-                thread.setName(identifier + " AudioWS-ConnectThread (guildId: " + guildId + ')');
-                break;
-            case FINISH_THREAD:
-                thread.setName(identifier + " AudioWS-FinishThread (guildId: " + guildId + ')');
-                break;
-            case WRITING_THREAD:
-                thread.setName(identifier + " AudioWS-WriteThread (guildId: " + guildId + ')');
-                break;
-            case READING_THREAD:
-                thread.setName(identifier + " AudioWS-ReadThread (guildId: " + guildId + ')');
-                break;
-            default:
-                thread.setName(identifier + " AudioWS-" + threadType + " (guildId: " + guildId + ')');
+            LOG.warn("Failed to resume the audio connection: " + e
+                    + "\nClosing connection and attempting to reconnect.");
+            this.close(ConnectionStatus.ERROR_LOST_CONNECTION);
+            return;
         }
-    }
 
-    @Override
-    public void onConnectError(WebSocket webSocket, WebSocketException e)
-    {
-        LOG.warn("Failed to establish websocket connection: " + e.getError() + " - " + e.getMessage()
+        LOG.warn("Failed to establish websocket connection: " + e
                 + "\nClosing connection and attempting to reconnect.");
         this.close(ConnectionStatus.ERROR_WEBSOCKET_UNABLE_TO_CONNECT);
     }
@@ -273,14 +324,18 @@ public class AudioWebSocket extends WebSocketAdapter
     {
         if (socket != null)
             throw new RuntimeException("Somehow, someway, this AudioWebSocket has already attempted to start a connection!");
+        if (shutdown)
+            return;
+
+        //The connect timeout only covers the handshake itself, not the time spent waiting to be admitted.
+        if (audioConnection != null)
+            audioConnection.startReadyTimeout();
 
         try
         {
-            socket = new WebSocketFactory()
-                    .createSocket(wssEndpoint)
-                    .addListener(this);
+            socket = transportFactory.createTransport(wssEndpoint, "guildId: " + guildId, this);
             changeStatus(ConnectionStatus.CONNECTING_AWAITING_WEBSOCKET_CONNECT);
-            socket.connectAsynchronously();
+            socket.connect();
         }
         catch (IOException e)
         {
@@ -290,6 +345,53 @@ public class AudioWebSocket extends WebSocketAdapter
         }
     }
 
+    private boolean canResume(int closeCode)
+    {
+        //Only an established session can be resumed, and a drop while resuming falls back to a full reconnect.
+        //If we closed the websocket ourselves, shutdown is already set.
+        if (shutdown || !ready || resuming || secretKey == null)
+            return false;
+
+        //Only drops that leave the session intact are resumed, anything else needs a new session.
+        switch (closeCode)
+        {
+            case NO_CLOSE_CODE:     //The connection dropped without a close frame.
+            case CLOSE_GOING_AWAY:
+            case CLOSE_ABNORMAL:
+            case CLOSE_VOICE_SERVER_CRASHED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private synchronized void resume()
+    {
+        //The UDP socket, SSRC, secret key and the state of the AudioConnection are all kept, only the websocket is replaced.
+        LOG.debug("Attempting to resume the audio connection of guild " + guildId);
+        resuming = true;
+        changeStatus(ConnectionStatus.CONNECTING_AWAITING_RESUME);
+        try
+        {
+            socket = transportFactory.createTransport(wssEndpoint, "guildId: " + guildId, this);
+            socket.connect();
+            resumeTimeout = keepAlivePool.schedule(() ->
+            {
+                if (resuming)
+                {
+                    LOG.warn("Resuming the audio connection timed out. Closing connection and attempting to reconnect.");
+                    close(ConnectionStatus.ERROR_LOST_CONNECTION);
+                }
+            }, RESUME_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch (IOException | RejectedExecutionException e)
+        {
+            LOG.warn("Could not resume the audio connection: " + e.getMessage()
+                    + "\nClosing connection and attempting to reconnect.");
+            close(ConnectionStatus.ERROR_LOST_CONNECTION);
+        }
+    }
+
     public void close(ConnectionStatus closeStatus)
     {
         //Makes sure we don't run this method again after the socket.close(1000) call fires onDisconnect
@@ -298,40 +400,58 @@ public class AudioWebSocket extends WebSocketAdapter
         connected = false;
         ready = false;
         shutdown = true;
-        if (closeStatus != ConnectionStatus.AUDIO_REGION_CHANGE)
+        AudioManager manager = core.getAudioManager(guildId);
+        //A replacement for a connection to a voice server that is going away failed, so the old one is closed
+        // and reconnected from scratch. This connection was never in use, so it has nothing else to report.
+        boolean migrationFailed = manager.abortRegionMigration(audioConnection);
+        if (migrationFailed)
+            LOG.warn("Failed to migrate the audio connection to the new voice server: " + closeStatus);
+        //The connection replacing this one takes over once it is ready, so losing this one early isn't a disconnect.
+        boolean handedOver = !migrationFailed && closeStatus != ConnectionStatus.AUDIO_REGION_CHANGE
+                && manager.handOverToRegionMigration(audioConnection);
+        if (handedOver)
+            LOG.debug("Audio connection closed during a region migration, the new connection takes over: " + closeStatus);
+        synchronized (this)
         {
-            JSONObject obj = new JSONObject()
-                .put("op", 4)
-                .put("d", new JSONObject()
-                    .put("guild_id", guildId)
-                    .put("channel_id", JSONObject.NULL)
-                    .put("self_mute", false)
-                    .put("self_deaf", false)
-                );
-            core.getClient().sendWS(obj.toString());
+            resuming = false;
+            if (resumeTimeout != null)
+            {
+                resumeTimeout.cancel(false);
+                resumeTimeout = null;
+            }
         }
-        if (keepAliveRunnable != null)
+        core.getConnectionManager().getHandshakeAdmission().release(this);
+        if (closeStatus != ConnectionStatus.AUDIO_REGION_CHANGE && !migrationFailed && !handedOver)
+            core.getConnectionManager().queueAudioDisconnect(guildId);
+        if (keepAlive != null)
         {
-            keepAlivePool.remove(keepAliveRunnable);
-            keepAliveRunnable = null;
+            keepAlive.cancel();
+            keepAlive = null;
         }
 
         if (audioConnection != null)
             audioConnection.shutdown();
-        if (udpSocket != null)
+        if (udpRegistration != null)
+            udpRegistration.close();
+        else if (udpSocket != null)
             udpSocket.close();
-        if (socket != null && socket.isOpen())
-            socket.sendClose(1000);
+        if (socket != null)
+            socket.close(1000);
+
+        if (migrationFailed || handedOver)
+            return;
 
+        //After a region migration the manager already uses the replacing connection, leave it alone.
+        boolean active = manager.getAudioConnection() == audioConnection;
         String disconnectedChannelId;
-        AudioManager manager = core.getAudioManager(guildId);
 
         if (manager.isConnected())
             disconnectedChannelId = manager.getConnectedChannel();
         else
             disconnectedChannelId = manager.getQueuedAudioConnectionId();
 
-        manager.setAudioConnection(null);
+        if (active)
+            manager.setAudioConnection(null);
 
         //Verify that it is actually a lost of connection and not due the connected channel being deleted.
         if (closeStatus == ConnectionStatus.ERROR_LOST_CONNECTION)
@@ -354,21 +474,60 @@ public class AudioWebSocket extends WebSocketAdapter
 
         //decide if we reconnect.
         if (shouldReconnect
+                && active
                 && closeStatus != ConnectionStatus.NOT_CONNECTED    //indicated that the connection was purposely closed. don't reconnect.
                 && closeStatus != ConnectionStatus.DISCONNECTED_CHANNEL_DELETED
                 && closeStatus != ConnectionStatus.DISCONNECTED_REMOVED_FROM_GUILD
                 && closeStatus != ConnectionStatus.AUDIO_REGION_CHANGE) //Already handled.
         {
+            //Backed off with jitter, so guilds that lost their connection together don't all reconnect together.
             manager.setQueuedAudioConnectionId(disconnectedChannelId);
-            core.getConnectionManager().queueAudioConnect(guildId, disconnectedChannelId);
+            core.getConnectionManager().queueAudioConnect(guildId, disconnectedChannelId, manager.nextReconnectDelay());
         }
     }
 
+    public Core getCore()
+    {
+        return core;
+    }
+
     public DatagramSocket getUdpSocket()
     {
         return udpSocket;
     }
 
+    public IUdpMultiplexer.Registration getUdpRegistration()
+    {
+        return udpRegistration;
+    }
+
+    public boolean isUdpOpen()
+    {
+        IUdpMultiplexer.Registration registration = udpRegistration;
+        if (registration != null)
+            return !registration.isClosed();
+        DatagramSocket udpSocket = this.udpSocket;
+        return udpSocket != null && !udpSocket.isClosed();
+    }
+
+    /**
+     * Sends a packet to the voice server, through the shared socket if this connection uses one.
+     *
+     * @param  packet
+     *         The packet to send.
+     *
+     * @throws IOException
+     *         If the packet could not be sent.
+     */
+    public void sendUdp(DatagramPacket packet) throws IOException
+    {
+        IUdpMultiplexer.Registration registration = udpRegistration;
+        if (registration != null)
+            registration.send(packet);
+        else
+            udpSocket.send(packet);
+    }
+
     public InetSocketAddress getAddress()
     {
         return address;
@@ -379,6 +538,16 @@ public class AudioWebSocket extends WebSocketAdapter
         return Arrays.copyOf(secretKey, secretKey.length);
     }
 
+    /**
+     * The time the UDP discovery of this connection took.
+     *
+     * @return The time in milliseconds, -1 if the discovery didn't complete.
+     */
+    public long getUdpDiscoveryTime()
+    {
+        return udpDiscoveryTime;
+    }
+
     public int getSSRC()
     {
         return ssrc;
@@ -392,94 +561,122 @@ public class AudioWebSocket extends WebSocketAdapter
         return ready;
     }
 
-    private InetSocketAddress handleUdpDiscovery(InetSocketAddress address, int ssrc)
+    /**
+     * The time between the last heartbeat and its acknowledgement.
+     *
+     * @return The ping in milliseconds, -1 if no heartbeat was acknowledged yet.
+     */
+    public long getPing()
+    {
+        return ping;
+    }
+
+    public boolean isShutdown()
     {
-        //We will now send a packet to discord to punch a port hole in the NAT wall.
-        //This is called UDP hole punching.
+        return shutdown;
+    }
+
+    private void handleUdpDiscovery(UdpDiscovery.Result result, int heartbeatInterval)
+    {
+        //Closed while discovering, the channel isn't needed anymore.
+        if (shutdown)
+        {
+            closeUdp(result);
+            return;
+        }
+
+        this.udpDiscoveryTime = result.getTime();
+        this.address = result.getServerAddress();
         try
         {
-            udpSocket = new DatagramSocket();   //Use UDP, not TCP.
-
-            //Create a byte array of length 70 containing our ssrc.
-            ByteBuffer buffer = ByteBuffer.allocate(70);    //70 taken from https://github.com/Rapptz/discord.py/blob/async/discord/voice_client.py#L208
-            buffer.putInt(ssrc);                            //Put the ssrc that we were given into the packet to send back to discord.
-
-            //Construct our packet to be sent loaded with the byte buffer we store the ssrc in.
-            DatagramPacket discoveryPacket = new DatagramPacket(buffer.array(), buffer.array().length, address);
-            udpSocket.send(discoveryPacket);
-
-            //Discord responds to our packet, returning a packet containing our external ip and the port we connected through.
-            DatagramPacket receivedPacket = new DatagramPacket(new byte[70], 70);   //Give a buffer the same size as the one we sent.
-            udpSocket.setSoTimeout(1000);
-            udpSocket.receive(receivedPacket);
-
-            //The byte array returned by discord containing our external ip and the port that we used
-            //to connect to discord with.
-            byte[] received = receivedPacket.getData();
-
-            //Example string:"   121.83.253.66                                                   ��"
-            //You'll notice that there are 4 leading nulls and a large amount of nulls between the the ip and
-            // the last 2 bytes. Not sure why these exist.  The last 2 bytes are the port. More info below.
-            String ourIP = new String(receivedPacket.getData());//Puts the entire byte array in. nulls are converted to spaces.
-            ourIP = ourIP.substring(0, ourIP.length() - 2); //Removes the port that is stuck on the end of this string. (last 2 bytes are the port)
-            ourIP = ourIP.trim();                           //Removes the extra whitespace(nulls) attached to both sides of the IP
-
-            //The port exists as the last 2 bytes in the packet data, and is encoded as an UNSIGNED short.
-            //Furthermore, it is stored in Little Endian instead of normal Big Endian.
-            //We will first need to convert the byte order from Little Endian to Big Endian (reverse the order)
-            //Then we will need to deal with the fact that the bytes represent an unsigned short.
-            //Java cannot deal with unsigned types, so we will have to promote the short to a higher type.
-            //Options:  char or int.  I will be doing int because it is just easier to work with.
-            byte[] portBytes = new byte[2];                 //The port is exactly 2 bytes in size.
-            portBytes[0] = received[received.length - 1];   //Get the second byte and store as the first
-            portBytes[1] = received[received.length - 2];   //Get the first byte and store as the second.
-            //We have now effectively converted from Little Endian -> Big Endian by reversing the order.
-
-            //For more information on how this is converting from an unsigned short to an int refer to:
-            //http://www.darksleep.com/player/JavaAndUnsignedTypes.html
-            int firstByte = (0x000000FF & ((int) portBytes[0]));    //Promotes to int and handles the fact that it was unsigned.
-            int secondByte = (0x000000FF & ((int) portBytes[1]));   //
-
-            //Combines the 2 bytes back together.
-            int ourPort = (firstByte << 8) | secondByte;
-
-            this.address = address;
-
-            return new InetSocketAddress(ourIP, ourPort);
+            this.udpSocket = udpRegistration != null ? udpRegistration.getSocket() : openAudioSocket(result.getChannel());
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Could not open the UDP socket on the discovered port: " + e.getMessage());
+            closeUdp(result);
+            close(ConnectionStatus.ERROR_UDP_UNABLE_TO_CONNECT);
+            return;
         }
-        catch (SocketException e)
+        if (shutdown)
+        {
+            //close() ran while we were setting the socket and may have missed it.
+            closeUdp(result);
+            if (udpRegistration == null)
+                udpSocket.close();
+            return;
+        }
+        InetSocketAddress externalIpAndPort = result.getExternalAddress();
+
+        send(VoiceGatewayCodec.selectProtocol(externalIpAndPort.getHostString(), externalIpAndPort.getPort()));
+
+        setupKeepAlive(heartbeatInterval);
+        changeStatus(ConnectionStatus.CONNECTING_AWAITING_READY);
+    }
+
+    //On Java 8 the socket adaptor of a channel holds the same lock for receiving and sending, so every send would wait
+    // for the receiving thread's timeout. The audio path gets a plain socket on the same local port instead, which
+    // keeps the external address Discord told us about.
+    private static DatagramSocket openAudioSocket(DatagramChannel channel) throws IOException
+    {
+        SocketAddress local = channel.getLocalAddress();
+        channel.close();
+        return new DatagramSocket(local);
+    }
+
+    private CompletableFuture<UdpDiscovery.Result> discoverUdp(InetSocketAddress server)
+    {
+        IUdpMultiplexer multiplexer = core.getRuntime().getUdpMultiplexer();
+        if (multiplexer == null)
+            return core.getUdpDiscovery().discover(server, ssrc);
+
+        try
         {
-            return null;
+            udpRegistration = multiplexer.register(server, ssrc);
+            if (shutdown)
+                udpRegistration.close();    //close() may have missed it, this fails the discovery.
+            return udpRegistration.discover();
         }
         catch (IOException e)
         {
-            return null;
+            CompletableFuture<UdpDiscovery.Result> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
         }
     }
 
+    private void closeUdp(UdpDiscovery.Result result)
+    {
+        if (udpRegistration != null)
+        {
+            udpRegistration.close();
+            return;
+        }
+        try
+        {
+            result.getChannel().close();
+        }
+        catch (IOException ignored) {}
+    }
+
     private void setupKeepAlive(final int keepAliveInterval)
     {
-        if (keepAliveRunnable != null)
+        if (keepAlive != null)
             LOG.fatal("Setting up a KeepAlive runnable while the previous one seems to still be active!!");
 
-        keepAliveRunnable = () ->
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + 1);
+        buffer.put((byte)0xC9);
+        buffer.putLong(0);
+        DatagramPacket keepAlivePacket = new DatagramPacket(buffer.array(), buffer.array().length, address);
+        keepAlive = core.getRuntime().getHeartbeatTimer().scheduleAtFixedRate(() ->
         {
-            if (socket.isOpen() && socket.isOpen() && !udpSocket.isClosed())
+            if (socket.isOpen() && isUdpOpen())
             {
-                send(new JSONObject()
-                        .put("op", 3)
-                        .put("d", System.currentTimeMillis())
-                        .toString());
+                send(VoiceGatewayCodec.heartbeat(System.currentTimeMillis()));
 
-                long seq = 0;
                 try
                 {
-                    ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + 1);
-                    buffer.put((byte)0xC9);
-                    buffer.putLong(seq);
-                    DatagramPacket keepAlivePacket = new DatagramPacket(buffer.array(), buffer.array().length, address);
-                    udpSocket.send(keepAlivePacket);
-
+                    sendUdp(keepAlivePacket);
                 }
                 catch (NoRouteToHostException e)
                 {
@@ -493,19 +690,13 @@ public class AudioWebSocket extends WebSocketAdapter
                     LOG.log(e);
                 }
             }
-        };
-
-        try
-        {
-            keepAlivePool.scheduleAtFixedRate(keepAliveRunnable, 0, keepAliveInterval, TimeUnit.MILLISECONDS);
-        }
-        catch (RejectedExecutionException ignored) {} //ignored because this is probably caused due to a race condition
-                                                      // related to the threadpool shutdown.
+        }, 0, keepAliveInterval, TimeUnit.MILLISECONDS);
     }
 
     public void changeStatus(ConnectionStatus newStatus)
     {
         connectionStatus = newStatus;
+        core.getAudioManager(guildId).handleStatusChange(newStatus);
         listener.onStatusChange(newStatus);
     }
 
@@ -518,25 +709,5 @@ public class AudioWebSocket extends WebSocketAdapter
     {
         this.shouldReconnect = shouldReconnect;
     }
-
-    public static class KeepAliveThreadFactory implements ThreadFactory
-    {
-        final String identifier;
-        AtomicInteger threadCount = new AtomicInteger(1);
-
-        public KeepAliveThreadFactory()
-        {
-            identifier = "JDA Audio-KeepAlive Pool";
-        }
-
-        @Override
-        public Thread newThread(Runnable r)
-        {
-            Thread t = new Thread(r, identifier + " - Thread " + threadCount.getAndIncrement());
-            t.setDaemon(true);
-
-            return t;
-        }
-    }
 }
 
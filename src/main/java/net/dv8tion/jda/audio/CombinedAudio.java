@@ -16,21 +16,24 @@
 
 package net.dv8tion.jda.audio;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-/**
- * Represents a packet of combined audio data from 0 to n Users.
- */
-public class CombinedAudio
+public class CombinedAudio extends PcmAudio
 {
     protected List<String> userIds;
-    protected short[] audioData;
 
     public CombinedAudio(List<String> userIds, short[] audioData)
     {
-        this.userIds = Collections.unmodifiableList(this.userIds);
-        this.audioData = audioData;
+        super(audioData);
+        this.userIds = Collections.unmodifiableList(userIds);
+    }
+
+    protected CombinedAudio(PcmAudioPool<CombinedAudio> pool)
+    {
+        super(pool);
+        this.userIds = new ArrayList<>();
     }
 
     /**
@@ -43,7 +46,7 @@ public class CombinedAudio
      */
     public List<String> getUserIds()
     {
-        return userIds;
+        return Collections.unmodifiableList(userIds);
     }
 
     /**
@@ -60,23 +63,38 @@ public class CombinedAudio
      *
      * @return Never-null byte array of PCM data defined by {@link net.dv8tion.jda.core.audio.AudioReceiveHandler#OUTPUT_FORMAT AudioReceiveHandler.OUTPUT_FORMAT}
      */
+    @Override
     public byte[] getAudioData(double volume)
     {
-        short s;
-        int byteIndex = 0;
-        byte[] audio = new byte[audioData.length * 2];
-        for (int i = 0; i < audioData.length; i++)
-        {
-            s = audioData[i];
-            if (volume != 1.0)
-                s = (short) (s * volume);
+        return super.getAudioData(volume);
+    }
 
-            byte leftByte = (byte) ((0x000000FF) & (s >> 8));
-            byte rightByte =  (byte) (0x000000FF & s);
-            audio[byteIndex] = leftByte;
-            audio[byteIndex + 1] = rightByte;
-            byteIndex += 2;
+    /**
+     * Mixes the provided audio into this frame, replacing its previous contents.
+     * <br>If no audio is provided, this frame contains 20 Milliseconds of silence.
+     */
+    protected void mix(List<String> users, List<UserAudio> audioParts)
+    {
+        userIds.clear();
+        userIds.addAll(users);
+        sampleCount = FRAME_SAMPLE_COUNT;
+
+        int sample;
+        for (int i = 0; i < FRAME_SAMPLE_COUNT; i++)
+        {
+            sample = 0;
+            for (int part = 0; part < audioParts.size(); part++)
+            {
+                UserAudio audio = audioParts.get(part);
+                if (i < audio.sampleCount)
+                    sample += audio.samples.get(i);
+            }
+            if (sample > Short.MAX_VALUE)
+                samples.put(i, Short.MAX_VALUE);
+            else if (sample < Short.MIN_VALUE)
+                samples.put(i, Short.MIN_VALUE);
+            else
+                samples.put(i, (short) sample);
         }
-        return audio;
     }
 }
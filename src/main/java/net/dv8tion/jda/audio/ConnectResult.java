@@ -0,0 +1,133 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dv8tion.jda.audio;
+
+import net.dv8tion.jda.audio.hooks.ConnectionStatus;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The outcome of {@link net.dv8tion.jda.manager.AudioManager#openAudioConnection(String) AudioManager.openAudioConnection(String)}.
+ * <br>Besides whether the connection succeeded, this contains how long the attempt spent in each
+ * {@link net.dv8tion.jda.audio.hooks.ConnectionStatus ConnectionStatus} phase, which helps tell apart a slow
+ * Discord gateway, a slow voice server and a slow UDP discovery.
+ */
+public class ConnectResult
+{
+    protected final String guildId;
+    protected final String channelId;
+    protected final AudioConnection connection;
+    protected final ConnectionStatus status;
+    protected final Map<ConnectionStatus, Long> phaseTimes;
+    protected final long totalTime;
+
+    public ConnectResult(String guildId, String channelId, AudioConnection connection, ConnectionStatus status,
+                         Map<ConnectionStatus, Long> phaseTimes, long totalTime)
+    {
+        this.guildId = guildId;
+        this.channelId = channelId;
+        this.connection = connection;
+        this.status = status;
+        this.phaseTimes = phaseTimes.isEmpty()
+                ? Collections.emptyMap()
+                : Collections.unmodifiableMap(new EnumMap<>(phaseTimes));
+        this.totalTime = totalTime;
+    }
+
+    /**
+     * Whether the audio connection was established.
+     *
+     * @return True, if {@link #getStatus()} is {@link net.dv8tion.jda.audio.hooks.ConnectionStatus#CONNECTED CONNECTED}.
+     */
+    public boolean isSuccess()
+    {
+        return status == ConnectionStatus.CONNECTED;
+    }
+
+    public String getGuildId()
+    {
+        return guildId;
+    }
+
+    public String getChannelId()
+    {
+        return channelId;
+    }
+
+    /**
+     * The established connection.
+     *
+     * @return The connection, or {@code null} if the attempt failed.
+     */
+    public AudioConnection getConnection()
+    {
+        return connection;
+    }
+
+    /**
+     * The status the attempt ended with. This is {@link net.dv8tion.jda.audio.hooks.ConnectionStatus#CONNECTED CONNECTED}
+     * on success, otherwise the status describing why the attempt failed.
+     *
+     * @return Never-null status.
+     */
+    public ConnectionStatus getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * The time, in milliseconds, the attempt spent in the provided phase.
+     *
+     * @param  phase
+     *         One of the {@code CONNECTING_*} statuses.
+     *
+     * @return The time in milliseconds, 0 if the attempt never reached the phase.
+     */
+    public long getPhaseTime(ConnectionStatus phase)
+    {
+        Long time = phaseTimes.get(phase);
+        return time == null ? 0 : time;
+    }
+
+    /**
+     * The time, in milliseconds, the attempt spent in every phase it went through.
+     *
+     * @return Never-null unmodifiable map of phase to milliseconds.
+     */
+    public Map<ConnectionStatus, Long> getPhaseTimes()
+    {
+        return phaseTimes;
+    }
+
+    /**
+     * The time, in milliseconds, from opening the connection to the attempt finishing.
+     *
+     * @return The total time in milliseconds.
+     */
+    public long getTotalTime()
+    {
+        return totalTime;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ConnectResult(" + guildId + " / " + channelId + ": " + status + " in " + totalTime + "ms " + phaseTimes + ')';
+    }
+}
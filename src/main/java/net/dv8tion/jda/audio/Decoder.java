@@ -30,7 +30,9 @@ public class Decoder
     protected int ssrc;
     protected char lastSeq;
     protected int lastTimestamp;
+    protected volatile long lastUsed = System.currentTimeMillis();
     protected PointerByReference opusDecoder;
+    protected final ShortBuffer decoded = ShortBuffer.allocate(PcmAudio.FRAME_SAMPLE_COUNT);
 
     protected Decoder(int ssrc)
     {
@@ -54,10 +56,14 @@ public class Decoder
         return newSeq > lastSeq + 1;
     }
 
-    protected short[] decodeFromOpus(AudioPacket decryptedPacket)
+    //Synchronized with close(), the connection may close the decoder from another thread while it is in use.
+    protected synchronized boolean decodeFromOpus(AudioPacket decryptedPacket, PcmAudio target)
     {
+        if (opusDecoder == null)
+            return false;
+
+        lastUsed = System.currentTimeMillis();
         int result;
-        ShortBuffer decoded = ShortBuffer.allocate(4096);
         if (decryptedPacket == null)    //Flag for packet-loss
         {
             result = Opus.INSTANCE.opus_decode(opusDecoder, null, 0, decoded,
@@ -77,13 +83,13 @@ public class Decoder
                     AudioConnection.OPUS_FRAME_SIZE, 0);
         }
 
-        //If we get a result that is less than 0, then there was an error. Return null as a signifier.
+        //If we get a result that is less than 0, then there was an error. Return false as a signifier.
         if (result < 0)
-            return null;
+            return false;
 
-        short[] audio = new short[result * 2];
-        decoded.get(audio);
-        return audio;
+        //The decoder writes into the same buffer every time, the target keeps its own copy.
+        target.setAudio(decoded, result * AudioConnection.OPUS_CHANNEL_COUNT);
+        return true;
     }
 
     protected synchronized void close()
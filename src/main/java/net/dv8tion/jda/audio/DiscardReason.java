@@ -0,0 +1,42 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dv8tion.jda.audio;
+
+/**
+ * Represents the reasons for which a received UDP packet can be thrown away without providing its audio.
+ * <br>Every audio connection keeps a counter for each of these, see
+ * {@link net.dv8tion.jda.manager.AudioManager#getDiscardedPackets(DiscardReason) AudioManager.getDiscardedPackets(DiscardReason)}.
+ */
+public enum DiscardReason
+{
+    /** The packet was too short to be valid or was not an RTP version 2 packet. */
+    MALFORMED,
+    /** The packet was an RTCP control packet. JDA does not use these. */
+    RTCP,
+    /** The packet used an RTP payload type other than the one Discord uses for Opus audio. */
+    UNSUPPORTED_PAYLOAD_TYPE,
+    /** The packet could not be decrypted with the secret key of the connection, or its decrypted content was malformed. */
+    DECRYPTION_FAILED,
+    /** The packet came from an SSRC that was not paired with a user in time. */
+    UNKNOWN_SSRC,
+    /** The packet came from a user none of the receive handlers are subscribed to. */
+    UNSUBSCRIBED_USER,
+    /** The packet arrived after a newer packet of the same user was already decoded. */
+    OUT_OF_ORDER,
+    /** Opus reported an error while decoding the packet. */
+    DECODE_FAILED
+}
@@ -0,0 +1,93 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dv8tion.jda.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Represents a single decrypted, but still Opus encoded, packet of User specific audio.
+ * <br>The same instance is provided to every {@link net.dv8tion.jda.audio.AudioReceiveHandler AudioReceiveHandler}
+ * that requested encoded audio, so the audio data is only exposed as a read-only view.
+ */
+public class OpusPacket
+{
+    protected final String userId;
+    protected final int ssrc;
+    protected final char sequence;
+    protected final int timestamp;
+    protected final byte[] opusAudio;
+
+    public OpusPacket(String userId, int ssrc, char sequence, int timestamp, byte[] opusAudio)
+    {
+        this.userId = userId;
+        this.ssrc = ssrc;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.opusAudio = opusAudio;
+    }
+
+    /**
+     * The id of the user that provided the audio data.
+     *
+     * @return Never-null String containing user id.
+     */
+    public String getUserId()
+    {
+        return userId;
+    }
+
+    /**
+     * The SSRC Discord assigned to the audio stream of the user.
+     *
+     * @return The SSRC of this packet.
+     */
+    public int getSSRC()
+    {
+        return ssrc;
+    }
+
+    /**
+     * The RTP sequence number of this packet. Packets are provided in the order they were received,
+     * so this can be used to detect lost or reordered packets.
+     *
+     * @return The sequence number of this packet.
+     */
+    public char getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * The RTP timestamp of this packet, in samples at 48KHz.
+     *
+     * @return The timestamp of this packet.
+     */
+    public int getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Provides the 20 Milliseconds of Opus encoded audio contained in this packet.
+     *
+     * @return Never-null read-only {@link java.nio.ByteBuffer ByteBuffer} containing the Opus frame.
+     */
+    public ByteBuffer getOpusAudio()
+    {
+        return ByteBuffer.wrap(opusAudio).asReadOnlyBuffer();
+    }
+}
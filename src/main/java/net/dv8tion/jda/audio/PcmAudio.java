@@ -0,0 +1,211 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dv8tion.jda.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base of the 20 millisecond PCM audio frames JDA provides to {@link net.dv8tion.jda.audio.AudioReceiveHandler AudioReceiveHandlers}.
+ * <br>The audio is stored in the format defined by
+ * {@link net.dv8tion.jda.audio.AudioReceiveHandler#OUTPUT_FORMAT AudioReceiveHandler.OUTPUT_FORMAT} and can be accessed
+ * through read-only views without copying it.
+ * <p>
+ * <b>Lifetime:</b> Frames provided by JDA are pooled and reused. A frame is only valid until the handler method it
+ * was provided to returns. If the frame is needed for longer, {@link #retain()} it before returning and
+ * {@link #release()} it once it is no longer used.
+ */
+public abstract class PcmAudio
+{
+    /** The amount of samples, for both channels combined, in a 20 millisecond frame. */
+    public static final int FRAME_SAMPLE_COUNT = AudioConnection.OPUS_FRAME_SIZE * AudioConnection.OPUS_CHANNEL_COUNT;
+
+    /** Gain applied by {@link #getAudioData(double, ByteBuffer)} is a fixed-point number with this many fraction bits. */
+    private static final int GAIN_FRACTION_BITS = 12;
+    /** Largest supported volume, chosen so that a sample multiplied by the gain always fits in an int. */
+    private static final double MAX_VOLUME = 15.0;
+
+    protected final ByteBuffer audio;
+    protected final ShortBuffer samples;
+    protected int sampleCount;
+
+    private final PcmAudioPool<?> pool;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    protected PcmAudio(PcmAudioPool<?> pool)
+    {
+        this.pool = pool;
+        this.audio = ByteBuffer.allocate(FRAME_SAMPLE_COUNT * 2);
+        this.samples = audio.asShortBuffer();
+        this.sampleCount = 0;
+    }
+
+    protected PcmAudio(short[] audioData)
+    {
+        this.pool = null;
+        this.audio = ByteBuffer.allocate(audioData.length * 2);
+        this.samples = audio.asShortBuffer();
+        this.samples.put(audioData);
+        this.sampleCount = audioData.length;
+    }
+
+    /**
+     * Provides the 20 Milliseconds of audio data as a read-only view in 48KHz 16bit stereo signed BigEndian PCM.
+     * <br>Format defined by: {@link net.dv8tion.jda.audio.AudioReceiveHandler#OUTPUT_FORMAT AudioReceiveHandler.OUTPUT_FORMAT}.
+     * <p>
+     * The view is only valid for as long as this frame is, see the lifetime notes on this class.
+     *
+     * @return Never-null read-only {@link java.nio.ByteBuffer ByteBuffer} with the PCM data between its position and limit.
+     */
+    public ByteBuffer getAudioBuffer()
+    {
+        ByteBuffer view = audio.asReadOnlyBuffer();
+        view.limit(sampleCount * 2);
+        return view;
+    }
+
+    /**
+     * Provides the 20 Milliseconds of audio data as a read-only view of signed 16bit samples,
+     * with the samples of the left and right channel interleaved.
+     * <p>
+     * The view is only valid for as long as this frame is, see the lifetime notes on this class.
+     *
+     * @return Never-null read-only {@link java.nio.ShortBuffer ShortBuffer} with the samples between its position and limit.
+     */
+    public ShortBuffer getSampleBuffer()
+    {
+        ShortBuffer view = samples.asReadOnlyBuffer();
+        view.limit(sampleCount);
+        return view;
+    }
+
+    /**
+     * Provides 20 Milliseconds of audio data in 48KHz 16bit stereo signed BigEndian PCM.
+     * <br>Format defined by: {@link net.dv8tion.jda.audio.AudioReceiveHandler#OUTPUT_FORMAT AudioReceiveHandler.OUTPUT_FORMAT}.
+     * <p>
+     * The output volume of the data can be modified by the provided {@code `volume`} parameter. {@code `1.0`} is considered to be 100% volume.
+     * <br>Going above {@code `1.0`} can increase the volume further, but you run the risk of audio distortion.
+     * <p>
+     * This allocates a new array on every call, consider {@link #getAudioData(double, ByteBuffer)} to reuse a buffer instead.
+     *
+     * @param  volume
+     *         Value used to modify the "volume" of the returned audio data. 1.0 is normal volume.
+     *
+     * @return Never-null byte array of PCM data defined by {@link net.dv8tion.jda.audio.AudioReceiveHandler#OUTPUT_FORMAT AudioReceiveHandler.OUTPUT_FORMAT}
+     */
+    public byte[] getAudioData(double volume)
+    {
+        byte[] data = new byte[sampleCount * 2];
+        getAudioData(volume, ByteBuffer.wrap(data));
+        return data;
+    }
+
+    /**
+     * Writes the 20 Milliseconds of audio data into the provided buffer, starting at its position, and advances its position.
+     * <br>The samples are written in the byte order of the provided buffer, which is BigEndian unless it was changed, matching
+     * {@link net.dv8tion.jda.audio.AudioReceiveHandler#OUTPUT_FORMAT AudioReceiveHandler.OUTPUT_FORMAT}.
+     * <p>
+     * The volume is applied using a fixed-point gain, samples that would exceed the 16bit range are clipped.
+     *
+     * @param  volume
+     *         Value used to modify the "volume" of the audio data. 1.0 is normal volume. Values are limited to 0.0 to 15.0.
+     * @param  target
+     *         The buffer to write to, which needs at least {@code 2 * sample count} bytes remaining.
+     *
+     * @throws java.nio.BufferOverflowException
+     *         If the target buffer doesn't have enough space remaining.
+     */
+    public void getAudioData(double volume, ByteBuffer target)
+    {
+        if (volume == 1.0)
+        {
+            ByteBuffer source = audio.duplicate();
+            source.limit(sampleCount * 2);
+            if (target.order() == source.order())
+                target.put(source);
+            else
+            {
+                //Views have their own position, the one of the target has to be advanced separately.
+                target.asShortBuffer().put(source.asShortBuffer());
+                target.position(target.position() + sampleCount * 2);
+            }
+            return;
+        }
+
+        if (target.remaining() < sampleCount * 2)
+            throw new java.nio.BufferOverflowException();
+
+        int gain = (int) Math.round(Math.max(0.0, Math.min(MAX_VOLUME, volume)) * (1 << GAIN_FRACTION_BITS));
+        for (int i = 0; i < sampleCount; i++)
+        {
+            int sample = (samples.get(i) * gain) >> GAIN_FRACTION_BITS;
+            if (sample > Short.MAX_VALUE)
+                sample = Short.MAX_VALUE;
+            else if (sample < Short.MIN_VALUE)
+                sample = Short.MIN_VALUE;
+            target.putShort((short) sample);
+        }
+    }
+
+    /**
+     * The amount of samples in this frame, for both channels combined.
+     *
+     * @return The amount of samples.
+     */
+    public int getSampleCount()
+    {
+        return sampleCount;
+    }
+
+    /**
+     * Keeps this frame valid after the handler method it was provided to returns.
+     * <br>Every call to this method needs to be matched with a call to {@link #release()}.
+     */
+    public void retain()
+    {
+        if (references.getAndIncrement() <= 0)
+            throw new IllegalStateException("Cannot retain audio that was already released");
+    }
+
+    /**
+     * Releases a reference to this frame obtained through {@link #retain()}. Once all references are released,
+     * the frame is reused by JDA and must not be accessed anymore.
+     */
+    public void release()
+    {
+        int remaining = references.decrementAndGet();
+        if (remaining < 0)
+            throw new IllegalStateException("Audio was released more often than it was retained");
+        if (remaining == 0 && pool != null)
+            pool.recycle(this);
+    }
+
+    protected void setAudio(ShortBuffer source, int count)
+    {
+        ShortBuffer data = source.duplicate();
+        data.position(0).limit(count);
+        samples.clear();
+        samples.put(data);
+        sampleCount = count;
+    }
+
+    protected void reset()
+    {
+        references.set(1);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dv8tion.jda.audio;
+
+import java.util.function.Function;
+
+/**
+ * Bounded pool of {@link net.dv8tion.jda.audio.PcmAudio PcmAudio} frames.
+ * <br>When the pool is empty a new frame is created, and frames released while the pool is full are left to the
+ * garbage collector, so the pool never blocks and never holds more than its capacity.
+ *
+ * @param <T> The type of frame held by this pool.
+ */
+public class PcmAudioPool<T extends PcmAudio>
+{
+    private final Function<PcmAudioPool<T>, T> factory;
+    private final PcmAudio[] frames;
+    private int size = 0;
+
+    public PcmAudioPool(int capacity, Function<PcmAudioPool<T>, T> factory)
+    {
+        this.factory = factory;
+        this.frames = new PcmAudio[capacity];
+    }
+
+    /**
+     * Provides a frame with a single reference, owned by the caller.
+     *
+     * @return A pooled or newly created frame.
+     */
+    @SuppressWarnings("unchecked")
+    public T acquire()
+    {
+        PcmAudio frame = null;
+        synchronized (frames)
+        {
+            if (size > 0)
+            {
+                frame = frames[--size];
+                frames[size] = null;
+            }
+        }
+        if (frame == null)
+            return factory.apply(this);
+        frame.reset();
+        return (T) frame;
+    }
+
+    protected void recycle(PcmAudio frame)
+    {
+        synchronized (frames)
+        {
+            if (size < frames.length)
+                frames[size++] = frame;
+        }
+    }
+}
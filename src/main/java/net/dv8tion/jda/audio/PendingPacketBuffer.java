@@ -0,0 +1,192 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dv8tion.jda.audio;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.net.DatagramPacket;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Holds still encrypted packets from SSRCs that haven't been paired with a user yet.
+ * <br>Users usually start talking a moment before Discord tells us who the SSRC belongs to, so these packets
+ * are replayed once the SSRC is known instead of losing the first words of every new speaker.
+ * <p>
+ * Both the number of SSRCs and the number of packets per SSRC are bounded, and packets are only kept for
+ * {@link #MAX_PACKET_AGE} milliseconds. This class is not thread-safe, it is only used by the receiving thread.
+ */
+public class PendingPacketBuffer
+{
+    /** Maximum amount of unknown SSRCs that packets are held for. */
+    public static final int MAX_SSRCS = 16;
+    /** Maximum amount of packets held per SSRC. 25 packets are 500 milliseconds of audio. */
+    public static final int MAX_PACKETS_PER_SSRC = 25;
+    /** Time, in milliseconds, a packet is held before it is discarded. */
+    public static final long MAX_PACKET_AGE = 1000;
+
+    private final TIntObjectMap<PendingPackets> pending = new TIntObjectHashMap<>();
+    private int dropped = 0;
+
+    public boolean isEmpty()
+    {
+        return pending.size() == 0;
+    }
+
+    public boolean contains(int ssrc)
+    {
+        return pending.containsKey(ssrc);
+    }
+
+    /**
+     * Holds a copy of the provided packet until its SSRC is known.
+     *
+     * @param ssrc
+     *        The SSRC of the packet.
+     * @param packet
+     *        The still encrypted packet.
+     * @param now
+     *        The current time in milliseconds.
+     */
+    public void add(int ssrc, DatagramPacket packet, long now)
+    {
+        evictExpired(now);
+
+        PendingPackets packets = pending.get(ssrc);
+        if (packets == null)
+        {
+            //Don't let a storm of new SSRCs grow this without bounds. The SSRC that was quiet the longest goes first.
+            if (pending.size() >= MAX_SSRCS)
+                evictStalest();
+            packets = new PendingPackets();
+            pending.put(ssrc, packets);
+        }
+        byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+        dropped += packets.add(new DatagramPacket(data, data.length), now);
+    }
+
+    /**
+     * Removes and returns the packets held for the provided SSRC, oldest first.
+     *
+     * @param ssrc
+     *        The SSRC that was paired with a user.
+     * @param now
+     *        The current time in milliseconds.
+     *
+     * @return The held packets that are still young enough to be used, or null if there are none.
+     */
+    public DatagramPacket[] take(int ssrc, long now)
+    {
+        PendingPackets packets = pending.remove(ssrc);
+        if (packets == null)
+            return null;
+        dropped += packets.removeOlderThan(now - MAX_PACKET_AGE);
+        return packets.size == 0 ? null : packets.toArray();
+    }
+
+    /**
+     * The amount of packets that were dropped because they expired or didn't fit since the last call of this method.
+     *
+     * @return The amount of dropped packets.
+     */
+    public int drainDropped()
+    {
+        int count = dropped;
+        dropped = 0;
+        return count;
+    }
+
+    public void clear()
+    {
+        pending.clear();
+    }
+
+    private void evictExpired(long now)
+    {
+        long oldest = now - MAX_PACKET_AGE;
+        Iterator<PendingPackets> it = pending.valueCollection().iterator();
+        while (it.hasNext())
+        {
+            PendingPackets packets = it.next();
+            dropped += packets.removeOlderThan(oldest);
+            if (packets.size == 0)
+                it.remove();
+        }
+    }
+
+    private void evictStalest()
+    {
+        PendingPackets stalest = null;
+        for (PendingPackets packets : pending.valueCollection())
+        {
+            if (stalest == null || packets.lastArrival() < stalest.lastArrival())
+                stalest = packets;
+        }
+        dropped += stalest.size;
+        pending.valueCollection().remove(stalest);
+    }
+
+    private static class PendingPackets
+    {
+        final DatagramPacket[] packets = new DatagramPacket[MAX_PACKETS_PER_SSRC];
+        final long[] arrivals = new long[MAX_PACKETS_PER_SSRC];
+        int head = 0;
+        int size = 0;
+
+        int add(DatagramPacket packet, long now)
+        {
+            //When full, the oldest packet is overwritten.
+            int index = (head + size) % packets.length;
+            packets[index] = packet;
+            arrivals[index] = now;
+            if (size < packets.length)
+            {
+                size++;
+                return 0;
+            }
+            head = (head + 1) % packets.length;
+            return 1;
+        }
+
+        int removeOlderThan(long time)
+        {
+            int removed = 0;
+            while (size > 0 && arrivals[head] < time)
+            {
+                packets[head] = null;
+                head = (head + 1) % packets.length;
+                size--;
+                removed++;
+            }
+            return removed;
+        }
+
+        long lastArrival()
+        {
+            return arrivals[(head + size - 1) % packets.length];
+        }
+
+        DatagramPacket[] toArray()
+        {
+            DatagramPacket[] array = new DatagramPacket[size];
+            for (int i = 0; i < size; i++)
+                array[i] = packets[(head + i) % packets.length];
+            return array;
+        }
+    }
+}
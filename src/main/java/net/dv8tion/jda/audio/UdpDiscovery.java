@@ -0,0 +1,413 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dv8tion.jda.audio;
+
+import net.dv8tion.jda.DefaultExecutorProvider;
+import net.dv8tion.jda.IExecutorProvider;
+import net.dv8tion.jda.IExecutorProvider.ThreadType;
+import net.dv8tion.jda.utils.SimpleLog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the external address of new UDP audio connections.
+ * <p>
+ * We send a packet containing our SSRC to the voice server, which responds with the ip and port it saw the packet
+ * come from. This is called UDP hole punching. All discoveries of a CoreRuntime share a single selector thread, and lost
+ * packets are retransmitted with a timeout adapted to the round trip times seen so far, backing off exponentially.
+ * <br>The channel used for the discovery is the one the connection keeps using for audio afterwards.
+ */
+public class UdpDiscovery
+{
+    public static final SimpleLog LOG = SimpleLog.getLog("JDAUdpDiscovery");
+    public static final int DISCOVERY_PACKET_LENGTH = 70; //70 taken from https://github.com/Rapptz/discord.py/blob/async/discord/voice_client.py#L208
+    public static final int MAX_ATTEMPTS = 6;
+    public static final long INITIAL_TIMEOUT = 300;
+    public static final long MIN_TIMEOUT = 100;
+    public static final long MAX_TIMEOUT = 2000;
+
+    private final IExecutorProvider executorProvider;
+    private final ConcurrentLinkedQueue<Discovery> registrations = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private Thread thread;
+    //Smoothed round trip time in milliseconds, only measured on discoveries that weren't retransmitted.
+    private volatile double smoothedRtt = -1;
+
+    public UdpDiscovery()
+    {
+        this(new DefaultExecutorProvider());
+    }
+
+    /**
+     * @param executorProvider
+     *        Creates the selector thread once the first discovery starts.
+     */
+    public UdpDiscovery(IExecutorProvider executorProvider)
+    {
+        this.executorProvider = executorProvider;
+    }
+
+    /**
+     * Starts discovering the external address of a new UDP channel connected to the provided voice server.
+     *
+     * @param  server
+     *         The address of the voice server.
+     * @param  ssrc
+     *         The SSRC provided by the voice server.
+     *
+     * @return A future completing with the result, or exceptionally if the voice server never responded.
+     */
+    public CompletableFuture<Result> discover(InetSocketAddress server, int ssrc)
+    {
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        try
+        {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(server);
+            registrations.add(new Discovery(channel, server, ssrc, future));
+            getSelector().wakeup();
+        }
+        catch (IOException e)
+        {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * The timeout used for the first packet of the next discovery.
+     *
+     * @return The timeout in milliseconds.
+     */
+    public long getInitialTimeout()
+    {
+        double rtt = smoothedRtt;
+        if (rtt < 0)
+            return INITIAL_TIMEOUT;
+        return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, (long) (rtt * 2) + MIN_TIMEOUT));
+    }
+
+    /**
+     * Stops the selector thread, discoveries in progress don't complete.
+     */
+    public synchronized void shutdown()
+    {
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    private synchronized Selector getSelector() throws IOException
+    {
+        if (selector == null)
+        {
+            selector = Selector.open();
+            thread = executorProvider.newThread(ThreadType.UDP_DISCOVERY, "JDA Audio UDP Discovery", this::run);
+            thread.start();
+        }
+        return selector;
+    }
+
+    private void run()
+    {
+        List<Discovery> active = new ArrayList<>();
+        List<Discovery> finished = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted())
+        {
+            try
+            {
+                long now = System.nanoTime();
+                long wait = 0;
+                for (Discovery discovery : active)
+                {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(discovery.deadline - now);
+                    wait = wait == 0 ? Math.max(1, remaining) : Math.max(1, Math.min(wait, remaining));
+                }
+                selector.select(wait);
+
+                Discovery registration;
+                while ((registration = registrations.poll()) != null)
+                {
+                    try
+                    {
+                        registration.key = registration.channel.register(selector, SelectionKey.OP_READ, registration);
+                        registration.started = System.nanoTime();
+                        registration.timeout = getInitialTimeout();
+                        registration.send();
+                        active.add(registration);
+                    }
+                    catch (IOException e)
+                    {
+                        registration.fail(e, finished);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Discovery discovery = (Discovery) key.attachment();
+                    try
+                    {
+                        if (key.isValid() && key.isReadable())
+                            discovery.receive(finished);
+                    }
+                    catch (IOException e)
+                    {
+                        discovery.fail(e, finished);
+                    }
+                }
+
+                now = System.nanoTime();
+                for (Discovery discovery : active)
+                {
+                    if (discovery.done || now < discovery.deadline)
+                        continue;
+                    try
+                    {
+                        if (discovery.attempts >= MAX_ATTEMPTS)
+                            discovery.fail(new IOException("No response to UDP discovery from " + discovery.server
+                                    + " after " + discovery.attempts + " attempts"), finished);
+                        else
+                            discovery.retransmit();
+                    }
+                    catch (IOException e)
+                    {
+                        discovery.fail(e, finished);
+                    }
+                }
+
+                if (!finished.isEmpty())
+                {
+                    //Cancelled keys are only deregistered by the next selection, which has to happen before
+                    // the channels can go back to blocking mode for the audio connection.
+                    selector.selectNow();
+                    for (Discovery discovery : finished)
+                    {
+                        active.remove(discovery);
+                        discovery.complete();
+                    }
+                    finished.clear();
+                }
+            }
+            catch (Exception e)
+            {
+                LOG.log(e);
+            }
+        }
+    }
+
+    private class Discovery
+    {
+        final DatagramChannel channel;
+        final InetSocketAddress server;
+        final int ssrc;
+        final CompletableFuture<Result> future;
+        final ByteBuffer buffer = ByteBuffer.allocate(DISCOVERY_PACKET_LENGTH);
+        SelectionKey key;
+        long started;
+        long deadline;
+        long timeout;
+        int attempts = 0;
+        boolean done = false;
+        InetSocketAddress external;
+        Throwable error;
+
+        Discovery(DatagramChannel channel, InetSocketAddress server, int ssrc, CompletableFuture<Result> future)
+        {
+            this.channel = channel;
+            this.server = server;
+            this.ssrc = ssrc;
+            this.future = future;
+        }
+
+        void send() throws IOException
+        {
+            //A packet of 70 bytes containing our ssrc, Discord responds with the same length.
+            buffer.clear();
+            buffer.putInt(ssrc);
+            buffer.position(0).limit(DISCOVERY_PACKET_LENGTH);
+            channel.write(buffer);
+            attempts++;
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        }
+
+        void retransmit() throws IOException
+        {
+            timeout = Math.min(MAX_TIMEOUT, timeout * 2);
+            LOG.debug("UDP discovery with " + server + " timed out, retrying with a timeout of " + timeout + "ms");
+            send();
+        }
+
+        void receive(List<Discovery> finished) throws IOException
+        {
+            buffer.clear();
+            if (channel.read(buffer) < DISCOVERY_PACKET_LENGTH)
+                return;     //Not a discovery response, keep waiting.
+
+            external = parse(buffer.array());
+            if (attempts == 1)
+            {
+                double rtt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+                double previous = smoothedRtt;
+                smoothedRtt = previous < 0 ? rtt : previous * 0.875 + rtt * 0.125;
+            }
+            finish(finished);
+        }
+
+        void fail(Throwable cause, List<Discovery> finished)
+        {
+            error = cause;
+            finish(finished);
+        }
+
+        void finish(List<Discovery> finished)
+        {
+            if (done)
+                return;
+            done = true;
+            if (key != null)
+                key.cancel();
+            finished.add(this);
+        }
+
+        void complete()
+        {
+            long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            if (error == null)
+            {
+                try
+                {
+                    channel.configureBlocking(true);
+                    LOG.debug("UDP discovery with " + server + " took " + time + "ms and " + attempts + " attempt(s)");
+                    future.complete(new Result(channel, server, external, time, attempts));
+                    return;
+                }
+                catch (IOException e)
+                {
+                    error = e;
+                }
+            }
+
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ignored) {}
+            future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Reads our external address from the response to a discovery packet.
+     *
+     * @param  received
+     *         The {@value #DISCOVERY_PACKET_LENGTH} bytes of the response.
+     *
+     * @return Our ip and port as seen by the voice server.
+     */
+    public static InetSocketAddress parse(byte[] received)
+    {
+        //Example string:"   121.83.253.66                                                   ��"
+        //You'll notice that there are 4 leading nulls (our ssrc) and a large amount of nulls between the the ip and
+        // the last 2 bytes. The last 2 bytes are the port.
+        String ourIP = new String(received, 4, received.length - 6);
+        int end = ourIP.indexOf(0);
+        if (end >= 0)
+            ourIP = ourIP.substring(0, end);
+        ourIP = ourIP.trim();
+
+        //The port exists as the last 2 bytes in the packet data, and is encoded as an UNSIGNED short
+        // in Little Endian instead of normal Big Endian.
+        int ourPort = ((received[received.length - 1] & 0xFF) << 8) | (received[received.length - 2] & 0xFF);
+
+        return new InetSocketAddress(ourIP, ourPort);
+    }
+
+    public static class Result
+    {
+        protected final DatagramChannel channel;
+        protected final InetSocketAddress server;
+        protected final InetSocketAddress external;
+        protected final long time;
+        protected final int attempts;
+
+        public Result(DatagramChannel channel, InetSocketAddress server, InetSocketAddress external, long time, int attempts)
+        {
+            this.channel = channel;
+            this.server = server;
+            this.external = external;
+            this.time = time;
+            this.attempts = attempts;
+        }
+
+        /**
+         * The channel the discovery was done with, in blocking mode and connected to the voice server.
+         * <br>For connections using a {@link UdpMultiplexer UdpMultiplexer} this is the shared channel, which isn't
+         * connected and must not be closed. Other {@link net.dv8tion.jda.audio.factory.IUdpMultiplexer IUdpMultiplexers}
+         * may not use channels at all.
+         *
+         * @return Possibly-null channel.
+         */
+        public DatagramChannel getChannel()
+        {
+            return channel;
+        }
+
+        public InetSocketAddress getServerAddress()
+        {
+            return server;
+        }
+
+        /**
+         * Our ip and port as seen by the voice server.
+         *
+         * @return The external address.
+         */
+        public InetSocketAddress getExternalAddress()
+        {
+            return external;
+        }
+
+        /**
+         * The time the discovery took.
+         *
+         * @return The time in milliseconds.
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        public int getAttempts()
+        {
+            return attempts;
+        }
+    }
+}
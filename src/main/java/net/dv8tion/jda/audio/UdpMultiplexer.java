@@ -0,0 +1,172 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package net.dv8tion.jda.audio;
+
+import net.dv8tion.jda.IExecutorProvider;
+import net.dv8tion.jda.IExecutorProvider.ThreadType;
+import net.dv8tion.jda.audio.factory.IUdpMultiplexer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The default {@link IUdpMultiplexer IUdpMultiplexer}, sharing {@link DatagramChannel DatagramChannels}.
+ * <p>
+ * Every socket has a single thread reading it, received packets are dispatched as described by
+ * {@link AbstractUdpMultiplexer AbstractUdpMultiplexer}.
+ * <br>The UDP discovery is done through the shared socket as well, as Discord has to send to its address. Packets are
+ * sent through the {@link DatagramSocket DatagramSocket} of the socket, with the address of the voice server set.
+ * <p>
+ * Received packets are handled on the reading thread of the socket, so with many receiving connections, more sockets
+ * spread the decoding over more threads.
+ */
+public class UdpMultiplexer extends AbstractUdpMultiplexer
+{
+    private final IExecutorProvider executorProvider;
+    private final ScheduledExecutorService scheduler;
+    private final int socketCount;
+
+    /**
+     * @param socketCount
+     *        The amount of local sockets, opened once the first connection needs them.
+     * @param executorProvider
+     *        Creates the reading threads of the sockets.
+     * @param scheduler
+     *        Used for discovery retransmissions and the housekeeping of the connections.
+     * @param discovery
+     *        The discovery of the runtime, providing the timeout of the first discovery packet.
+     */
+    public UdpMultiplexer(int socketCount, IExecutorProvider executorProvider, ScheduledExecutorService scheduler, UdpDiscovery discovery)
+    {
+        super(discovery);
+        if (socketCount <= 0)
+            throw new IllegalArgumentException("Socket count must be positive");
+
+        this.executorProvider = executorProvider;
+        this.scheduler = scheduler;
+        this.socketCount = socketCount;
+        for (int i = 0; i < socketCount; i++)
+            addSocket(new ChannelSocket());
+    }
+
+    public int getSocketCount()
+    {
+        return socketCount;
+    }
+
+    private class ChannelSocket extends SharedSocket implements Runnable
+    {
+        private volatile DatagramChannel channel;
+        private Thread thread;
+        private ScheduledFuture<?> tickTask;
+
+        @Override
+        protected void open() throws IOException
+        {
+            if (channel != null && channel.isOpen())
+                return;
+
+            //Blocking, so connections can send through the socket of the channel, while our thread blocks receiving.
+            channel = DatagramChannel.open();
+            channel.bind(null);
+            thread = executorProvider.newThread(ThreadType.AUDIO_RECEIVE,
+                    "JDA Audio-Shared UDP Socket " + channel.socket().getLocalPort(), this);
+            thread.start();
+            if (tickTask == null)
+                tickTask = scheduler.scheduleWithFixedDelay(() -> tick(System.currentTimeMillis()), TICK_INTERVAL, TICK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        protected void close()
+        {
+            if (tickTask != null)
+                tickTask.cancel(false);
+            if (channel == null)
+                return;
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ignored) {}
+        }
+
+        @Override
+        protected void send(DatagramPacket packet, InetSocketAddress server) throws IOException
+        {
+            DatagramChannel current = channel;
+            if (current == null)
+                throw new ClosedChannelException();
+            current.socket().send(packet);
+        }
+
+        @Override
+        protected ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit)
+        {
+            return scheduler.schedule(task, delay, unit);
+        }
+
+        @Override
+        protected DatagramSocket getSocket()
+        {
+            return channel.socket();
+        }
+
+        @Override
+        protected DatagramChannel getChannel()
+        {
+            return channel;
+        }
+
+        @Override
+        public void run()
+        {
+            DatagramChannel channel = this.channel;
+            ByteBuffer buffer = ByteBuffer.allocate(1920);
+            DatagramPacket packet = new DatagramPacket(buffer.array(), buffer.capacity());
+            while (channel.isOpen())
+            {
+                try
+                {
+                    buffer.clear();
+                    SocketAddress from = channel.receive(buffer);
+                    packet.setData(buffer.array(), 0, buffer.position());
+                    packet.setSocketAddress(from);
+                    dispatch((InetSocketAddress) from, packet);
+                }
+                catch (ClosedChannelException e)
+                {
+                    break;
+                }
+                catch (Exception e)
+                {
+                    LOG.log(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio;
+
+/**
+ * Encodes and scans the gateway messages of voice connections without building {@link org.json.JSONObject JSONObject} trees.
+ * <br>Outbound messages are filled into fixed templates, messages that never change are encoded once.
+ * Inbound messages can be dispatched on their {@code op} before deciding whether the payload needs a full parse.
+ */
+public final class VoiceGatewayCodec
+{
+    public static final int NO_OP = -1;
+
+    private static final String SPEAKING = "{\"op\":5,\"d\":{\"speaking\":true,\"delay\":0}}";
+    private static final String NOT_SPEAKING = "{\"op\":5,\"d\":{\"speaking\":false,\"delay\":0}}";
+
+    private VoiceGatewayCodec() {}
+
+    public static String heartbeat(long nonce)
+    {
+        return new StringBuilder(32).append("{\"op\":3,\"d\":").append(nonce).append('}').toString();
+    }
+
+    public static String speaking(boolean speaking)
+    {
+        return speaking ? SPEAKING : NOT_SPEAKING;
+    }
+
+    public static String selectProtocol(String address, int port)
+    {
+        StringBuilder builder = new StringBuilder(128).append("{\"op\":1,\"d\":{\"protocol\":\"udp\",\"data\":{\"address\":");
+        appendString(builder, address);
+        return builder.append(",\"port\":").append(port)
+                .append(",\"mode\":\"xsalsa20_poly1305\"}}}")   //Discord requires encryption
+                .toString();
+    }
+
+    /**
+     * Identify (op 0), the first message of a new voice session.
+     *
+     * @param  guildId
+     *         The guild of the voice connection.
+     * @param  userId
+     *         The id of our user.
+     * @param  sessionId
+     *         The session id of the voice state.
+     * @param  token
+     *         The token of the voice server.
+     *
+     * @return The encoded message.
+     */
+    public static String identify(String guildId, String userId, String sessionId, String token)
+    {
+        StringBuilder builder = new StringBuilder(192).append("{\"op\":0,\"d\":{\"server_id\":");
+        appendString(builder, guildId);
+        builder.append(",\"user_id\":");
+        appendString(builder, userId);
+        builder.append(",\"session_id\":");
+        appendString(builder, sessionId);
+        builder.append(",\"token\":");
+        appendString(builder, token);
+        return builder.append("}}").toString();
+    }
+
+    /**
+     * Resume (op 7) of an established voice session on a new websocket.
+     *
+     * @param  guildId
+     *         The guild of the voice connection.
+     * @param  sessionId
+     *         The session id of the voice state.
+     * @param  token
+     *         The token of the voice server.
+     *
+     * @return The encoded message.
+     */
+    public static String resume(String guildId, String sessionId, String token)
+    {
+        StringBuilder builder = new StringBuilder(160).append("{\"op\":7,\"d\":{\"server_id\":");
+        appendString(builder, guildId);
+        builder.append(",\"session_id\":");
+        appendString(builder, sessionId);
+        builder.append(",\"token\":");
+        appendString(builder, token);
+        return builder.append("}}").toString();
+    }
+
+    /**
+     * Voice state update (op 4) for the main gateway.
+     *
+     * @param  guildId
+     *         The guild to update the voice state in.
+     * @param  channelId
+     *         The channel to connect to, or {@code null} to disconnect.
+     * @param  selfMute
+     *         Whether to be muted.
+     * @param  selfDeaf
+     *         Whether to be deafened.
+     *
+     * @return The encoded message.
+     */
+    public static String voiceStateUpdate(String guildId, String channelId, boolean selfMute, boolean selfDeaf)
+    {
+        StringBuilder builder = new StringBuilder(128).append("{\"op\":4,\"d\":{\"guild_id\":");
+        appendString(builder, guildId);
+        builder.append(",\"channel_id\":");
+        if (channelId == null)
+            builder.append("null");
+        else
+            appendString(builder, channelId);
+        return builder.append(",\"self_mute\":").append(selfMute)
+                .append(",\"self_deaf\":").append(selfDeaf)
+                .append("}}")
+                .toString();
+    }
+
+    /**
+     * Reads the {@code op} of a gateway message without parsing the rest of it.
+     *
+     * @param  message
+     *         The received message.
+     *
+     * @return The op, or {@link #NO_OP} if the message has no numeric op.
+     */
+    public static int scanOp(String message)
+    {
+        int index = findValue(message, "op");
+        if (index < 0)
+            return NO_OP;
+        long op = readLong(message, index);
+        return op < 0 || op > Integer.MAX_VALUE ? NO_OP : (int) op;
+    }
+
+    /**
+     * Reads the {@code d} of a gateway message whose payload is a plain number, such as the heartbeat acknowledgement.
+     *
+     * @param  message
+     *         The received message.
+     *
+     * @return The number, or -1 if the payload is not a non-negative number.
+     */
+    public static long scanLongPayload(String message)
+    {
+        int index = findValue(message, "d");
+        return index < 0 ? -1 : readLong(message, index);
+    }
+
+    //Finds the start of the value of a key of the outermost object. Strings and nested values are skipped.
+    private static int findValue(String json, String key)
+    {
+        int depth = 0;
+        int length = json.length();
+        for (int i = 0; i < length; i++)
+        {
+            char c = json.charAt(i);
+            switch (c)
+            {
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                case '"':
+                {
+                    int start = i + 1;
+                    i = skipString(json, start);
+                    if (i < 0)
+                        return -1;
+                    if (depth != 1 || i - start != key.length() || !json.regionMatches(start, key, 0, key.length()))
+                        break;
+
+                    int value = skipWhitespace(json, i + 1);
+                    if (value >= length || json.charAt(value) != ':')
+                        break;  //A string value that happens to equal the key.
+                    return skipWhitespace(json, value + 1);
+                }
+                default:
+                    break;
+            }
+        }
+        return -1;
+    }
+
+    //Returns the index of the closing quote.
+    private static int skipString(String json, int start)
+    {
+        for (int i = start; i < json.length(); i++)
+        {
+            char c = json.charAt(i);
+            if (c == '\\')
+                i++;
+            else if (c == '"')
+                return i;
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(String json, int index)
+    {
+        while (index < json.length() && Character.isWhitespace(json.charAt(index)))
+            index++;
+        return index;
+    }
+
+    private static long readLong(String json, int index)
+    {
+        long value = 0;
+        int digits = 0;
+        for (int i = index; i < json.length() && digits < 18; i++, digits++)
+        {
+            char c = json.charAt(i);
+            if (c < '0' || c > '9')
+                break;
+            value = value * 10 + (c - '0');
+        }
+        return digits == 0 ? -1 : value;
+    }
+
+    private static void appendString(StringBuilder builder, String value)
+    {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+                case '"':
+                case '\\':
+                    builder.append('\\').append(c);
+                    break;
+                default:
+                    if (c < 0x20)
+                        builder.append(String.format("\\u%04x", (int) c));
+                    else
+                        builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+}
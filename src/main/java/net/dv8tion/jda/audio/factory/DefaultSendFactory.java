@@ -16,14 +16,33 @@
 
 package net.dv8tion.jda.audio.factory;
 
+import net.dv8tion.jda.DefaultExecutorProvider;
+import net.dv8tion.jda.IExecutorProvider;
+
 /**
  * The default implementation of the {@link net.dv8tion.jda.core.audio.factory.IAudioSendFactory IAudioSendFactory}.
  */
 public class DefaultSendFactory implements IAudioSendFactory
 {
+    private final IExecutorProvider executorProvider;
+
+    public DefaultSendFactory()
+    {
+        this(new DefaultExecutorProvider());
+    }
+
+    /**
+     * @param executorProvider
+     *        Creates the sending thread of every connection.
+     */
+    public DefaultSendFactory(IExecutorProvider executorProvider)
+    {
+        this.executorProvider = executorProvider;
+    }
+
     @Override
     public IAudioSendSystem createSendSystem(IPacketProvider packetProvider)
     {
-        return new DefaultSendSystem(packetProvider);
+        return new DefaultSendSystem(packetProvider, executorProvider);
     }
 }
@@ -17,10 +17,12 @@
 package net.dv8tion.jda.audio.factory;
 
 
+import net.dv8tion.jda.DefaultExecutorProvider;
+import net.dv8tion.jda.IExecutorProvider;
+import net.dv8tion.jda.IExecutorProvider.ThreadType;
 import net.dv8tion.jda.audio.AudioConnection;
 
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.NoRouteToHostException;
 import java.net.SocketException;
 
@@ -28,82 +30,89 @@ import static net.dv8tion.jda.audio.AudioConnection.OPUS_FRAME_TIME_AMOUNT;
 
 /**
  * The default implementation of the {@link net.dv8tion.jda.core.audio.factory.IAudioSendSystem IAudioSendSystem}.
- * <br>This implementation uses a Java thread, named based on: {@link IPacketProvider#getIdentifier()} + " Sending Thread".
+ * <br>This implementation uses a Java thread, named based on: {@link IPacketProvider#getIdentifier()} + " Sending Thread",
+ * created by an {@link IExecutorProvider IExecutorProvider}.
+ * <br>The frames of every connection are sent at a phase of the 20ms period given by the
+ * {@link PhaseBalancer#getDefault() default PhaseBalancer}, so connections don't all send at the same instant.
  */
 public class DefaultSendSystem implements IAudioSendSystem
 {
     private final IPacketProvider packetProvider;
+    private final IExecutorProvider executorProvider;
     private Thread sendThread;
+    private PhaseBalancer.Phase phase;
 
     public DefaultSendSystem(IPacketProvider packetProvider)
+    {
+        this(packetProvider, new DefaultExecutorProvider());
+    }
+
+    public DefaultSendSystem(IPacketProvider packetProvider, IExecutorProvider executorProvider)
     {
         this.packetProvider = packetProvider;
+        this.executorProvider = executorProvider;
     }
 
     @Override
     public void start()
     {
-        final DatagramSocket udpSocket = packetProvider.getUdpSocket();
-
+        final PhaseBalancer.Phase phase = this.phase = PhaseBalancer.getDefault().join();
 
-        sendThread = new Thread(packetProvider.getIdentifier() + " Sending Thread")
+        sendThread = executorProvider.newThread(ThreadType.AUDIO_SEND, packetProvider.getIdentifier() + " Sending Thread", () ->
         {
-            @Override
-            public void run()
+            //The first frame is sent right away, and counted as if it was sent at the last instant of our phase.
+            long lastFrameSent = align(System.currentTimeMillis(), phase, false);
+            while (packetProvider.isUdpOpen() && !Thread.currentThread().isInterrupted())
             {
-                long lastFrameSent = System.currentTimeMillis();
-                while (!udpSocket.isClosed() && !sendThread.isInterrupted())
+                try
                 {
-                    try
-                    {
-                        boolean changeTalking = (System.currentTimeMillis() - lastFrameSent) > OPUS_FRAME_TIME_AMOUNT;
-                        DatagramPacket packet = packetProvider.getNextPacket(changeTalking);
+                    boolean changeTalking = (System.currentTimeMillis() - lastFrameSent) > OPUS_FRAME_TIME_AMOUNT;
+                    DatagramPacket packet = packetProvider.getNextPacket(changeTalking);
 
-                        if (packet != null)
-                            udpSocket.send(packet);
-                    }
-                    catch (NoRouteToHostException e)
-                    {
-                        packetProvider.onConnectionLost();
-                    }
-                    catch (SocketException e)
-                    {
-                        //Most likely the socket has been closed due to the audio connection be closed. Next iteration will kill loop.
-                    }
-                    catch (Exception e)
-                    {
-                        AudioConnection.LOG.log(e);
-                    }
-                    finally
-                    {
+                    if (packet != null)
+                        packetProvider.sendPacket(packet);
+                }
+                catch (NoRouteToHostException e)
+                {
+                    packetProvider.onConnectionLost();
+                }
+                catch (SocketException e)
+                {
+                    //Most likely the socket has been closed due to the audio connection be closed. Next iteration will kill loop.
+                }
+                catch (Exception e)
+                {
+                    AudioConnection.LOG.log(e);
+                }
+                finally
+                {
 
-                        long sleepTime = (OPUS_FRAME_TIME_AMOUNT) - (System.currentTimeMillis() - lastFrameSent);
-                        if (sleepTime > 0)
-                        {
-                            try
-                            {
-                                Thread.sleep(sleepTime);
-                            }
-                            catch (InterruptedException e)
-                            {
-                                //We've been asked to stop.
-                                Thread.currentThread().interrupt();
-                            }
-                        }
-                        if (System.currentTimeMillis() < lastFrameSent + 60) // If the sending didn't took longer than 60ms (3 times the time frame)
+                    long sleepTime = (OPUS_FRAME_TIME_AMOUNT) - (System.currentTimeMillis() - lastFrameSent);
+                    if (sleepTime > 0)
+                    {
+                        try
                         {
-                            lastFrameSent += OPUS_FRAME_TIME_AMOUNT; // increase lastFrameSent
+                            Thread.sleep(sleepTime);
                         }
-                        else
+                        catch (InterruptedException e)
                         {
-                            lastFrameSent = System.currentTimeMillis(); // else reset lastFrameSent to current time
+                            //We've been asked to stop.
+                            Thread.currentThread().interrupt();
                         }
                     }
+                    if (System.currentTimeMillis() < lastFrameSent + 60) // If the sending didn't took longer than 60ms (3 times the time frame)
+                    {
+                        lastFrameSent += OPUS_FRAME_TIME_AMOUNT; // increase lastFrameSent
+                    }
+                    else
+                    {
+                        lastFrameSent = align(System.currentTimeMillis(), phase, false); // else reset lastFrameSent to our last phase instant
+                    }
+                    //Follow the phase if we were moved to another slot.
+                    lastFrameSent = align(lastFrameSent, phase, true);
                 }
             }
-        };
-        sendThread.setPriority((Thread.NORM_PRIORITY + Thread.MAX_PRIORITY) / 2);
-        sendThread.setDaemon(true);
+        });
         sendThread.start();
     }
 
@@ -112,5 +121,16 @@ public class DefaultSendSystem implements IAudioSendSystem
     {
         if (sendThread != null)
             sendThread.interrupt();
+        if (phase != null)
+            phase.leave();
+    }
+
+    //Moves the time to an instant of the phase: the one before it, or with nearest set, whichever is closest.
+    private static long align(long time, PhaseBalancer.Phase phase, boolean nearest)
+    {
+        long offset = Math.floorMod(time - phase.getOffset(OPUS_FRAME_TIME_AMOUNT), (long) OPUS_FRAME_TIME_AMOUNT);
+        if (nearest && offset > OPUS_FRAME_TIME_AMOUNT / 2)
+            return time + OPUS_FRAME_TIME_AMOUNT - offset;
+        return time - offset;
     }
 }
@@ -0,0 +1,142 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio.factory;
+
+import com.neovisionaries.ws.client.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The default implementation of the {@link IVoiceTransportFactory IVoiceTransportFactory}, using nv-websocket-client.
+ * <br>Every transport has its own reading and writing threads.
+ */
+public class DefaultVoiceTransportFactory implements IVoiceTransportFactory
+{
+    private final WebSocketFactory factory = new WebSocketFactory();
+
+    @Override
+    public IVoiceTransport createTransport(String url, String name, IVoiceTransportListener listener) throws IOException
+    {
+        return new Transport(factory.createSocket(url), name, listener);
+    }
+
+    private static class Transport extends WebSocketAdapter implements IVoiceTransport
+    {
+        private final WebSocket socket;
+        private final String name;
+        private final IVoiceTransportListener listener;
+
+        private Transport(WebSocket socket, String name, IVoiceTransportListener listener)
+        {
+            this.socket = socket;
+            this.name = name;
+            this.listener = listener;
+            socket.addListener(this);
+        }
+
+        @Override
+        public void connect()
+        {
+            socket.connectAsynchronously();
+        }
+
+        @Override
+        public void sendText(String message)
+        {
+            socket.sendText(message);
+        }
+
+        @Override
+        public void close(int code)
+        {
+            if (socket.isOpen())
+                socket.sendClose(code);
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return socket.isOpen();
+        }
+
+        @Override
+        public void onConnected(WebSocket websocket, Map<String, List<String>> headers)
+        {
+            listener.onConnected(this);
+        }
+
+        @Override
+        public void onTextMessage(WebSocket websocket, String text)
+        {
+            listener.onTextMessage(this, text);
+        }
+
+        @Override
+        public void onDisconnected(WebSocket websocket, WebSocketFrame serverCloseFrame, WebSocketFrame clientCloseFrame, boolean closedByServer)
+        {
+            listener.onDisconnected(this,
+                    serverCloseFrame == null ? IVoiceTransportListener.NO_CLOSE_CODE : serverCloseFrame.getCloseCode(),
+                    serverCloseFrame == null ? null : serverCloseFrame.getCloseReason(),
+                    clientCloseFrame == null ? IVoiceTransportListener.NO_CLOSE_CODE : clientCloseFrame.getCloseCode(),
+                    closedByServer);
+        }
+
+        @Override
+        public void onConnectError(WebSocket websocket, WebSocketException exception)
+        {
+            listener.onConnectError(this, exception);
+        }
+
+        @Override
+        public void onUnexpectedError(WebSocket websocket, WebSocketException cause)
+        {
+            listener.onError(this, cause);
+        }
+
+        @Override
+        public void handleCallbackError(WebSocket websocket, Throwable cause)
+        {
+            listener.onError(this, cause);
+        }
+
+        @Override
+        public void onThreadCreated(WebSocket websocket, ThreadType threadType, Thread thread)
+        {
+            String identifier = "JDA-Audio";
+            switch (threadType)
+            {
+                case CONNECT_THREAD:
+                    thread.setName(identifier + " AudioWS-ConnectThread (" + name + ')');
+                    break;
+                case FINISH_THREAD:
+                    thread.setName(identifier + " AudioWS-FinishThread (" + name + ')');
+                    break;
+                case WRITING_THREAD:
+                    thread.setName(identifier + " AudioWS-WriteThread (" + name + ')');
+                    break;
+                case READING_THREAD:
+                    thread.setName(identifier + " AudioWS-ReadThread (" + name + ')');
+                    break;
+                default:
+                    thread.setName(identifier + " AudioWS-" + threadType + " (" + name + ')');
+            }
+        }
+    }
+}
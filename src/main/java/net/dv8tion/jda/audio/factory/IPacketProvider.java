@@ -18,6 +18,7 @@ package net.dv8tion.jda.audio.factory;
 
 import net.dv8tion.jda.audio.hooks.ConnectionStatus;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 
@@ -49,11 +50,38 @@ public interface IPacketProvider
      * <br>If you are implementing your own system, it is recommended that you used this connection as it is part of JDA's internal
      * system that JDA monitors for errors and closures. It should be noted however that using this is not required to
      * send audio packets if the developer wishes to open their own UDP socket to send from.
+     * <br>Connections sharing their socket through an {@link IUdpMultiplexer IUdpMultiplexer} that doesn't use
+     * {@code java.net} sockets have no socket, use {@link #sendPacket(DatagramPacket)} to send on them.
      *
-     * @return The UDP socket connection used for audio sending.
+     * @return Possibly-null UDP socket connection used for audio sending.
      */
     DatagramSocket getUdpSocket();
 
+    /**
+     * Sends a packet to Discord through the UDP connection of this audio connection, which may be a shared socket.
+     *
+     * @param  packet
+     *         The packet to send, usually provided by {@link #getNextPacket(boolean)}.
+     *
+     * @throws IOException
+     *         If the packet could not be sent.
+     */
+    default void sendPacket(DatagramPacket packet) throws IOException
+    {
+        getUdpSocket().send(packet);
+    }
+
+    /**
+     * Whether the UDP connection of this audio connection is still open. Send systems should stop once this returns false.
+     *
+     * @return True, if packets can be sent.
+     */
+    default boolean isUdpOpen()
+    {
+        DatagramSocket udpSocket = getUdpSocket();
+        return udpSocket != null && !udpSocket.isClosed();
+    }
+
     /**
      * Used to retrieve an audio packet to send to Discord. The packet provided is already converted to Opus and
      * encrypted, and as such is completely ready to be sent to Discord. The {@code changeTalking} parameter is used
@@ -92,4 +120,17 @@ public interface IPacketProvider
      * reason of {@link net.dv8tion.jda.core.audio.hooks.ConnectionStatus#ERROR_LOST_CONNECTION}.
      */
     void onConnectionLost();
+
+    /**
+     * The {@link QosClass QosClass} of the connection. Send systems serving many connections should use this to decide
+     * which connections to serve first, and which to let fall behind when they can't keep up.
+     * <br>The class of a connection doesn't change while its send system runs, a new send system is created instead.
+     *
+     * @return The QosClass of the connection.
+     *         <br>Default - {@link QosClass#NORMAL NORMAL}.
+     */
+    default QosClass getQosClass()
+    {
+        return QosClass.NORMAL;
+    }
 }
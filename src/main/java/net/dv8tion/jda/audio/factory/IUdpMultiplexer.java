@@ -0,0 +1,139 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio.factory;
+
+import net.dv8tion.jda.audio.UdpDiscovery;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Lets many audio connections share a small amount of local UDP sockets, instead of opening a socket and receiving
+ * thread per connection.
+ * <br>JDA uses {@link net.dv8tion.jda.audio.UdpMultiplexer UdpMultiplexer} once
+ * {@link net.dv8tion.jda.CoreRuntime#enableSharedUdpSockets(int) enabled}, other implementations can be provided with
+ * {@link net.dv8tion.jda.CoreRuntime#setUdpMultiplexer(IUdpMultiplexer)}.
+ */
+public interface IUdpMultiplexer
+{
+    /**
+     * Adds a connection to the voice server at the provided address.
+     *
+     * @param  server
+     *         The address of the voice server.
+     * @param  ssrc
+     *         The SSRC provided by the voice server.
+     *
+     * @throws IOException
+     *         If no socket could be opened, or the multiplexer was shut down.
+     *
+     * @return The registration of the connection, which has to be closed once it is no longer used.
+     */
+    Registration register(InetSocketAddress server, int ssrc) throws IOException;
+
+    /**
+     * Closes the sockets, connections still using them stop sending and receiving.
+     */
+    void shutdown();
+
+    /**
+     * A connection using a shared socket.
+     */
+    interface Registration
+    {
+        /**
+         * Discovers the external address of the shared socket, as seen by the voice server.
+         * <br>The {@link UdpDiscovery.Result#getChannel() channel} of the result may be null if the socket isn't
+         * a {@link java.nio.channels.DatagramChannel DatagramChannel}.
+         *
+         * @return A future completing with the result, or exceptionally if the voice server never responded.
+         */
+        CompletableFuture<UdpDiscovery.Result> discover();
+
+        /**
+         * Sends a packet through the shared socket. The address of the packet is the one of the voice server.
+         *
+         * @param  packet
+         *         The packet to send, which can be reused once this method returns.
+         *
+         * @throws IOException
+         *         If the packet could not be sent.
+         */
+        void send(DatagramPacket packet) throws IOException;
+
+        /**
+         * The socket shared by this connection, if the implementation uses {@code java.net} sockets.
+         * <br>It must not be closed, {@link #close()} this registration instead.
+         *
+         * @return The shared socket, or null.
+         */
+        DatagramSocket getSocket();
+
+        /**
+         * Sets the receiver of the packets of this connection. Until one is set, packets are dropped.
+         *
+         * @param receiver
+         *        The receiver, or null to stop receiving.
+         */
+        void setReceiver(Receiver receiver);
+
+        boolean isClosed();
+
+        /**
+         * Removes this connection from the socket. The socket itself stays open for the other connections.
+         */
+        void close();
+    }
+
+    /**
+     * Receives the packets of a connection from a shared socket.
+     */
+    interface Receiver
+    {
+        /**
+         * Handles a packet received from the voice server of the connection.
+         * <br>The packet is only valid until this method returns.
+         *
+         * @param packet
+         *        The received packet.
+         */
+        void receive(DatagramPacket packet);
+
+        /**
+         * Whether audio with the provided SSRC belongs to this connection, used when several connections on a
+         * socket use the same voice server.
+         *
+         * @param  ssrc
+         *         The SSRC of a received RTP packet.
+         *
+         * @return True, if this connection knows the user with this SSRC.
+         */
+        boolean accepts(int ssrc);
+
+        /**
+         * Called about once a second for housekeeping, never at the same time as {@link #receive(DatagramPacket)}.
+         *
+         * @param now
+         *        The current time in milliseconds.
+         */
+        default void tick(long now) {}
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio.factory;
+
+/**
+ * A WebSocket connection to a voice gateway, created by an {@link IVoiceTransportFactory IVoiceTransportFactory}.
+ * <br>All events of the connection are reported to the {@link IVoiceTransportListener IVoiceTransportListener}
+ * the transport was created with.
+ */
+public interface IVoiceTransport
+{
+    /**
+     * Starts connecting to the voice gateway. This should not block, the result of the attempt is reported
+     * through either {@link IVoiceTransportListener#onConnected(IVoiceTransport)} or
+     * {@link IVoiceTransportListener#onConnectError(IVoiceTransport, Throwable)}.
+     * <p>
+     * This is only called once per instance.
+     */
+    void connect();
+
+    /**
+     * Queues a text message to be sent. This may be called from any thread.
+     *
+     * @param  message
+     *         The message to send.
+     */
+    void sendText(String message);
+
+    /**
+     * Starts the closing handshake with the provided close code. If the transport is not open yet,
+     * the connection attempt is abandoned instead.
+     *
+     * @param  code
+     *         The close code to send.
+     */
+    void close(int code);
+
+    /**
+     * @return True, if the connection is established and not closing.
+     */
+    boolean isOpen();
+}
@@ -0,0 +1,46 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio.factory;
+
+/**
+ * Factory interface for the creation of the {@link IVoiceTransport IVoiceTransports} used to connect to voice gateways.
+ * <br>JDA, by default, uses {@link DefaultVoiceTransportFactory DefaultVoiceTransportFactory}, which uses two threads
+ * per connection. {@link NioVoiceTransportFactory NioVoiceTransportFactory} shares a few threads between all connections.
+ * <p>
+ * Implementations of this interface are provided to
+ * {@link net.dv8tion.jda.audio.AudioWebSocket#setTransportFactory(IVoiceTransportFactory) AudioWebSocket.setTransportFactory(IVoiceTransportFactory)}.
+ */
+public interface IVoiceTransportFactory
+{
+    /**
+     * Called by JDA's audio system for every voice gateway connection, including the ones made to resume a session.
+     *
+     * @param  url
+     *         The {@code wss://} url of the voice gateway.
+     * @param  name
+     *         Name identifying the connection, for example for the names of threads.
+     * @param  listener
+     *         The listener to report the events of the transport to.
+     *
+     * @throws java.io.IOException
+     *         If the transport could not be created.
+     *
+     * @return The new transport, ready for {@link IVoiceTransport#connect()} to be called.
+     */
+    IVoiceTransport createTransport(String url, String name, IVoiceTransportListener listener) throws java.io.IOException;
+}
@@ -0,0 +1,86 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio.factory;
+
+/**
+ * Receives the events of an {@link IVoiceTransport IVoiceTransport}.
+ * <br>Events of one transport are never delivered concurrently.
+ */
+public interface IVoiceTransportListener
+{
+    /**
+     * Code used for a close frame that was not sent or received.
+     */
+    int NO_CLOSE_CODE = -1;
+
+    /**
+     * Called once the WebSocket handshake completed.
+     *
+     * @param  transport
+     *         The connected transport.
+     */
+    void onConnected(IVoiceTransport transport);
+
+    /**
+     * Called for every complete text message received.
+     *
+     * @param  transport
+     *         The transport that received the message.
+     * @param  message
+     *         The received message.
+     */
+    void onTextMessage(IVoiceTransport transport, String message);
+
+    /**
+     * Called once a connected transport is closed, regardless of which side closed it.
+     * <br>If the connection was lost without a closing handshake, the client close code is {@code 1006}.
+     *
+     * @param  transport
+     *         The closed transport.
+     * @param  serverCloseCode
+     *         The close code sent by the server, or {@link #NO_CLOSE_CODE}.
+     * @param  serverCloseReason
+     *         The close reason sent by the server, or {@code null}.
+     * @param  clientCloseCode
+     *         The close code sent by us, or {@link #NO_CLOSE_CODE}.
+     * @param  closedByServer
+     *         Whether the server started the closing handshake.
+     */
+    void onDisconnected(IVoiceTransport transport, int serverCloseCode, String serverCloseReason, int clientCloseCode, boolean closedByServer);
+
+    /**
+     * Called if the transport could not be connected. {@link #onDisconnected(IVoiceTransport, int, String, int, boolean) onDisconnected}
+     * is not called in this case.
+     *
+     * @param  transport
+     *         The transport that failed to connect.
+     * @param  cause
+     *         The reason of the failure.
+     */
+    void onConnectError(IVoiceTransport transport, Throwable cause);
+
+    /**
+     * Called for errors that don't necessarily close the transport.
+     *
+     * @param  transport
+     *         The transport that encountered the error.
+     * @param  cause
+     *         The error.
+     */
+    void onError(IVoiceTransport transport, Throwable cause);
+}
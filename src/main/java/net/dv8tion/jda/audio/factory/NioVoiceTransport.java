@@ -0,0 +1,789 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio.factory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static net.dv8tion.jda.audio.factory.IVoiceTransportListener.NO_CLOSE_CODE;
+
+/**
+ * WebSocket client connection driven by a {@link NioVoiceTransportFactory.EventLoop NioVoiceTransportFactory.EventLoop}.
+ * <br>Everything but {@link #sendText(String)}, {@link #close(int)} and {@link #isOpen()} runs on the event loop,
+ * so the socket, TLS and framing state is never shared between threads.
+ */
+public class NioVoiceTransport implements IVoiceTransport
+{
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final long CONNECT_TIMEOUT = 10000;
+    private static final long CLOSE_TIMEOUT = 5000;
+    private static final int MAX_UPGRADE_RESPONSE_SIZE = 16384;
+    private static final int MAX_MESSAGE_SIZE = 1 << 20;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    private static final int CLOSE_NO_STATUS = 1005;
+    private static final int CLOSE_ABNORMAL = 1006;
+
+    private enum State
+    {
+        NEW, CONNECTING, UPGRADING, OPEN, CLOSING, CLOSED
+    }
+
+    private final NioVoiceTransportFactory.EventLoop loop;
+    private final SSLContext sslContext;
+    private final URI uri;
+    private final String host;
+    private final int port;
+    private final IVoiceTransportListener listener;
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile State state = State.NEW;
+
+    //Only accessed by the event loop
+    private SocketChannel channel;
+    private SelectionKey key;
+    private SSLEngine engine;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private ByteBuffer currentOut;
+    private String expectedAccept;
+    private long deadline;
+    private boolean closeAfterFlush;
+    private int messageOpcode = -1;
+    private final ByteArrayOutputStream fragments = new ByteArrayOutputStream();
+    private int serverCloseCode = NO_CLOSE_CODE;
+    private String serverCloseReason;
+    private int clientCloseCode = NO_CLOSE_CODE;
+    private boolean closedByServer;
+
+    NioVoiceTransport(NioVoiceTransportFactory.EventLoop loop, SSLContext sslContext, URI uri, IVoiceTransportListener listener)
+    {
+        if (!"wss".equalsIgnoreCase(uri.getScheme()))
+            throw new IllegalArgumentException("Only wss:// urls are supported: " + uri);
+
+        this.loop = loop;
+        this.sslContext = sslContext;
+        this.uri = uri;
+        this.host = uri.getHost();
+        this.port = uri.getPort() == -1 ? 443 : uri.getPort();
+        this.listener = listener;
+    }
+
+    @Override
+    public void connect()
+    {
+        loop.execute(() ->
+        {
+            if (state != State.NEW)
+                return;
+            state = State.CONNECTING;
+            deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+
+            //Resolving blocks, so it is done off the event loop. Until there is a key, the loop checks our timeout separately.
+            loop.addResolving(this);
+            try
+            {
+                CompletableFuture.supplyAsync(() -> new InetSocketAddress(host, port), loop.getResolver()).whenComplete((address, error) ->
+                    loop.execute(() ->
+                    {
+                        loop.removeResolving(this);
+                        if (state != State.CONNECTING)
+                            return;
+                        if (error != null)
+                            fail(error);
+                        else if (address.isUnresolved())
+                            fail(new UnknownHostException(host));
+                        else
+                            open(address);
+                    }));
+            }
+            catch (RejectedExecutionException e)
+            {
+                fail(e);
+            }
+        });
+    }
+
+    @Override
+    public void sendText(String message)
+    {
+        if (state != State.OPEN)
+        {
+            NioVoiceTransportFactory.LOG.debug("Dropped a message sent while the transport is not open");
+            return;
+        }
+        outbound.add(frame(OP_TEXT, message.getBytes(StandardCharsets.UTF_8)));
+        scheduleFlush();
+    }
+
+    @Override
+    public void close(int code)
+    {
+        loop.execute(() ->
+        {
+            switch (state)
+            {
+                case OPEN:
+                    state = State.CLOSING;
+                    clientCloseCode = code;
+                    deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+                    outbound.add(frame(OP_CLOSE, new byte[] {(byte) (code >> 8), (byte) code}));
+                    pumpSafely();
+                    break;
+                case CLOSING:
+                case CLOSED:
+                    break;
+                default:
+                    //Not connected yet, abandon the attempt without reporting anything.
+                    state = State.CLOSED;
+                    loop.removeResolving(this);
+                    closeChannel();
+            }
+        });
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return state == State.OPEN;
+    }
+
+    void handle(SelectionKey key)
+    {
+        try
+        {
+            if (!key.isValid())
+                return;
+            if (key.isConnectable())
+            {
+                if (channel.finishConnect())
+                    onTcpConnected();
+                return;
+            }
+            if (key.isReadable() && channel.read(netIn) < 0)
+            {
+                connectionLost(new EOFException("Connection closed by the server"));
+                return;
+            }
+            pump();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            connectionLost(e);
+        }
+    }
+
+    void checkTimeout(long now)
+    {
+        if (now < deadline)
+            return;
+        switch (state)
+        {
+            case CONNECTING:
+            case UPGRADING:
+                fail(new SocketTimeoutException("Timed out connecting to " + uri));
+                break;
+            case CLOSING:
+                terminate();
+                break;
+            default:
+                break;
+        }
+    }
+
+    void abort(Throwable cause)
+    {
+        connectionLost(cause);
+    }
+
+    private void open(InetSocketAddress address)
+    {
+        try
+        {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            engine = sslContext.createSSLEngine(host, port);
+            engine.setUseClientMode(true);
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+            netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+
+            key = channel.register(loop.getSelector(), 0, this);
+            if (channel.connect(address))
+                onTcpConnected();
+            else
+                key.interestOps(SelectionKey.OP_CONNECT);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            fail(e);
+        }
+    }
+
+    private void onTcpConnected() throws IOException
+    {
+        state = State.UPGRADING;
+        key.interestOps(SelectionKey.OP_READ);
+
+        byte[] nonce = new byte[16];
+        ThreadLocalRandom.current().nextBytes(nonce);
+        String secKey = Base64.getEncoder().encodeToString(nonce);
+        expectedAccept = accept(secKey);
+
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null)
+            path += "?" + uri.getRawQuery();
+        String request = "GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + host + (port == 443 ? "" : ":" + port) + "\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + secKey + "\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n";
+        //Queued like any other data, it is sent once the TLS handshake is done.
+        outbound.add(ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1)));
+        engine.beginHandshake();
+        pump();
+    }
+
+    private void scheduleFlush()
+    {
+        if (flushScheduled.compareAndSet(false, true))
+        {
+            loop.execute(() ->
+            {
+                flushScheduled.set(false);
+                pumpSafely();
+            });
+        }
+    }
+
+    private void pumpSafely()
+    {
+        if (state == State.CLOSED || engine == null)
+            return;
+        try
+        {
+            pump();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            connectionLost(e);
+        }
+    }
+
+    //Moves data between the socket, the TLS engine and the WebSocket framing until nothing can progress.
+    private void pump() throws IOException
+    {
+        boolean progress;
+        do
+        {
+            switch (engine.getHandshakeStatus())
+            {
+                case NEED_TASK:
+                {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null)
+                        task.run();
+                    progress = true;
+                    break;
+                }
+                case NEED_WRAP:
+                    progress = wrap(EMPTY);
+                    break;
+                case NEED_UNWRAP:
+                    progress = unwrap();
+                    break;
+                default:
+                    progress = unwrap();
+                    if (state != State.CLOSED)
+                        progress |= wrapOutbound();
+            }
+            if (state == State.CLOSED)
+                return;
+        }
+        while (progress);
+
+        boolean flushed = flushNet();
+        if (flushed && closeAfterFlush && outbound.isEmpty() && (currentOut == null || !currentOut.hasRemaining()))
+            terminate();
+    }
+
+    private boolean wrapOutbound() throws IOException
+    {
+        boolean progress = false;
+        while (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+        {
+            if (currentOut == null || !currentOut.hasRemaining())
+            {
+                currentOut = outbound.poll();
+                if (currentOut == null)
+                    break;
+            }
+            if (!wrap(currentOut))
+                break;
+            progress = true;
+        }
+        return progress;
+    }
+
+    private boolean wrap(ByteBuffer source) throws IOException
+    {
+        SSLEngineResult result = engine.wrap(source, netOut);
+        switch (result.getStatus())
+        {
+            case BUFFER_OVERFLOW:
+                if (!flushNet())
+                    return false;   //Continues once the socket is writable.
+                if (netOut.position() == 0 && netOut.capacity() < engine.getSession().getPacketBufferSize())
+                    netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                return true;
+            case CLOSED:
+                throw new SSLException("The TLS connection was closed");
+            default:
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    private boolean unwrap() throws IOException
+    {
+        if (netIn.position() == 0)
+            return false;
+
+        netIn.flip();
+        SSLEngineResult result;
+        try
+        {
+            result = engine.unwrap(netIn, appIn);
+        }
+        finally
+        {
+            netIn.compact();
+        }
+
+        switch (result.getStatus())
+        {
+            case BUFFER_UNDERFLOW:
+                if (!netIn.hasRemaining())
+                    netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                return false;
+            case BUFFER_OVERFLOW:
+                appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                return true;
+            case CLOSED:
+                connectionLost(new EOFException("The TLS connection was closed"));
+                return false;
+            default:
+                if (result.bytesProduced() > 0)
+                    processApplicationData();
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    private boolean flushNet() throws IOException
+    {
+        if (netOut.position() > 0)
+        {
+            netOut.flip();
+            channel.write(netOut);
+            netOut.compact();
+        }
+        boolean flushed = netOut.position() == 0;
+        if (key.isValid())
+            key.interestOps(flushed ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return flushed;
+    }
+
+    private void processApplicationData() throws IOException
+    {
+        appIn.flip();
+        try
+        {
+            if (state == State.UPGRADING && !readUpgradeResponse())
+                return;
+            while ((state == State.OPEN || state == State.CLOSING) && readFrame())
+            {
+                //Handled in readFrame
+            }
+        }
+        finally
+        {
+            appIn.compact();
+        }
+    }
+
+    private boolean readUpgradeResponse() throws IOException
+    {
+        if (!parseUpgradeResponse(appIn, expectedAccept))
+            return false;
+
+        state = State.OPEN;
+        try
+        {
+            listener.onConnected(this);
+        }
+        catch (Throwable t)
+        {
+            listener.onError(this, t);
+        }
+        return true;
+    }
+
+    private boolean readFrame() throws IOException
+    {
+        Frame frame = decodeFrame(appIn);
+        if (frame == null)
+            return false;
+        handleFrame(frame.fin, frame.opcode, frame.payload);
+        return true;
+    }
+
+    private void handleFrame(boolean fin, int opcode, byte[] payload) throws IOException
+    {
+        switch (opcode)
+        {
+            case OP_CONTINUATION:
+                if (messageOpcode == -1)
+                    throw new IOException("Received a continuation frame without a message to continue");
+                appendFragment(fin, payload);
+                break;
+            case OP_PING:
+                if (state == State.OPEN)
+                    outbound.add(frame(OP_PONG, payload));
+                break;
+            case OP_PONG:
+                break;
+            case OP_CLOSE:
+                serverCloseCode = payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : CLOSE_NO_STATUS;
+                serverCloseReason = payload.length > 2 ? new String(payload, 2, payload.length - 2, StandardCharsets.UTF_8) : "";
+                if (state == State.OPEN)
+                {
+                    //Echo the close frame before disconnecting.
+                    closedByServer = true;
+                    clientCloseCode = serverCloseCode == CLOSE_NO_STATUS ? 1000 : serverCloseCode;
+                    state = State.CLOSING;
+                    outbound.add(frame(OP_CLOSE, new byte[] {(byte) (clientCloseCode >> 8), (byte) clientCloseCode}));
+                    deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+                }
+                closeAfterFlush = true;
+                break;
+            default:
+                if (opcode > 0x7)
+                    break;  //Unknown control frame.
+                if (messageOpcode != -1)
+                    throw new IOException("Received a new message while a fragmented message is incomplete");
+                messageOpcode = opcode;
+                appendFragment(fin, payload);
+        }
+    }
+
+    private void appendFragment(boolean fin, byte[] payload) throws IOException
+    {
+        if (!fin)
+        {
+            if (fragments.size() + payload.length > MAX_MESSAGE_SIZE)
+                throw new IOException("Received a message larger than " + MAX_MESSAGE_SIZE + " bytes");
+            fragments.write(payload, 0, payload.length);
+            return;
+        }
+
+        int opcode = messageOpcode;
+        byte[] message = payload;
+        if (fragments.size() > 0)
+        {
+            fragments.write(payload, 0, payload.length);
+            message = fragments.toByteArray();
+            fragments.reset();
+        }
+        messageOpcode = -1;
+
+        //Voice gateways only send text, binary messages are ignored.
+        if (opcode != OP_TEXT || state != State.OPEN)
+            return;
+        try
+        {
+            listener.onTextMessage(this, new String(message, StandardCharsets.UTF_8));
+        }
+        catch (Throwable t)
+        {
+            listener.onError(this, t);
+        }
+    }
+
+    private void connectionLost(Throwable cause)
+    {
+        switch (state)
+        {
+            case OPEN:
+                clientCloseCode = CLOSE_ABNORMAL;
+                listener.onError(this, cause);
+                terminate();
+                break;
+            case CLOSING:
+                //The server closing the connection is the expected end of the closing handshake.
+                terminate();
+                break;
+            case CLOSED:
+                break;
+            default:
+                fail(cause);
+        }
+    }
+
+    private void fail(Throwable cause)
+    {
+        loop.removeResolving(this);
+        if (state == State.CLOSED)
+            return;
+        state = State.CLOSED;
+        closeChannel();
+        listener.onConnectError(this, cause);
+    }
+
+    private void terminate()
+    {
+        if (state == State.CLOSED)
+            return;
+        state = State.CLOSED;
+        closeChannel();
+        listener.onDisconnected(this, serverCloseCode, serverCloseReason, clientCloseCode, closedByServer);
+    }
+
+    private void closeChannel()
+    {
+        outbound.clear();
+        if (key != null)
+            key.cancel();
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Reads the HTTP response to the upgrade request from the buffer.
+     *
+     * @param  in
+     *         The received bytes, positioned at the start of the response.
+     *         Only the response head is consumed, anything after it is left in the buffer.
+     * @param  expectedAccept
+     *         The Sec-WebSocket-Accept value the server has to send back.
+     *
+     * @throws IOException
+     *         If the server refused the upgrade, or the response is invalid or too large.
+     *
+     * @return False if the response is still incomplete, in which case nothing was consumed.
+     */
+    static boolean parseUpgradeResponse(ByteBuffer in, String expectedAccept) throws IOException
+    {
+        int start = in.position();
+        int end = -1;
+        for (int i = start; i + 3 < in.limit(); i++)
+        {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n')
+            {
+                end = i + 4;
+                break;
+            }
+        }
+        if (end < 0)
+        {
+            if (in.remaining() > MAX_UPGRADE_RESPONSE_SIZE)
+                throw new IOException("The upgrade response is too large");
+            return false;
+        }
+
+        byte[] head = new byte[end - start];
+        in.get(head);
+        String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+        if (!lines[0].startsWith("HTTP/1.1 101"))
+            throw new IOException("The server refused the WebSocket upgrade: " + lines[0]);
+
+        boolean accepted = false;
+        for (int i = 1; i < lines.length; i++)
+        {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Accept"))
+                accepted = lines[i].substring(colon + 1).trim().equals(expectedAccept);
+        }
+        if (!accepted)
+            throw new IOException("The server sent an invalid Sec-WebSocket-Accept header");
+        return true;
+    }
+
+    /**
+     * Reads one WebSocket frame from the buffer, unmasking its payload if needed.
+     *
+     * @param  in
+     *         The received bytes, positioned at the start of a frame.
+     *
+     * @throws IOException
+     *         If the frame is larger than a message may be.
+     *
+     * @return The frame, or null if it is still incomplete, in which case nothing was consumed.
+     */
+    static Frame decodeFrame(ByteBuffer in) throws IOException
+    {
+        int start = in.position();
+        if (in.remaining() < 2)
+            return null;
+
+        int first = in.get() & 0xFF;
+        int second = in.get() & 0xFF;
+        boolean masked = (second & 0x80) != 0;
+        long length = second & 0x7F;
+        int extra = (length == 126 ? 2 : length == 127 ? 8 : 0) + (masked ? 4 : 0);
+        if (in.remaining() < extra)
+        {
+            in.position(start);
+            return null;
+        }
+        if (length == 126)
+            length = in.getShort() & 0xFFFF;
+        else if (length == 127)
+            length = in.getLong();
+        if (length < 0 || length > MAX_MESSAGE_SIZE)
+            throw new IOException("Received a frame of " + length + " bytes");
+
+        byte[] mask = null;
+        if (masked)
+        {
+            mask = new byte[4];
+            in.get(mask);
+        }
+        if (in.remaining() < length)
+        {
+            //The rest of the frame is still in transit.
+            in.position(start);
+            return null;
+        }
+
+        byte[] payload = new byte[(int) length];
+        in.get(payload);
+        if (mask != null)
+        {
+            for (int i = 0; i < payload.length; i++)
+                payload[i] ^= mask[i & 3];
+        }
+        return new Frame((first & 0x80) != 0, first & 0x0F, payload);
+    }
+
+    static ByteBuffer frame(int opcode, byte[] payload)
+    {
+        int length = payload.length;
+        int header = 2 + (length < 126 ? 0 : length <= 0xFFFF ? 2 : 8) + 4;
+        ByteBuffer frame = ByteBuffer.allocate(header + length);
+        frame.put((byte) (0x80 | opcode));
+        if (length < 126)
+        {
+            frame.put((byte) (0x80 | length));
+        }
+        else if (length <= 0xFFFF)
+        {
+            frame.put((byte) (0x80 | 126));
+            frame.putShort((short) length);
+        }
+        else
+        {
+            frame.put((byte) (0x80 | 127));
+            frame.putLong(length);
+        }
+
+        //Clients have to mask every frame they send.
+        int mask = ThreadLocalRandom.current().nextInt();
+        frame.putInt(mask);
+        for (int i = 0; i < length; i++)
+            frame.put((byte) (payload[i] ^ (mask >>> (24 - 8 * (i & 3)))));
+        frame.flip();
+        return frame;
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int additional)
+    {
+        ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() + additional);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    static String accept(String secKey)
+    {
+        try
+        {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((secKey + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    static final class Frame
+    {
+        final boolean fin;
+        final int opcode;
+        final byte[] payload;
+
+        Frame(boolean fin, int opcode, byte[] payload)
+        {
+            this.fin = fin;
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio.factory;
+
+import net.dv8tion.jda.DefaultExecutorProvider;
+import net.dv8tion.jda.IExecutorProvider;
+import net.dv8tion.jda.IExecutorProvider.ThreadType;
+import net.dv8tion.jda.utils.SimpleLog;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link IVoiceTransportFactory IVoiceTransportFactory} multiplexing all voice gateway connections over a few
+ * event-loop threads using non-blocking sockets and an {@link javax.net.ssl.SSLEngine SSLEngine}.
+ * <br>Listener callbacks run on the event-loop threads, so they must not block.
+ */
+public class NioVoiceTransportFactory implements IVoiceTransportFactory
+{
+    public static final SimpleLog LOG = SimpleLog.getLog("NioVoiceTransport");
+
+    //How long an idle thread resolving host names is kept.
+    private static final long RESOLVER_KEEP_ALIVE = 60;
+
+    private final EventLoop[] loops;
+    private final ExecutorService resolver;
+    private final SSLContext sslContext;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public NioVoiceTransportFactory() throws IOException
+    {
+        this(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+    }
+
+    /**
+     * @param  threads
+     *         The amount of event-loop threads.
+     *
+     * @throws IOException
+     *         If a selector could not be opened or TLS is not available.
+     */
+    public NioVoiceTransportFactory(int threads) throws IOException
+    {
+        this(threads, defaultContext());
+    }
+
+    /**
+     * @param  threads
+     *         The amount of event-loop threads.
+     * @param  sslContext
+     *         The context used to create the TLS engines of the connections.
+     *
+     * @throws IOException
+     *         If a selector could not be opened.
+     */
+    public NioVoiceTransportFactory(int threads, SSLContext sslContext) throws IOException
+    {
+        this(threads, sslContext, new DefaultExecutorProvider());
+    }
+
+    /**
+     * @param  threads
+     *         The amount of event-loop threads.
+     * @param  sslContext
+     *         The context used to create the TLS engines of the connections.
+     * @param  executorProvider
+     *         Creates the event-loop threads, and the threads resolving host names.
+     *
+     * @throws IOException
+     *         If a selector could not be opened.
+     */
+    public NioVoiceTransportFactory(int threads, SSLContext sslContext, IExecutorProvider executorProvider) throws IOException
+    {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Thread count must be positive");
+
+        this.sslContext = sslContext;
+        //Resolving blocks, so it gets threads of its own, only kept while connections are being made.
+        AtomicInteger resolverCount = new AtomicInteger(0);
+        this.resolver = new ThreadPoolExecutor(0, Integer.MAX_VALUE, RESOLVER_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                task -> executorProvider.newThread(ThreadType.TRANSPORT, "JDA Audio-Transport Resolver " + resolverCount.incrementAndGet(), task));
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            loops[i] = new EventLoop(resolver);
+            loops[i].thread = executorProvider.newThread(ThreadType.TRANSPORT, "JDA Audio-Transport EventLoop " + (i + 1), loops[i]);
+            loops[i].thread.start();
+        }
+    }
+
+    @Override
+    public IVoiceTransport createTransport(String url, String name, IVoiceTransportListener listener)
+    {
+        EventLoop loop = loops[Math.abs(next.getAndIncrement() % loops.length)];
+        return new NioVoiceTransport(loop, sslContext, URI.create(url), listener);
+    }
+
+    private static SSLContext defaultContext() throws IOException
+    {
+        try
+        {
+            return SSLContext.getDefault();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("TLS is not available", e);
+        }
+    }
+
+    /**
+     * Stops the event-loop threads. Transports that are still open are closed without a closing handshake.
+     */
+    public void shutdown()
+    {
+        for (EventLoop loop : loops)
+            loop.shutdown();
+        resolver.shutdown();
+    }
+
+    static class EventLoop implements Runnable
+    {
+        //How often transports are checked for expired closing handshakes.
+        private static final long TIMEOUT_CHECK_INTERVAL = 1000;
+
+        private final Selector selector;
+        private final ExecutorService resolver;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        //Transports resolving their address have no key yet, so their connect timeout is checked from here.
+        private final Set<NioVoiceTransport> resolving = new HashSet<>();
+        private volatile boolean running = true;
+        private Thread thread;
+
+        EventLoop(ExecutorService resolver) throws IOException
+        {
+            this.selector = Selector.open();
+            this.resolver = resolver;
+        }
+
+        Selector getSelector()
+        {
+            return selector;
+        }
+
+        ExecutorService getResolver()
+        {
+            return resolver;
+        }
+
+        //Only called on the event loop, like removeResolving.
+        void addResolving(NioVoiceTransport transport)
+        {
+            resolving.add(transport);
+        }
+
+        void removeResolving(NioVoiceTransport transport)
+        {
+            resolving.remove(transport);
+        }
+
+        boolean inEventLoop()
+        {
+            return Thread.currentThread() == thread;
+        }
+
+        void execute(Runnable task)
+        {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown()
+        {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            long lastTimeoutCheck = System.currentTimeMillis();
+            while (running)
+            {
+                try
+                {
+                    selector.select(TIMEOUT_CHECK_INTERVAL);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext())
+                    {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        ((NioVoiceTransport) key.attachment()).handle(key);
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastTimeoutCheck >= TIMEOUT_CHECK_INTERVAL)
+                    {
+                        lastTimeoutCheck = now;
+                        for (SelectionKey key : selector.keys())
+                            ((NioVoiceTransport) key.attachment()).checkTimeout(now);
+                        //Timing out removes the transport from the set.
+                        for (NioVoiceTransport transport : new ArrayList<>(resolving))
+                            transport.checkTimeout(now);
+                    }
+                }
+                catch (Throwable t)
+                {
+                    LOG.log(t);
+                }
+            }
+
+            for (SelectionKey key : selector.keys())
+                ((NioVoiceTransport) key.attachment()).abort(new IOException("Event loop was shut down"));
+            for (NioVoiceTransport transport : new ArrayList<>(resolving))
+                transport.abort(new IOException("Event loop was shut down"));
+            try
+            {
+                selector.close();
+            }
+            catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio.factory;
+
+import net.dv8tion.jda.audio.AudioConnection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spreads senders over the slots of a frame, so connections that started at the same time don't all send at the same
+ * instant of every frame. Every sender gets the slot with the fewest senders, and when senders leave, senders of the
+ * fullest slots are moved until no slot has more than one sender more than another.
+ * <br>Senders read their {@link Phase Phase} every frame, so they follow when they are moved.
+ */
+public class PhaseBalancer
+{
+    //One slot per millisecond of a frame, shared by all DefaultSendSystems of the JVM as they share its CPUs and NICs.
+    private static final PhaseBalancer DEFAULT = new PhaseBalancer(AudioConnection.OPUS_FRAME_TIME_AMOUNT);
+
+    private final List<List<Phase>> slots;
+
+    /**
+     * @param slotCount
+     *        The amount of slots a frame is divided into.
+     */
+    public PhaseBalancer(int slotCount)
+    {
+        if (slotCount <= 0)
+            throw new IllegalArgumentException("Slot count must be positive");
+
+        slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++)
+            slots.add(new ArrayList<>());
+    }
+
+    public static PhaseBalancer getDefault()
+    {
+        return DEFAULT;
+    }
+
+    public int getSlotCount()
+    {
+        return slots.size();
+    }
+
+    public synchronized Phase join()
+    {
+        Phase phase = new Phase(this, emptiest());
+        slots.get(phase.slot).add(phase);
+        return phase;
+    }
+
+    public synchronized void leave(Phase phase)
+    {
+        if (!slots.get(phase.slot).remove(phase))
+            return;
+
+        while (true)
+        {
+            int fullest = fullest();
+            int emptiest = emptiest();
+            if (slots.get(fullest).size() - slots.get(emptiest).size() <= 1)
+                return;
+            Phase moved = slots.get(fullest).remove(slots.get(fullest).size() - 1);
+            moved.slot = emptiest;
+            slots.get(emptiest).add(moved);
+        }
+    }
+
+    private int emptiest()
+    {
+        int best = 0;
+        for (int i = 1; i < slots.size(); i++)
+        {
+            if (slots.get(i).size() < slots.get(best).size())
+                best = i;
+        }
+        return best;
+    }
+
+    private int fullest()
+    {
+        int best = 0;
+        for (int i = 1; i < slots.size(); i++)
+        {
+            if (slots.get(i).size() > slots.get(best).size())
+                best = i;
+        }
+        return best;
+    }
+
+    /**
+     * The slot of a sender, which can change while it is sending.
+     */
+    public static class Phase
+    {
+        private final PhaseBalancer balancer;
+        private volatile int slot;
+
+        private Phase(PhaseBalancer balancer, int slot)
+        {
+            this.balancer = balancer;
+            this.slot = slot;
+        }
+
+        public int getSlot()
+        {
+            return slot;
+        }
+
+        /**
+         * The offset of this phase in a frame.
+         *
+         * @param  period
+         *         The length of a frame, in any unit.
+         *
+         * @return The offset in the unit of the period.
+         */
+        public long getOffset(long period)
+        {
+            return slot * period / balancer.getSlotCount();
+        }
+
+        public void leave()
+        {
+            balancer.leave(this);
+        }
+    }
+}
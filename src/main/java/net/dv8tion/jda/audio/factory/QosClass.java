@@ -0,0 +1,34 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio.factory;
+
+/**
+ * How important timely sending is for a connection, provided to send factories through
+ * {@link IPacketProvider#getQosClass()}.
+ * <br>Factories sharing threads between connections, like the {@link SharedSendFactory SharedSendFactory}, serve
+ * higher classes first and let best-effort connections fall behind first when they are overloaded.
+ */
+public enum QosClass
+{
+    /** Served before all other connections. */
+    HIGH,
+    /** The class of connections unless configured otherwise. */
+    NORMAL,
+    /** Only served once the other connections were, and skipped for a frame when the sender is running late. */
+    BEST_EFFORT
+}
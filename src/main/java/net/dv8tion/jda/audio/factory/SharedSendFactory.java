@@ -0,0 +1,236 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio.factory;
+
+import net.dv8tion.jda.DefaultExecutorProvider;
+import net.dv8tion.jda.IExecutorProvider;
+import net.dv8tion.jda.IExecutorProvider.ThreadType;
+import net.dv8tion.jda.audio.AudioConnection;
+
+import java.net.DatagramPacket;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static net.dv8tion.jda.audio.AudioConnection.OPUS_FRAME_TIME_AMOUNT;
+
+/**
+ * {@link IAudioSendFactory IAudioSendFactory} sending the audio of many connections from a fixed amount of threads.
+ * <br>Every thread serves all of its connections once per frame, so the amount of threads depends on the hardware
+ * instead of the amount of connections. New connections are assigned to the thread serving the fewest connections.
+ * <p>
+ * The threads are staggered over the frame, and every thread divides its connections over the sub-ticks of a frame with
+ * a {@link PhaseBalancer PhaseBalancer}, so packets are sent evenly over the frame instead of in one burst.
+ * <p>
+ * Every thread serves its connections in order of their {@link QosClass QosClass}, so when a frame takes longer than
+ * expected the connections of higher classes have already sent theirs. Once a thread runs more than half a frame late,
+ * it skips its {@link QosClass#BEST_EFFORT BEST_EFFORT} connections for that frame, so they degrade first.
+ */
+public class SharedSendFactory implements IAudioSendFactory
+{
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(OPUS_FRAME_TIME_AMOUNT);
+    private static final long BEST_EFFORT_LATENESS = FRAME_NANOS / 2;
+    private static final int SUB_TICKS = 4;
+    private static final long SUB_TICK_NANOS = FRAME_NANOS / SUB_TICKS;
+
+    private final SendLoop[] loops;
+
+    public SharedSendFactory()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads
+     *        The amount of sending threads.
+     */
+    public SharedSendFactory(int threads)
+    {
+        this(threads, new DefaultExecutorProvider());
+    }
+
+    /**
+     * @param threads
+     *        The amount of sending threads.
+     * @param executorProvider
+     *        Creates the sending threads.
+     */
+    public SharedSendFactory(int threads, IExecutorProvider executorProvider)
+    {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Thread count must be positive");
+
+        loops = new SendLoop[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            loops[i] = new SendLoop(i * FRAME_NANOS / threads);
+            loops[i].thread = executorProvider.newThread(ThreadType.AUDIO_SEND, "JDA Audio-Shared Sending Thread " + (i + 1), loops[i]);
+            loops[i].thread.start();
+        }
+    }
+
+    @Override
+    public IAudioSendSystem createSendSystem(IPacketProvider packetProvider)
+    {
+        return new SharedSendSystem(packetProvider);
+    }
+
+    /**
+     * Stops the sending threads. Connections still using this factory stop sending.
+     */
+    public void shutdown()
+    {
+        for (SendLoop loop : loops)
+            loop.thread.interrupt();
+    }
+
+    private synchronized SendLoop register(SharedSendSystem system)
+    {
+        SendLoop target = loops[0];
+        for (SendLoop loop : loops)
+        {
+            if (loop.systems.size() < target.systems.size())
+                target = loop;
+        }
+        system.phase = target.phases.join();
+        target.add(system);
+        return target;
+    }
+
+    //Synchronized with register, which inserts at a position depending on the current systems.
+    private synchronized void unregister(SendLoop loop, SharedSendSystem system)
+    {
+        if (loop.systems.remove(system))
+            system.phase.leave();
+    }
+
+    private class SharedSendSystem implements IAudioSendSystem
+    {
+        private final IPacketProvider packetProvider;
+        private final QosClass qosClass;
+        private volatile SendLoop loop;
+        private volatile PhaseBalancer.Phase phase;
+
+        private SharedSendSystem(IPacketProvider packetProvider)
+        {
+            this.packetProvider = packetProvider;
+            this.qosClass = packetProvider.getQosClass();
+        }
+
+        @Override
+        public void start()
+        {
+            if (loop == null)
+                loop = register(this);
+        }
+
+        @Override
+        public void shutdown()
+        {
+            SendLoop current = loop;
+            loop = null;
+            if (current != null)
+                unregister(current, this);
+        }
+
+        private void send(boolean changeTalking)
+        {
+            if (!packetProvider.isUdpOpen())
+            {
+                shutdown();
+                return;
+            }
+            try
+            {
+                DatagramPacket packet = packetProvider.getNextPacket(changeTalking);
+                if (packet != null)
+                    packetProvider.sendPacket(packet);
+            }
+            catch (NoRouteToHostException e)
+            {
+                packetProvider.onConnectionLost();
+            }
+            catch (SocketException e)
+            {
+                //Most likely the socket has been closed due to the audio connection be closed. Next tick removes it.
+            }
+            catch (Exception e)
+            {
+                AudioConnection.LOG.log(e);
+            }
+        }
+    }
+
+    private static class SendLoop implements Runnable
+    {
+        //Sorted by QosClass, higher classes first.
+        private final List<SharedSendSystem> systems = new CopyOnWriteArrayList<>();
+        private final PhaseBalancer phases = new PhaseBalancer(SUB_TICKS);
+        private final long offset;
+        private Thread thread;
+
+        private SendLoop(long offset)
+        {
+            this.offset = offset;
+        }
+
+        //Only called while holding the lock of the factory.
+        private void add(SharedSendSystem system)
+        {
+            int index = 0;
+            while (index < systems.size() && systems.get(index).qosClass.compareTo(system.qosClass) <= 0)
+                index++;
+            systems.add(index, system);
+        }
+
+        @Override
+        public void run()
+        {
+            long deadline = System.nanoTime() + offset;
+            int subTick = 0;
+            while (!Thread.currentThread().isInterrupted())
+            {
+                long now = System.nanoTime();
+                if (now < deadline)
+                {
+                    LockSupport.parkNanos(this, deadline - now);
+                    continue;
+                }
+
+                //Like DefaultSendSystem, connections may only change their speaking state once they fell a frame behind.
+                boolean changeTalking = now - deadline > FRAME_NANOS;
+                for (SharedSendSystem system : systems)
+                {
+                    if (system.phase.getSlot() != subTick)
+                        continue;
+                    if (system.qosClass == QosClass.BEST_EFFORT && System.nanoTime() - deadline > BEST_EFFORT_LATENESS)
+                        break;  //Only best-effort connections are left, they wait for the next frame.
+                    system.send(changeTalking);
+                }
+
+                subTick = (subTick + 1) % SUB_TICKS;
+                deadline += SUB_TICK_NANOS;
+                if (System.nanoTime() - deadline > 2 * FRAME_NANOS)
+                    deadline = System.nanoTime();   //Too far behind to catch up, skip the missed frames.
+            }
+        }
+    }
+}
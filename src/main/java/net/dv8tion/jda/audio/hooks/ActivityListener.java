@@ -0,0 +1,45 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dv8tion.jda.audio.hooks;
+
+/**
+ * Used to monitor who is talking in an audio connection, and approximately how loud, without receiving their audio.
+ * <br>The state is derived from the received RTP stream alone (packet arrival and size), so unlike an
+ * {@link net.dv8tion.jda.audio.AudioReceiveHandler AudioReceiveHandler} this does not require audio to be decoded.
+ */
+public interface ActivityListener
+{
+    /**
+     * Called when a userId starts or stops transmitting audio, and periodically while they are transmitting if their
+     * approximate level changed noticeably. Updates for a single userId are sent at most every
+     * {@link net.dv8tion.jda.audio.ActivityTracker#UPDATE_INTERVAL ActivityTracker.UPDATE_INTERVAL} milliseconds
+     * while they are speaking.
+     * <p>
+     * The level is an approximation based on the size of the Opus frames the userId sends. It can be made more
+     * accurate by periodically decoding a frame, see
+     * {@link net.dv8tion.jda.manager.AudioManager#setActivityDecodeInterval(int) AudioManager.setActivityDecodeInterval(int)}.
+     *
+     * @param  userId
+     *         The id of the user who's activity changed.
+     * @param  speaking
+     *         If true, the userId is currently transmitting audio.
+     * @param  level
+     *         Approximate level of the userId's audio, between {@code 0.0} (silent) and {@code 1.0} (very loud).
+     *         Always {@code 0.0} if the userId is not speaking.
+     */
+    void onUserActivity(String userId, boolean speaking, float level);
+}
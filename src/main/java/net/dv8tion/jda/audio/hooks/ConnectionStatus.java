@@ -42,6 +42,12 @@ public enum ConnectionStatus
     CONNECTING_AWAITING_READY,
     /** The audio connection has been successfully setup and is ready for use. */
     CONNECTED,
+    /**
+     * The audio websocket was disconnected and JDA is resuming the voice session on a new websocket.
+     * <br>The UDP connection is kept, so sending and receiving audio continues while resuming. If the resume is
+     * rejected, the connection is closed with {@link #ERROR_LOST_CONNECTION} and reconnected as usual.
+     */
+    CONNECTING_AWAITING_RESUME,
     /**
      * Indicates that the logged in account lost the {@link net.dv8tion.jda.core.Permission#VOICE_CONNECT Permission.VOICE_CONNECT}
      * and cannot connect to the channel.
@@ -38,7 +38,7 @@ public class VoiceServerUpdateHandler
             throw new IllegalArgumentException("Provided session id was null or empty!");
 
         final String guildId = content.getString("guild_id");
-        core.getConnectionManager().getQueuedAudioConnectionMap().remove(guildId);
+        core.getConnectionManager().removeAudioConnectRequest(guildId);
 
         if (content.isNull("endpoint"))
         {
@@ -59,6 +59,16 @@ public class VoiceServerUpdateHandler
         AudioManager audioManager = core.getAudioManager(guildId);
         synchronized (audioManager.CONNECTION_LOCK) //Synchronized to prevent attempts to close while setting up initial objects.
         {
+            if (audioManager.canMigrateRegion())
+            {
+                //Connect to the new voice server while the current connection keeps sending,
+                // the audio is switched over once the new connection is ready.
+                AudioWebSocket socket = new AudioWebSocket(audioManager.getListenerProxy(), endpoint, core, guildId, sessionId, token, audioManager.isAutoReconnect());
+                AudioConnection connection = new AudioConnection(socket, audioManager.getConnectedChannel());
+                audioManager.startRegionMigration(connection);
+                core.getConnectionManager().getHandshakeAdmission().admit(socket);
+                return null;
+            }
             if (audioManager.isConnected())
                 audioManager.prepareForRegionChange();
             if (!audioManager.isAttemptingToConnect())
@@ -71,7 +81,7 @@ public class VoiceServerUpdateHandler
             AudioWebSocket socket = new AudioWebSocket(audioManager.getListenerProxy(), endpoint, core, guildId, sessionId, token, audioManager.isAutoReconnect());
             AudioConnection connection = new AudioConnection(socket, audioManager.getQueuedAudioConnectionId());
             audioManager.setAudioConnection(connection);
-            socket.startConnection();
+            core.getConnectionManager().getHandshakeAdmission().admit(socket);
 
             return null;
         }
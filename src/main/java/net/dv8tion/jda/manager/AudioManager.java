@@ -21,14 +21,30 @@ import net.dv8tion.jda.Core;
 import net.dv8tion.jda.audio.AudioConnection;
 import net.dv8tion.jda.audio.AudioReceiveHandler;
 import net.dv8tion.jda.audio.AudioSendHandler;
+import net.dv8tion.jda.audio.ConnectResult;
+import net.dv8tion.jda.audio.DiscardReason;
+import net.dv8tion.jda.audio.factory.IAudioSendFactory;
+import net.dv8tion.jda.audio.factory.QosClass;
+import net.dv8tion.jda.audio.hooks.ActivityListener;
 import net.dv8tion.jda.audio.hooks.ConnectionListener;
 import net.dv8tion.jda.audio.hooks.ConnectionStatus;
 import net.dv8tion.jda.audio.hooks.ListenerProxy;
 import net.dv8tion.jda.utils.NativeUtil;
 import net.dv8tion.jda.utils.SimpleLog;
-import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AudioManager
 {
@@ -38,6 +54,9 @@ public class AudioManager
 
     public static SimpleLog LOG = SimpleLog.getLog("JDAAudioManager");
     public long DEFAULT_CONNECTION_TIMEOUT = 10000;
+    public static final long DEFAULT_CONNECT_ATTEMPT_TIMEOUT = 30000;
+    public static final long RECONNECT_BASE_DELAY = 500;
+    public static final long RECONNECT_MAX_DELAY = 60000;
 
     protected static boolean initialized = false;
 
@@ -46,18 +65,33 @@ public class AudioManager
     protected final Core core;
     protected String guildId;
     protected AudioConnection audioConnection = null;
+    //Connection to the new voice server of a region change, replaces audioConnection once it is ready.
+    protected AudioConnection migratingConnection = null;
     protected String queuedAudioConnectionId = null; //String id of VoiceChannel
 
     protected AudioSendHandler sendHandler;
-    protected AudioReceiveHandler receiveHandler;
+    protected IAudioSendFactory sendFactory;
+    protected QosClass qosClass = QosClass.NORMAL;
+    protected final List<AudioReceiveHandler> receiveHandlers = new CopyOnWriteArrayList<>();
     protected ListenerProxy connectionListener = new ListenerProxy();
+    protected ActivityListener activityListener;
+    protected int activityDecodeInterval = 0;
     protected long queueTimeout = 100;
+    protected long idleSuspendTimeout = AudioConnection.DEFAULT_IDLE_SUSPEND_TIMEOUT;
     protected boolean shouldReconnect = true;
 
+    protected volatile ConnectAttempt connectAttempt = null;
+    protected final AtomicInteger reconnectAttempts = new AtomicInteger();
+
     protected boolean selfMuted = false;
     protected boolean selfDeafened = false;
 
     protected long timeout = DEFAULT_CONNECTION_TIMEOUT;
+    protected long connectAttemptTimeout = DEFAULT_CONNECT_ATTEMPT_TIMEOUT;
+
+    //Idle tracking for Core's eviction of unused managers, guarded by CONNECTION_LOCK.
+    protected long idleSince = -1;
+    protected boolean evicted = false;
 
     public AudioManager(Core core, String guildId)
     {
@@ -68,32 +102,55 @@ public class AudioManager
 
     public void setGuild(String guildId)
     {
+        markActive();
         this.guildId = guildId;
     }
 
     
-    public void openAudioConnection(String channelId)
+    public CompletableFuture<ConnectResult> openAudioConnection(String channelId)
     {
 
         if (!AUDIO_SUPPORTED)
             throw new UnsupportedOperationException("Sorry! Audio is disabled due to an internal JDA error! Contact Dev!");
 
-        if (audioConnection == null)
-        {
-            //Start establishing connection, joining provided channel
-            queuedAudioConnectionId = channelId;
-            core.getConnectionManager().queueAudioConnect(guildId, channelId);
-        }
-        else
+        synchronized (CONNECTION_LOCK)
         {
-            //Connection is already established, move to specified channel
-
-            //If we are already connected to this VoiceChannel, then do nothing.
-            if (channelId.equals(audioConnection.getChannelId()))
-                return;
-
-            core.getConnectionManager().queueAudioConnect(guildId, channelId);
-            audioConnection.setChannelId(channelId);
+            markActive();
+            ConnectAttempt attempt = connectAttempt;
+            if (audioConnection == null)
+            {
+                //Start establishing connection, joining provided channel
+                queuedAudioConnectionId = channelId;
+                if (attempt == null)
+                {
+                    connectAttempt = attempt = new ConnectAttempt(channelId);
+                    scheduleAttemptDeadline(attempt);
+                }
+                else
+                    attempt.channelId = channelId;
+                core.getConnectionManager().queueAudioConnect(guildId, channelId);
+                return attempt.future;
+            }
+            else
+            {
+                //Connection is already established, move to specified channel
+
+                //If we are already connected to this VoiceChannel, then do nothing.
+                if (!channelId.equals(audioConnection.getChannelId()))
+                {
+                    core.getConnectionManager().queueAudioConnect(guildId, channelId);
+                    audioConnection.setChannelId(channelId);
+                }
+
+                //Still setting up the connection, the move is picked up by the attempt in progress.
+                if (attempt != null)
+                {
+                    attempt.channelId = channelId;
+                    return attempt.future;
+                }
+                return CompletableFuture.completedFuture(new ConnectResult(guildId, channelId, audioConnection,
+                        getConnectionStatus(), Collections.emptyMap(), 0));
+            }
         }
     }
 
@@ -107,10 +164,20 @@ public class AudioManager
     {
         synchronized (CONNECTION_LOCK)
         {
-            core.getConnectionManager().getQueuedAudioConnectionMap().remove(guildId);
+            core.getConnectionManager().removeAudioConnectRequest(guildId);
             this.queuedAudioConnectionId = null;
+            AudioConnection migrating = migratingConnection;
+            if (migrating != null)
+            {
+                this.migratingConnection = null;
+                migrating.close(ConnectionStatus.AUDIO_REGION_CHANGE);
+            }
             if (audioConnection == null)
+            {
+                //Closed before Discord provided a voice server, the websocket never got to report a status.
+                handleStatusChange(reason);
                 return;
+            }
             this.audioConnection.close(reason);
             this.audioConnection = null;
         }
@@ -149,6 +216,7 @@ public class AudioManager
     
     public void setConnectTimeout(long timeout)
     {
+        markActive();
         this.timeout = timeout;
     }
 
@@ -158,12 +226,36 @@ public class AudioManager
         return timeout;
     }
 
+    /**
+     * Sets how long the future of {@link #openAudioConnection(String)} may take in total, from waiting on the
+     * voice server to the connection being ready. When it runs out, the attempt is abandoned and the future
+     * completes with {@link ConnectionStatus#ERROR_CONNECTION_TIMEOUT ERROR_CONNECTION_TIMEOUT}.
+     * <br>Applies to attempts started after this call.
+     *
+     * @param timeout
+     *        The timeout in milliseconds, 0 or less for no deadline. Default - 30 seconds.
+     */
+    public void setConnectAttemptTimeout(long timeout)
+    {
+        markActive();
+        this.connectAttemptTimeout = timeout;
+    }
+
+    public long getConnectAttemptTimeout()
+    {
+        return connectAttemptTimeout;
+    }
+
     
     public void setSendingHandler(AudioSendHandler handler)
     {
+        markActive();
         sendHandler = handler;
         if (audioConnection != null)
             audioConnection.setSendingHandler(handler);
+        AudioConnection migrating = migratingConnection;
+        if (migrating != null)
+            migrating.setSendingHandler(handler);
     }
 
     
@@ -175,20 +267,57 @@ public class AudioManager
     
     public void setReceivingHandler(AudioReceiveHandler handler)
     {
-        receiveHandler = handler;
-        if (audioConnection != null)
-            audioConnection.setReceivingHandler(handler);
+        markActive();
+        synchronized (receiveHandlers)
+        {
+            receiveHandlers.clear();
+            if (handler != null)
+                receiveHandlers.add(handler);
+            updateReceivingHandlers();
+        }
+    }
+
+    public void addReceivingHandler(AudioReceiveHandler handler)
+    {
+        if (handler == null)
+            throw new IllegalArgumentException("Provided AudioReceiveHandler was null!");
+        markActive();
+
+        synchronized (receiveHandlers)
+        {
+            if (!receiveHandlers.contains(handler))
+                receiveHandlers.add(handler);
+            updateReceivingHandlers();
+        }
+    }
+
+    public void removeReceivingHandler(AudioReceiveHandler handler)
+    {
+        markActive();
+        synchronized (receiveHandlers)
+        {
+            receiveHandlers.remove(handler);
+            updateReceivingHandlers();
+        }
     }
 
     
     public AudioReceiveHandler getReceiveHandler()
     {
-        return receiveHandler;
+        //The iterator works on a snapshot, so a concurrent removal can't empty the list between checking and reading.
+        Iterator<AudioReceiveHandler> handlers = receiveHandlers.iterator();
+        return handlers.hasNext() ? handlers.next() : null;
+    }
+
+    public List<AudioReceiveHandler> getReceiveHandlers()
+    {
+        return Collections.unmodifiableList(receiveHandlers);
     }
 
     
     public void setConnectionListener(ConnectionListener listener)
     {
+        markActive();
         this.connectionListener.setListener(listener);
     }
 
@@ -207,9 +336,16 @@ public class AudioManager
             return ConnectionStatus.NOT_CONNECTED;
     }
 
+    public long getPing()
+    {
+        AudioConnection connection = audioConnection;
+        return connection != null ? connection.getWebSocket().getPing() : -1;
+    }
+
     
     public void setAutoReconnect(boolean shouldReconnect)
     {
+        markActive();
         this.shouldReconnect = shouldReconnect;
         if (audioConnection != null)
             audioConnection.getWebSocket().setAutoReconnect(shouldReconnect);
@@ -224,6 +360,7 @@ public class AudioManager
     
     public void setSelfMuted(boolean muted)
     {
+        markActive();
         if (selfMuted != muted)
         {
             this.selfMuted = muted;
@@ -240,6 +377,7 @@ public class AudioManager
     
     public void setSelfDeafened(boolean deafened)
     {
+        markActive();
         if (selfDeafened != deafened)
         {
             this.selfDeafened = deafened;
@@ -254,6 +392,117 @@ public class AudioManager
         return selfDeafened;
     }
 
+    public void setActivityListener(ActivityListener listener)
+    {
+        markActive();
+        this.activityListener = listener;
+        if (audioConnection != null)
+            audioConnection.setActivityListener(listener, activityDecodeInterval);
+        AudioConnection migrating = migratingConnection;
+        if (migrating != null)
+            migrating.setActivityListener(listener, activityDecodeInterval);
+    }
+
+    public ActivityListener getActivityListener()
+    {
+        return activityListener;
+    }
+
+    public void setActivityDecodeInterval(int interval)
+    {
+        if (interval < 0)
+            throw new IllegalArgumentException("Provided decode interval must not be negative");
+        markActive();
+
+        this.activityDecodeInterval = interval;
+        ActivityListener listener = activityListener;
+        if (listener == null)
+            return;
+        AudioConnection connection = audioConnection;
+        if (connection != null)
+            connection.setActivityListener(listener, interval);
+        AudioConnection migrating = migratingConnection;
+        if (migrating != null)
+            migrating.setActivityListener(listener, interval);
+    }
+
+    public int getActivityDecodeInterval()
+    {
+        return activityDecodeInterval;
+    }
+
+    public long getDiscardedPackets(DiscardReason reason)
+    {
+        AudioConnection connection = audioConnection;
+        return connection == null ? 0 : connection.getDiscardedPackets(reason);
+    }
+
+    public long nextReconnectDelay()
+    {
+        //Exponential backoff with full jitter: a random delay between 0 and base * 2^attempts, capped.
+        int attempts = Math.min(reconnectAttempts.getAndIncrement(), 16);
+        long bound = Math.min(RECONNECT_MAX_DELAY, RECONNECT_BASE_DELAY << attempts);
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    public int getReconnectAttempts()
+    {
+        return reconnectAttempts.get();
+    }
+
+    public void handleStatusChange(ConnectionStatus status)
+    {
+        if (status == ConnectionStatus.CONNECTED)
+            reconnectAttempts.set(0);
+
+        ConnectAttempt attempt = connectAttempt;
+        if (attempt == null)
+            return;
+
+        ConnectResult result = attempt.update(status, audioConnection);
+        if (result != null)
+        {
+            synchronized (CONNECTION_LOCK)
+            {
+                if (connectAttempt == attempt)
+                    connectAttempt = null;
+            }
+            attempt.future.complete(result);
+        }
+    }
+
+    private void scheduleAttemptDeadline(ConnectAttempt attempt)
+    {
+        long timeout = connectAttemptTimeout;
+        if (timeout <= 0)
+            return;
+        try
+        {
+            ScheduledFuture<?> deadline = core.getRuntime().getScheduler().schedule(() -> expireConnectAttempt(attempt),
+                    timeout, TimeUnit.MILLISECONDS);
+            attempt.future.whenComplete((result, error) -> deadline.cancel(false));
+        }
+        catch (RejectedExecutionException ignored) {} //The runtime is shutting down.
+    }
+
+    private void expireConnectAttempt(ConnectAttempt attempt)
+    {
+        ConnectResult result;
+        synchronized (CONNECTION_LOCK)
+        {
+            if (connectAttempt != attempt)
+                return;
+            result = attempt.update(ConnectionStatus.ERROR_CONNECTION_TIMEOUT, audioConnection);
+            if (result == null)
+                return;
+            connectAttempt = null;
+            //Gives up on the connection too, instead of leaving it connecting after its future failed.
+            LOG.warn("Connecting to channel " + attempt.channelId + " timed out after " + result.getTotalTime() + "ms");
+            closeAudioConnection(ConnectionStatus.ERROR_CONNECTION_TIMEOUT);
+        }
+        attempt.future.complete(result);
+    }
+
     public ConnectionListener getListenerProxy()
     {
         return connectionListener;
@@ -266,10 +515,163 @@ public class AudioManager
             return;
 
         this.queuedAudioConnectionId = null;
-        audioConnection.setSendingHandler(sendHandler);
-        audioConnection.setReceivingHandler(receiveHandler);
-        audioConnection.setQueueTimeout(queueTimeout);
-        audioConnection.ready(timeout);
+        configureConnection(audioConnection);
+    }
+
+    public AudioConnection getAudioConnection()
+    {
+        return audioConnection;
+    }
+
+    public boolean canMigrateRegion()
+    {
+        AudioConnection connection = audioConnection;
+        return connection != null && connection.getWebSocket().isReady();
+    }
+
+    public void startRegionMigration(AudioConnection connection)
+    {
+        synchronized (CONNECTION_LOCK)
+        {
+            AudioConnection replaced = migratingConnection;
+            //The previous target is replaced before closing it, so its failure doesn't abort this migration.
+            this.migratingConnection = connection;
+            if (replaced != null)
+                replaced.close(ConnectionStatus.AUDIO_REGION_CHANGE);
+
+            //The current connection keeps sending until the new one is ready to take over.
+            connection.setMigrationSource(audioConnection);
+            configureConnection(connection);
+        }
+    }
+
+    public void completeRegionMigration(AudioConnection connection)
+    {
+        AudioConnection previous;
+        synchronized (CONNECTION_LOCK)
+        {
+            if (migratingConnection != connection)
+                return;
+            this.migratingConnection = null;
+            previous = audioConnection;
+            this.audioConnection = connection;
+        }
+        if (previous != null)
+            previous.close(ConnectionStatus.AUDIO_REGION_CHANGE);
+    }
+
+    public boolean abortRegionMigration(AudioConnection connection)
+    {
+        AudioConnection previous;
+        synchronized (CONNECTION_LOCK)
+        {
+            if (migratingConnection == null || migratingConnection != connection)
+                return false;
+            this.migratingConnection = null;
+            previous = audioConnection;
+            if (previous != null && previous.getWebSocket().isShutdown())
+            {
+                //The previous connection already closed and handed over to this one, so this one is closed like
+                // the active connection, disconnecting and reconnecting.
+                this.audioConnection = connection;
+                return false;
+            }
+        }
+        //The old voice server is going away, so fall back to a normal reconnect.
+        if (previous != null)
+            previous.close(ConnectionStatus.ERROR_LOST_CONNECTION);
+        return true;
+    }
+
+    /**
+     * Called when the active connection closes, to check whether a region migration is replacing it.
+     * <br>If so, the migrating connection takes over once it is ready, or reconnects if it fails.
+     *
+     * @param  connection
+     *         The closing connection.
+     *
+     * @return True, if the closing connection is replaced and shouldn't disconnect or reconnect.
+     */
+    public boolean handOverToRegionMigration(AudioConnection connection)
+    {
+        synchronized (CONNECTION_LOCK)
+        {
+            return migratingConnection != null && audioConnection == connection;
+        }
+    }
+
+    /**
+     * Called by {@link Core} for every registered manager, evicts this manager once it has been idle
+     * for the provided time. A manager is idle while it has no connection, no queued connection and no handlers.
+     *
+     * @param  now
+     *         The current time in milliseconds.
+     * @param  idleTimeout
+     *         The time in milliseconds a manager has to be idle to be evicted.
+     *
+     * @return True, if this manager was evicted and has been removed from the registry of Core.
+     */
+    public boolean evictIfIdle(long now, long idleTimeout)
+    {
+        synchronized (CONNECTION_LOCK)
+        {
+            if (evicted)
+                return false;
+            if (!isIdle())
+            {
+                idleSince = -1;
+                return false;
+            }
+            if (idleSince < 0)
+                idleSince = now;
+            if (now - idleSince < idleTimeout)
+                return false;
+
+            //Removed while holding the lock, so markActive() can't interleave with the removal.
+            evicted = true;
+            core.unregisterAudioManager(this);
+            return true;
+        }
+    }
+
+    protected boolean isIdle()
+    {
+        return audioConnection == null
+                && migratingConnection == null
+                && queuedAudioConnectionId == null
+                && connectAttempt == null
+                && sendHandler == null
+                && receiveHandlers.isEmpty()
+                && activityListener == null
+                && connectionListener.getListener() == null
+                && !core.getConnectionManager().hasQueuedRequest(guildId);
+    }
+
+    protected void markActive()
+    {
+        synchronized (CONNECTION_LOCK)
+        {
+            idleSince = -1;
+            if (evicted)
+            {
+                //Still referenced by the user after being evicted, take the place in the registry again.
+                evicted = false;
+                core.registerAudioManager(this);
+            }
+        }
+    }
+
+    protected void configureConnection(AudioConnection connection)
+    {
+        connection.setSendFactory(sendFactory);
+        connection.setQosClass(qosClass);
+        connection.setSendingHandler(sendHandler);
+        connection.setReceivingHandlers(receiveHandlers);
+        if (activityListener != null)
+            connection.setActivityListener(activityListener, activityDecodeInterval);
+        connection.setQueueTimeout(queueTimeout);
+        connection.setIdleSuspendTimeout(idleSuspendTimeout);
+        connection.ready(timeout);
     }
 
     public void prepareForRegionChange()
@@ -281,22 +683,132 @@ public class AudioManager
 
     public void setQueuedAudioConnectionId(String channelId)
     {
+        markActive();
         queuedAudioConnectionId = channelId;
     }
 
     public void setConnectedChannel(String channelId)
     {
+        markActive();
         if (audioConnection != null)
             audioConnection.setChannelId(channelId);
     }
 
     public void setQueueTimeout(long queueTimeout)
     {
+        markActive();
         this.queueTimeout = queueTimeout;
         if (audioConnection != null)
             audioConnection.setQueueTimeout(queueTimeout);
     }
 
+    /**
+     * Sets how long the connection may stay silent before it stops its sending loop and releases its Opus encoder.
+     * <br>A suspended connection checks {@link AudioSendHandler#canProvide()} every
+     * {@value net.dv8tion.jda.audio.AudioConnection#SUSPENDED_PROBE_INTERVAL} milliseconds, or right away when
+     * {@link #wakeUp()} is called, which is the way to resume without delay. When the check returns true, the next call is to
+     * {@link AudioSendHandler#provide20MsAudio()}, so handlers preparing their frame in canProvide() lose nothing.
+     * The decoders of users that stayed silent for this long are released as well.
+     *
+     * @param idleSuspendTimeout
+     *        The timeout in milliseconds, 0 or less to never suspend. Default - 30 seconds.
+     */
+    public void setIdleSuspendTimeout(long idleSuspendTimeout)
+    {
+        markActive();
+        this.idleSuspendTimeout = idleSuspendTimeout;
+        AudioConnection connection = audioConnection;
+        if (connection != null)
+            connection.setIdleSuspendTimeout(idleSuspendTimeout);
+        AudioConnection migrating = migratingConnection;
+        if (migrating != null)
+            migrating.setIdleSuspendTimeout(idleSuspendTimeout);
+    }
+
+    /**
+     * Sets the send factory of this guild, for example to give it dedicated sending threads, instead of using the
+     * {@link Core#getAudioSendFactory() one of the Core}. A connection that is sending switches to the new factory.
+     *
+     * @param sendFactory
+     *        The send factory, or null to use the one of the Core.
+     */
+    public void setSendFactory(IAudioSendFactory sendFactory)
+    {
+        markActive();
+        this.sendFactory = sendFactory;
+        AudioConnection connection = audioConnection;
+        if (connection != null)
+            connection.setSendFactory(sendFactory);
+        AudioConnection migrating = migratingConnection;
+        if (migrating != null)
+            migrating.setSendFactory(sendFactory);
+    }
+
+    public IAudioSendFactory getSendFactory()
+    {
+        return sendFactory != null ? sendFactory : core.getAudioSendFactory();
+    }
+
+    //The factory of the Core changed, connections using it have to switch.
+    public void updateSendFactory()
+    {
+        if (sendFactory != null)
+            return;
+        AudioConnection connection = audioConnection;
+        if (connection != null)
+            connection.restartSendSystem();
+        AudioConnection migrating = migratingConnection;
+        if (migrating != null)
+            migrating.restartSendSystem();
+    }
+
+    /**
+     * Sets the {@link QosClass QosClass} of the connections of this guild. Send factories sharing their threads
+     * serve higher classes first, and let best-effort connections fall behind first when overloaded.
+     *
+     * @param qosClass
+     *        The QosClass. Default - {@link QosClass#NORMAL NORMAL}.
+     */
+    public void setQosClass(QosClass qosClass)
+    {
+        if (qosClass == null)
+            throw new IllegalArgumentException("QosClass is null!");
+        markActive();
+        this.qosClass = qosClass;
+        AudioConnection connection = audioConnection;
+        if (connection != null)
+            connection.setQosClass(qosClass);
+        AudioConnection migrating = migratingConnection;
+        if (migrating != null)
+            migrating.setQosClass(qosClass);
+    }
+
+    public QosClass getQosClass()
+    {
+        return qosClass;
+    }
+
+    /**
+     * Signals that the sending handler is about to provide audio, so a connection that suspended sending while idle
+     * resumes within a frame instead of at its next probe, which may be a quarter of a second away.
+     */
+    public void wakeUp()
+    {
+        AudioConnection connection = audioConnection;
+        if (connection != null)
+            connection.wakeUp();
+    }
+
+    protected void updateReceivingHandlers()
+    {
+        AudioConnection connection = audioConnection;
+        if (connection != null)
+            connection.setReceivingHandlers(receiveHandlers);
+        AudioConnection migrating = migratingConnection;
+        if (migrating != null)
+            migrating.setReceivingHandlers(receiveHandlers);
+    }
+
     protected void updateVoiceState()
     {
         if (isConnected() || isAttemptingToConnect())
@@ -304,15 +816,62 @@ public class AudioManager
             String channelId = isConnected() ? getConnectedChannel() : getQueuedAudioConnectionId();
 
             //This is technically equivalent to an audio open/move packet.
-            JSONObject voiceStateChange = new JSONObject()
-                    .put("op", 4)
-                    .put("d", new JSONObject()
-                            .put("guild_id", guildId)
-                            .put("channel_id", channelId)
-                            .put("self_mute", isSelfMuted())
-                            .put("self_deaf", isSelfDeafened())
-                    );
-            core.getClient().sendWS(voiceStateChange.toString());
+            //The ConnectionManager sends it with the current mute and deafen state, merged with any update still pending.
+            core.getConnectionManager().queueAudioConnect(guildId, channelId);
+        }
+    }
+
+    protected class ConnectAttempt
+    {
+        protected final CompletableFuture<ConnectResult> future = new CompletableFuture<>();
+        protected final Map<ConnectionStatus, Long> phaseTimes = new EnumMap<>(ConnectionStatus.class);
+        protected final long started = System.nanoTime();
+        protected volatile String channelId;
+
+        //Until Discord provides the voice server, we are waiting on the endpoint.
+        private ConnectionStatus phase = ConnectionStatus.CONNECTING_AWAITING_ENDPOINT;
+        private long phaseStarted = started;
+        private boolean finished = false;
+
+        protected ConnectAttempt(String channelId)
+        {
+            this.channelId = channelId;
+        }
+
+        /**
+         * Records the time spent in the previous phase.
+         *
+         * @return The result if the provided status ends the attempt, otherwise {@code null}.
+         */
+        protected synchronized ConnectResult update(ConnectionStatus status, AudioConnection connection)
+        {
+            if (finished)
+                return null;
+
+            long now = System.nanoTime();
+            phaseTimes.merge(phase, TimeUnit.NANOSECONDS.toMillis(now - phaseStarted), Long::sum);
+            phase = status;
+            phaseStarted = now;
+
+            switch (status)
+            {
+                case CONNECTING_AWAITING_ENDPOINT:
+                case CONNECTING_AWAITING_WEBSOCKET_CONNECT:
+                case CONNECTING_AWAITING_AUTHENTICATING:
+                case CONNECTING_ATTEMPTING_UDP_DISCOVERY:
+                case CONNECTING_AWAITING_READY:
+                case CONNECTING_AWAITING_RESUME:
+                case AUDIO_REGION_CHANGE:   //The previous connection closing, the attempt continues with the new server.
+                    return null;
+                case CONNECTED:
+                    finished = true;
+                    return new ConnectResult(guildId, channelId, connection, status, phaseTimes,
+                            TimeUnit.NANOSECONDS.toMillis(now - started));
+                default:
+                    finished = true;
+                    return new ConnectResult(guildId, channelId, null, status, phaseTimes,
+                            TimeUnit.NANOSECONDS.toMillis(now - started));
+            }
         }
     }
 
@@ -0,0 +1,116 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dv8tion.jda.utils;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Map with primitive int keys for data that is read far more often than it is written, like SSRC lookups
+ * done for every received audio packet.
+ * <p>
+ * Reads use an immutable snapshot and never block. Writes are serialized on this map, copy the snapshot,
+ * modify the copy and publish it. To make several reads and writes atomic, synchronize on this map.
+ *
+ * @param <V> The type of the values.
+ */
+public class CopyOnWriteIntObjectMap<V>
+{
+    private volatile TIntObjectMap<V> snapshot = new TIntObjectHashMap<>();
+
+    public V get(int key)
+    {
+        return snapshot.get(key);
+    }
+
+    public boolean containsKey(int key)
+    {
+        return snapshot.containsKey(key);
+    }
+
+    public boolean isEmpty()
+    {
+        return snapshot.isEmpty();
+    }
+
+    /**
+     * The keys at the time of the call. Later modifications are not reflected.
+     *
+     * @return Never-null array of keys.
+     */
+    public int[] keys()
+    {
+        return snapshot.keys();
+    }
+
+    /**
+     * The values at the time of the call. Later modifications are not reflected.
+     *
+     * @return Never-null unmodifiable collection of values.
+     */
+    public Collection<V> values()
+    {
+        return Collections.unmodifiableCollection(snapshot.valueCollection());
+    }
+
+    public synchronized V put(int key, V value)
+    {
+        TIntObjectMap<V> copy = new TIntObjectHashMap<>(snapshot);
+        V previous = copy.put(key, value);
+        snapshot = copy;
+        return previous;
+    }
+
+    /**
+     * Adds the mapping only if the key isn't mapped yet.
+     *
+     * @return The value already mapped to the key, or {@code null} if the provided value was added.
+     */
+    public synchronized V putIfAbsent(int key, V value)
+    {
+        V existing = snapshot.get(key);
+        if (existing != null)
+            return existing;
+        put(key, value);
+        return null;
+    }
+
+    public synchronized V remove(int key)
+    {
+        if (!snapshot.containsKey(key))
+            return null;
+        TIntObjectMap<V> copy = new TIntObjectHashMap<>(snapshot);
+        V previous = copy.remove(key);
+        snapshot = copy;
+        return previous;
+    }
+
+    /**
+     * Removes all mappings.
+     *
+     * @return The values that were removed.
+     */
+    public synchronized Collection<V> clear()
+    {
+        Collection<V> values = snapshot.valueCollection();
+        snapshot = new TIntObjectHashMap<>();
+        return values;
+    }
+}
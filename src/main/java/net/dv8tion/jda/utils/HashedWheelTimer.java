@@ -0,0 +1,260 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timer for large amounts of coarse, mostly periodic, tasks such as heartbeats.
+ * <br>Tasks are kept in a wheel of buckets, one bucket per tick, which makes scheduling and cancelling O(1)
+ * regardless of how many tasks are scheduled. Tasks run on the single timer thread, so they have to be short.
+ */
+public class HashedWheelTimer
+{
+    private static final SimpleLog LOG = SimpleLog.getLog("HashedWheelTimer");
+
+    private final ThreadFactory threadFactory;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    //Timeouts are handed to the timer thread through this queue, the wheel itself is only touched by that thread.
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private volatile Thread worker;
+
+    /**
+     * @param name
+     *        The name of the timer thread.
+     * @param tickDuration
+     *        The precision of the timer.
+     * @param unit
+     *        The unit of the tick duration.
+     * @param wheelSize
+     *        The amount of buckets, rounded up to a power of two. Tasks further away than one revolution
+     *        wait in their bucket for additional revolutions.
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize)
+    {
+        this(r ->
+        {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        }, tickDuration, unit, wheelSize);
+    }
+
+    /**
+     * @param threadFactory
+     *        Creates the timer thread once the first task is scheduled.
+     * @param tickDuration
+     *        The precision of the timer.
+     * @param unit
+     *        The unit of the tick duration.
+     * @param wheelSize
+     *        The amount of buckets, rounded up to a power of two.
+     */
+    public HashedWheelTimer(ThreadFactory threadFactory, long tickDuration, TimeUnit unit, int wheelSize)
+    {
+        if (tickDuration <= 0 || wheelSize <= 0)
+            throw new IllegalArgumentException("Tick duration and wheel size must be positive");
+
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize)
+            size <<= 1;
+        this.threadFactory = threadFactory;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        return add(new Timeout(task, 0), unit.toNanos(delay));
+    }
+
+    public Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit)
+    {
+        if (period <= 0)
+            throw new IllegalArgumentException("Period must be positive");
+        return add(new Timeout(task, unit.toNanos(period)), unit.toNanos(initialDelay));
+    }
+
+    private Timeout add(Timeout timeout, long delayNanos)
+    {
+        timeout.deadline = System.nanoTime() - startTime + Math.max(0, delayNanos);
+        pending.add(timeout);
+        if (worker == null)
+            start();
+        return timeout;
+    }
+
+    private synchronized void start()
+    {
+        if (worker != null)
+            return;
+        Thread t = threadFactory.newThread(this::run);
+        t.start();
+        worker = t;
+    }
+
+    /**
+     * Stops the timer thread, scheduled tasks don't run anymore.
+     */
+    public synchronized void shutdown()
+    {
+        if (worker != null)
+            worker.interrupt();
+    }
+
+    private void run()
+    {
+        long tick = (System.nanoTime() - startTime) / tickNanos;
+        while (!Thread.currentThread().isInterrupted())
+        {
+            long tickEnd = (tick + 1) * tickNanos;
+            long sleep;
+            while ((sleep = tickEnd - (System.nanoTime() - startTime)) > 0)
+                LockSupport.parkNanos(this, sleep);
+
+            transferPending(tick);
+            expire(wheel[(int) (tick & mask)], tickEnd);
+            tick++;
+        }
+    }
+
+    private void transferPending(long tick)
+    {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null)
+        {
+            if (timeout.cancelled)
+                continue;
+            long due = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (due - tick) / wheel.length;
+            //Already due timeouts go into the current bucket, which is expired right after this.
+            wheel[(int) (Math.max(due, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket, long tickEnd)
+    {
+        Timeout timeout = bucket.head;
+        while (timeout != null)
+        {
+            Timeout next = timeout.next;
+            if (timeout.cancelled)
+            {
+                bucket.remove(timeout);
+            }
+            else if (timeout.remainingRounds <= 0)
+            {
+                bucket.remove(timeout);
+                try
+                {
+                    timeout.task.run();
+                }
+                catch (Throwable t)
+                {
+                    LOG.log(t);
+                }
+                if (timeout.period > 0 && !timeout.cancelled)
+                {
+                    //Fixed rate, but a timeout that fell behind doesn't try to catch up with a burst of runs.
+                    timeout.deadline = Math.max(timeout.deadline + timeout.period, tickEnd);
+                    pending.add(timeout);
+                }
+            }
+            else
+            {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public static class Timeout
+    {
+        private final Runnable task;
+        private final long period;
+        private long deadline;
+        private long remainingRounds;
+        private Timeout prev;
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long period)
+        {
+            this.task = task;
+            this.period = period;
+        }
+
+        /**
+         * Prevents the task from running again. The timeout is removed from the wheel once the timer passes its bucket.
+         */
+        public void cancel()
+        {
+            cancelled = true;
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+    }
+
+    private static class Bucket
+    {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout)
+        {
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null)
+                head = timeout;
+            else
+                tail.next = timeout;
+            tail = timeout;
+        }
+
+        private void remove(Timeout timeout)
+        {
+            if (timeout.prev == null)
+                head = timeout.next;
+            else
+                timeout.prev.next = timeout.next;
+            if (timeout.next == null)
+                tail = timeout.prev;
+            else
+                timeout.next.prev = timeout.prev;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dv8tion.jda.utils;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Thread-safe token bucket. Tokens are added continuously at a fixed rate up to the capacity of the bucket.
+ * <br>Any interval of {@code t} milliseconds allows at most {@code capacity + t * rate} acquisitions.
+ */
+public class TokenBucket
+{
+    //Counted in units of 1/periodMillis tokens, so every millisecond adds a whole number of units and nothing is lost
+    // to rounding.
+    private final long capacityUnits;
+    private final long unitsPerToken;
+    private final long unitsPerMilli;
+    private final LongSupplier clock;
+    private long units;
+    private long lastRefill;
+
+    /**
+     * @param capacity
+     *        The maximum amount of tokens, and therefore the largest burst.
+     * @param tokens
+     *        The amount of tokens refilled every {@code periodMillis}.
+     * @param periodMillis
+     *        The period over which {@code tokens} are refilled.
+     */
+    public TokenBucket(long capacity, long tokens, long periodMillis)
+    {
+        this(capacity, tokens, periodMillis, System::currentTimeMillis);
+    }
+
+    //The clock is only replaced by tests.
+    TokenBucket(long capacity, long tokens, long periodMillis, LongSupplier clock)
+    {
+        if (capacity <= 0 || tokens <= 0 || periodMillis <= 0)
+            throw new IllegalArgumentException("Capacity, tokens and period must be positive");
+
+        this.capacityUnits = capacity * periodMillis;
+        this.unitsPerToken = periodMillis;
+        this.unitsPerMilli = tokens;
+        this.clock = clock;
+        this.units = capacityUnits;
+        this.lastRefill = clock.getAsLong();
+    }
+
+    public synchronized boolean tryAcquire()
+    {
+        refill();
+        if (units < unitsPerToken)
+            return false;
+        units -= unitsPerToken;
+        return true;
+    }
+
+    /**
+     * The time until the next token is available.
+     *
+     * @return The delay in milliseconds, 0 if a token is available now.
+     */
+    public synchronized long getDelay()
+    {
+        refill();
+        if (units >= unitsPerToken)
+            return 0;
+        return (unitsPerToken - units + unitsPerMilli - 1) / unitsPerMilli;
+    }
+
+    public synchronized int getAvailableTokens()
+    {
+        refill();
+        return (int) (units / unitsPerToken);
+    }
+
+    private void refill()
+    {
+        long now = clock.getAsLong();
+        if (now > lastRefill)
+        {
+            long elapsed = now - lastRefill;
+            //A long pause fills the bucket, without multiplying into an overflow.
+            if (elapsed >= (capacityUnits - units) / unitsPerMilli + 1)
+                units = capacityUnits;
+            else
+                units += elapsed * unitsPerMilli;
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio;
+
+import com.iwebpp.crypto.TweetNaclFast;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class AudioPacketTest
+{
+    private static final byte[] KEY = new byte[32];
+    private static final byte[] AUDIO = {1, 2, 3, 4, 5, 6, 7, 8};
+
+    static
+    {
+        for (int i = 0; i < KEY.length; i++)
+            KEY[i] = (byte) i;
+    }
+
+    @Test
+    public void acceptsAudio()
+    {
+        assertNull(AudioPacket.checkReceivedPacket(encrypted(header(0, false), AUDIO, 0)));
+    }
+
+    @Test
+    public void rejectsRtcp()
+    {
+        for (int type = AudioPacket.RTCP_PACKET_TYPE_MIN; type <= AudioPacket.RTCP_PACKET_TYPE_MAX; type++)
+        {
+            byte[] data = new byte[40];
+            data[0] = (byte) 0x80;
+            data[1] = (byte) type;
+            assertEquals("Packet type " + type, DiscardReason.RTCP, AudioPacket.checkReceivedPacket(new DatagramPacket(data, data.length)));
+        }
+    }
+
+    @Test
+    public void acceptsMarkerBit()
+    {
+        //The marker bit shares the byte with the payload type, 0x78 with it set is 0xF8, outside of the RTCP range.
+        byte[] header = header(0, false);
+        header[1] = (byte) (AudioPacket.RTP_PAYLOAD_TYPE | 0x80);
+        assertNull(AudioPacket.checkReceivedPacket(encrypted(header, AUDIO, 0)));
+    }
+
+    @Test
+    public void rejectsOtherPayloadTypes()
+    {
+        byte[] header = header(0, false);
+        header[1] = 0x60;
+        assertEquals(DiscardReason.UNSUPPORTED_PAYLOAD_TYPE, AudioPacket.checkReceivedPacket(encrypted(header, AUDIO, 0)));
+    }
+
+    @Test
+    public void rejectsMalformedPackets()
+    {
+        assertEquals(DiscardReason.MALFORMED, AudioPacket.checkReceivedPacket(new DatagramPacket(new byte[1], 1)));
+
+        byte[] version1 = header(0, false);
+        version1[0] = 0x40;
+        assertEquals(DiscardReason.MALFORMED, AudioPacket.checkReceivedPacket(encrypted(version1, AUDIO, 0)));
+
+        //Too short for its header and the MAC.
+        byte[] shortPacket = Arrays.copyOf(header(0, false), 20);
+        assertEquals(DiscardReason.MALFORMED, AudioPacket.checkReceivedPacket(new DatagramPacket(shortPacket, shortPacket.length)));
+
+        //The CSRC list makes the header longer than the packet.
+        byte[] csrcs = Arrays.copyOf(header(15, false), AudioPacket.RTP_HEADER_BYTE_LENGTH + 8 + AudioPacket.XSALSA20_MAC_LENGTH);
+        assertEquals(DiscardReason.MALFORMED, AudioPacket.checkReceivedPacket(new DatagramPacket(csrcs, csrcs.length)));
+    }
+
+    @Test
+    public void headerLengthIncludesCsrcs()
+    {
+        assertEquals(12, AudioPacket.getHeaderLength(encrypted(header(0, false), AUDIO, 0)));
+        assertEquals(20, AudioPacket.getHeaderLength(encrypted(header(2, false), AUDIO, 0)));
+        assertEquals(72, AudioPacket.getHeaderLength(encrypted(header(15, false), AUDIO, 0)));
+    }
+
+    @Test
+    public void decryptsAudio()
+    {
+        AudioPacket packet = AudioPacket.decryptAudioPacket(encrypted(header(0, false), AUDIO, 0), KEY);
+        assertNotNull(packet);
+        assertEquals(1234, packet.getSSRC());
+        assertEquals(7, packet.getSequence());
+        assertArrayEquals(AUDIO, packet.getEncodedAudio());
+    }
+
+    @Test
+    public void decryptsAtAnOffset()
+    {
+        DatagramPacket received = encrypted(header(0, false), AUDIO, 5);
+        assertEquals(5, received.getOffset());
+        assertNull(AudioPacket.checkReceivedPacket(received));
+        assertEquals(1234, AudioPacket.getSSRC(received));
+
+        AudioPacket packet = AudioPacket.decryptAudioPacket(received, KEY);
+        assertNotNull(packet);
+        assertEquals(1234, packet.getSSRC());
+        assertArrayEquals(AUDIO, packet.getEncodedAudio());
+    }
+
+    @Test
+    public void stripsCsrcsAndExtension()
+    {
+        //The extension header and its two words are encrypted along with the audio.
+        byte[] plain = ByteBuffer.allocate(4 + 8 + AUDIO.length)
+                .putShort((short) 0xBEDE).putShort((short) 2)
+                .putLong(0x1122334455667788L)
+                .put(AUDIO)
+                .array();
+        AudioPacket packet = AudioPacket.decryptAudioPacket(encrypted(header(2, true), plain, 3), KEY);
+        assertNotNull(packet);
+        assertEquals(1234, packet.getSSRC());
+        assertArrayEquals(AUDIO, packet.getEncodedAudio());
+        assertEquals(AudioPacket.RTP_VERSION_PAD_EXTEND, packet.getRawPacket()[0]);
+    }
+
+    @Test
+    public void rejectsExtensionLongerThanPacket()
+    {
+        byte[] plain = ByteBuffer.allocate(4 + AUDIO.length).putShort((short) 0xBEDE).putShort((short) 100).put(AUDIO).array();
+        assertNull(AudioPacket.decryptAudioPacket(encrypted(header(0, true), plain, 0), KEY));
+    }
+
+    @Test
+    public void rejectsWrongKey()
+    {
+        byte[] otherKey = Arrays.copyOf(KEY, KEY.length);
+        otherKey[0] ^= 1;
+        assertNull(AudioPacket.decryptAudioPacket(encrypted(header(0, false), AUDIO, 0), otherKey));
+    }
+
+    private static byte[] header(int csrcCount, boolean extension)
+    {
+        ByteBuffer header = ByteBuffer.allocate(AudioPacket.RTP_HEADER_BYTE_LENGTH + csrcCount * 4);
+        header.put((byte) (0x80 | (extension ? AudioPacket.RTP_EXTENSION_BIT : 0) | csrcCount));
+        header.put(AudioPacket.RTP_PAYLOAD_TYPE);
+        header.putChar((char) 7);
+        header.putInt(960);
+        header.putInt(1234);
+        for (int i = 0; i < csrcCount; i++)
+            header.putInt(5000 + i);
+        return header.array();
+    }
+
+    //Encrypts like Discord does, with the first 12 bytes of the header as nonce, and places the packet at an offset.
+    private static DatagramPacket encrypted(byte[] header, byte[] plain, int offset)
+    {
+        byte[] nonce = Arrays.copyOf(header, AudioPacket.XSALSA20_NONCE_LENGTH);
+        Arrays.fill(nonce, AudioPacket.RTP_HEADER_BYTE_LENGTH, nonce.length, (byte) 0);
+        byte[] box = new TweetNaclFast.SecretBox(KEY).box(plain, nonce);
+
+        byte[] data = new byte[offset + header.length + box.length + 4];
+        System.arraycopy(header, 0, data, offset, header.length);
+        System.arraycopy(box, 0, data, offset + header.length, box.length);
+        return new DatagramPacket(data, offset, header.length + box.length);
+    }
+}
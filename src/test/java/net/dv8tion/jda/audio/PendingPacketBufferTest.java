@@ -0,0 +1,129 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+
+import static org.junit.Assert.*;
+
+public class PendingPacketBufferTest
+{
+    private PendingPacketBuffer buffer;
+
+    @Before
+    public void setUp()
+    {
+        buffer = new PendingPacketBuffer();
+    }
+
+    @Test
+    public void replaysPacketsOldestFirst()
+    {
+        buffer.add(1, packet(10), 0);
+        buffer.add(1, packet(11), 20);
+        buffer.add(2, packet(20), 20);
+
+        DatagramPacket[] packets = buffer.take(1, 40);
+        assertEquals(2, packets.length);
+        assertEquals(10, packets[0].getData()[0]);
+        assertEquals(11, packets[1].getData()[0]);
+        assertFalse(buffer.contains(1));
+        assertTrue(buffer.contains(2));
+        assertNull(buffer.take(1, 40));
+    }
+
+    @Test
+    public void copiesOnlyThePacketContent()
+    {
+        //The receiving thread reuses its packet, and the content may start at an offset.
+        byte[] data = {9, 9, 1, 2, 3, 9};
+        DatagramPacket received = new DatagramPacket(data, 2, 3);
+        buffer.add(1, received, 0);
+        data[2] = 7;
+
+        DatagramPacket held = buffer.take(1, 0)[0];
+        assertEquals(0, held.getOffset());
+        assertEquals(3, held.getLength());
+        assertArrayEquals(new byte[] {1, 2, 3}, held.getData());
+    }
+
+    @Test
+    public void dropsOldestPacketsWhenFull()
+    {
+        for (int i = 0; i < PendingPacketBuffer.MAX_PACKETS_PER_SSRC + 5; i++)
+            buffer.add(1, packet(i), 0);
+
+        DatagramPacket[] packets = buffer.take(1, 0);
+        assertEquals(PendingPacketBuffer.MAX_PACKETS_PER_SSRC, packets.length);
+        assertEquals(5, packets[0].getData()[0]);
+        assertEquals(5, buffer.drainDropped());
+        assertEquals(0, buffer.drainDropped());
+    }
+
+    @Test
+    public void expiredPacketsAreNotReplayed()
+    {
+        buffer.add(1, packet(1), 0);
+        buffer.add(1, packet(2), 500);
+
+        DatagramPacket[] packets = buffer.take(1, PendingPacketBuffer.MAX_PACKET_AGE + 100);
+        assertEquals(1, packets.length);
+        assertEquals(2, packets[0].getData()[0]);
+        assertEquals(1, buffer.drainDropped());
+    }
+
+    @Test
+    public void expiredSsrcsAreEvictedOnAdd()
+    {
+        buffer.add(1, packet(1), 0);
+        buffer.add(2, packet(2), PendingPacketBuffer.MAX_PACKET_AGE + 1);
+
+        assertFalse(buffer.contains(1));
+        assertTrue(buffer.contains(2));
+        assertEquals(1, buffer.drainDropped());
+    }
+
+    @Test
+    public void evictsStalestSsrcWhenFull()
+    {
+        for (int ssrc = 0; ssrc < PendingPacketBuffer.MAX_SSRCS; ssrc++)
+            buffer.add(ssrc, packet(ssrc), ssrc == 3 ? 0 : 10);
+
+        buffer.add(100, packet(100), 20);
+        assertFalse(buffer.contains(3));
+        assertTrue(buffer.contains(100));
+        assertEquals(1, buffer.drainDropped());
+    }
+
+    @Test
+    public void clearRemovesEverything()
+    {
+        buffer.add(1, packet(1), 0);
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.take(1, 0));
+    }
+
+    private static DatagramPacket packet(int marker)
+    {
+        return new DatagramPacket(new byte[] {(byte) marker, 0, 0, 0}, 4);
+    }
+}
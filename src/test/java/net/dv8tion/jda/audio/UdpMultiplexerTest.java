@@ -0,0 +1,253 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio;
+
+import net.dv8tion.jda.DefaultExecutorProvider;
+import net.dv8tion.jda.audio.factory.IUdpMultiplexer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UdpMultiplexerTest
+{
+    private static final long TIMEOUT = 2000;
+
+    private final List<DatagramChannel> servers = new ArrayList<>();
+    private ScheduledExecutorService scheduler;
+    private UdpMultiplexer multiplexer;
+
+    @Before
+    public void setUp()
+    {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        //A single socket, so connections to the same voice server have to be told apart by SSRC.
+        multiplexer = new UdpMultiplexer(1, new DefaultExecutorProvider(), scheduler, new UdpDiscovery());
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        multiplexer.shutdown();
+        scheduler.shutdownNow();
+        for (DatagramChannel server : servers)
+            server.close();
+    }
+
+    @Test
+    public void discoveryIsRetransmitted() throws Exception
+    {
+        DatagramChannel server = openServer();
+        IUdpMultiplexer.Registration registration = multiplexer.register(addressOf(server), 42);
+        CompletableFuture<UdpDiscovery.Result> future = registration.discover();
+
+        //The first packet goes unanswered, as if it was lost.
+        ByteBuffer first = ByteBuffer.allocate(128);
+        SocketAddress client = receive(server, first);
+        assertEquals(UdpDiscovery.DISCOVERY_PACKET_LENGTH, first.position());
+        assertEquals(42, first.getInt(0));
+
+        ByteBuffer second = ByteBuffer.allocate(128);
+        assertEquals(client, receive(server, second));
+        assertEquals(42, second.getInt(0));
+        respondToDiscovery(server, client, 42, 50000);
+
+        UdpDiscovery.Result result = future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(2, result.getAttempts());
+        assertEquals(addressOf(server), result.getServerAddress());
+        assertEquals(new InetSocketAddress("127.0.0.1", 50000), result.getExternalAddress());
+    }
+
+    @Test
+    public void packetsAreRoutedByServerAddress() throws Exception
+    {
+        DatagramChannel serverA = openServer();
+        DatagramChannel serverB = openServer();
+        IUdpMultiplexer.Registration registrationA = multiplexer.register(addressOf(serverA), 1);
+        IUdpMultiplexer.Registration registrationB = multiplexer.register(addressOf(serverB), 2);
+        BlockingQueue<Integer> receivedA = receiveInto(registrationA, 100);
+        BlockingQueue<Integer> receivedB = receiveInto(registrationB, 200);
+        SocketAddress client = clientAddress(registrationA);
+
+        //The only connection to a voice server gets all of its packets, known SSRC or not.
+        sendRtp(serverA, client, 300);
+        sendRtp(serverB, client, 200);
+        assertEquals(Integer.valueOf(300), receivedA.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(Integer.valueOf(200), receivedB.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(receivedA.isEmpty());
+        assertTrue(receivedB.isEmpty());
+    }
+
+    @Test
+    public void packetsOfOneServerAreRoutedBySsrc() throws Exception
+    {
+        DatagramChannel server = openServer();
+        IUdpMultiplexer.Registration registrationA = multiplexer.register(addressOf(server), 1);
+        IUdpMultiplexer.Registration registrationB = multiplexer.register(addressOf(server), 2);
+        BlockingQueue<Integer> receivedA = receiveInto(registrationA, 100);
+        BlockingQueue<Integer> receivedB = receiveInto(registrationB, 200);
+        SocketAddress client = clientAddress(registrationA);
+        assertEquals(client, clientAddress(registrationB));
+
+        sendRtp(server, client, 100);
+        sendRtp(server, client, 200);
+        //Nobody knows this SSRC yet, so it is dropped instead of buffered.
+        sendRtp(server, client, 300);
+        sendRtp(server, client, 100);
+
+        assertEquals(Integer.valueOf(100), receivedA.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(Integer.valueOf(200), receivedB.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(Integer.valueOf(100), receivedA.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(receivedA.isEmpty());
+        assertTrue(receivedB.isEmpty());
+    }
+
+    @Test
+    public void closedRegistrationsStopReceiving() throws Exception
+    {
+        DatagramChannel server = openServer();
+        IUdpMultiplexer.Registration registrationA = multiplexer.register(addressOf(server), 1);
+        IUdpMultiplexer.Registration registrationB = multiplexer.register(addressOf(server), 2);
+        BlockingQueue<Integer> receivedA = receiveInto(registrationA, 100);
+        BlockingQueue<Integer> receivedB = receiveInto(registrationB, 200);
+        SocketAddress client = clientAddress(registrationA);
+        assertEquals(2, multiplexer.getRegistrationCount());
+
+        registrationA.close();
+        assertTrue(registrationA.isClosed());
+        assertEquals(1, multiplexer.getRegistrationCount());
+
+        //The remaining connection is the only one to the server now, so it gets the packet.
+        sendRtp(server, client, 100);
+        assertEquals(Integer.valueOf(100), receivedB.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(receivedA.isEmpty());
+
+        registrationB.close();
+        assertEquals(0, multiplexer.getRegistrationCount());
+    }
+
+    @Test
+    public void closingFailsDiscovery() throws Exception
+    {
+        DatagramChannel server = openServer();
+        IUdpMultiplexer.Registration registration = multiplexer.register(addressOf(server), 42);
+        CompletableFuture<UdpDiscovery.Result> future = registration.discover();
+        registration.close();
+        try
+        {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Discovery completed after the registration was closed");
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    private DatagramChannel openServer() throws IOException
+    {
+        DatagramChannel server = DatagramChannel.open();
+        servers.add(server);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.configureBlocking(false);
+        return server;
+    }
+
+    private static InetSocketAddress addressOf(DatagramChannel server) throws IOException
+    {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    private static SocketAddress clientAddress(IUdpMultiplexer.Registration registration)
+    {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), registration.getSocket().getLocalPort());
+    }
+
+    private static SocketAddress receive(DatagramChannel server, ByteBuffer buffer) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline)
+        {
+            SocketAddress from = server.receive(buffer);
+            if (from != null)
+                return from;
+            Thread.sleep(5);
+        }
+        fail("Server received nothing");
+        return null;
+    }
+
+    private static void respondToDiscovery(DatagramChannel server, SocketAddress client, int ssrc, int port) throws IOException
+    {
+        ByteBuffer response = ByteBuffer.allocate(UdpDiscovery.DISCOVERY_PACKET_LENGTH);
+        response.putInt(ssrc);
+        response.put("127.0.0.1".getBytes());
+        //The port is the only little-endian value of the response.
+        response.put(UdpDiscovery.DISCOVERY_PACKET_LENGTH - 2, (byte) port);
+        response.put(UdpDiscovery.DISCOVERY_PACKET_LENGTH - 1, (byte) (port >> 8));
+        response.clear();
+        server.send(response, client);
+    }
+
+    private static void sendRtp(DatagramChannel server, SocketAddress client, int ssrc) throws IOException
+    {
+        ByteBuffer packet = ByteBuffer.allocate(40);
+        packet.put(0, (byte) 0x80);
+        packet.put(1, (byte) 0x78);
+        packet.putInt(8, ssrc);
+        server.send(packet, client);
+    }
+
+    private static BlockingQueue<Integer> receiveInto(IUdpMultiplexer.Registration registration, int ssrc)
+    {
+        BlockingQueue<Integer> received = new LinkedBlockingQueue<>();
+        registration.setReceiver(new IUdpMultiplexer.Receiver()
+        {
+            @Override
+            public void receive(DatagramPacket packet)
+            {
+                received.add(AudioPacket.getSSRC(packet));
+            }
+
+            @Override
+            public boolean accepts(int other)
+            {
+                return other == ssrc;
+            }
+        });
+        return received;
+    }
+}
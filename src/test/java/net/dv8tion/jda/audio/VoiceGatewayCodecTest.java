@@ -0,0 +1,95 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VoiceGatewayCodecTest
+{
+    @Test
+    public void scansOp()
+    {
+        assertEquals(6, VoiceGatewayCodec.scanOp("{\"op\":6,\"d\":1501184119561}"));
+        assertEquals(8, VoiceGatewayCodec.scanOp("{ \"d\" : {\"heartbeat_interval\":41250}, \"op\" : 8 }"));
+        assertEquals(0, VoiceGatewayCodec.scanOp("{\"op\":0}"));
+    }
+
+    @Test
+    public void scansOnlyTheOutermostOp()
+    {
+        //Nested keys and string values equal to the key are skipped.
+        assertEquals(2, VoiceGatewayCodec.scanOp("{\"d\":{\"op\":9,\"x\":\"op\"},\"s\":\"\\\"op\\\":5\",\"op\":2}"));
+        assertEquals(4, VoiceGatewayCodec.scanOp("{\"list\":[{\"op\":1}],\"op\":4}"));
+    }
+
+    @Test
+    public void reportsMissingOp()
+    {
+        assertEquals(VoiceGatewayCodec.NO_OP, VoiceGatewayCodec.scanOp("{\"d\":{\"op\":9}}"));
+        assertEquals(VoiceGatewayCodec.NO_OP, VoiceGatewayCodec.scanOp("{\"op\":null}"));
+        assertEquals(VoiceGatewayCodec.NO_OP, VoiceGatewayCodec.scanOp("{\"op\":-1}"));
+        assertEquals(VoiceGatewayCodec.NO_OP, VoiceGatewayCodec.scanOp("{\"op\":\"3\"}"));
+        assertEquals(VoiceGatewayCodec.NO_OP, VoiceGatewayCodec.scanOp("{\"unterminated"));
+        assertEquals(VoiceGatewayCodec.NO_OP, VoiceGatewayCodec.scanOp(""));
+    }
+
+    @Test
+    public void scansLongPayload()
+    {
+        assertEquals(1501184119561L, VoiceGatewayCodec.scanLongPayload("{\"op\":6,\"d\":1501184119561}"));
+        assertEquals(42, VoiceGatewayCodec.scanLongPayload("{\"d\": 42 ,\"op\":3}"));
+    }
+
+    @Test
+    public void reportsPayloadsThatAreNoNumber()
+    {
+        assertEquals(-1, VoiceGatewayCodec.scanLongPayload("{\"op\":6,\"d\":null}"));
+        assertEquals(-1, VoiceGatewayCodec.scanLongPayload("{\"op\":6,\"d\":{\"nonce\":5}}"));
+        assertEquals(-1, VoiceGatewayCodec.scanLongPayload("{\"op\":6}"));
+    }
+
+    @Test
+    public void encodesMessages()
+    {
+        assertEquals("{\"op\":0,\"d\":{\"server_id\":\"1\",\"user_id\":\"2\",\"session_id\":\"session\",\"token\":\"token\"}}",
+                VoiceGatewayCodec.identify("1", "2", "session", "token"));
+        assertEquals("{\"op\":7,\"d\":{\"server_id\":\"1\",\"session_id\":\"session\",\"token\":\"token\"}}",
+                VoiceGatewayCodec.resume("1", "session", "token"));
+        assertEquals("{\"op\":4,\"d\":{\"guild_id\":\"1\",\"channel_id\":null,\"self_mute\":true,\"self_deaf\":false}}",
+                VoiceGatewayCodec.voiceStateUpdate("1", null, true, false));
+        assertEquals("{\"op\":3,\"d\":123}", VoiceGatewayCodec.heartbeat(123));
+    }
+
+    @Test
+    public void escapesStrings()
+    {
+        assertEquals("{\"op\":7,\"d\":{\"server_id\":\"1\",\"session_id\":\"se\\\"ss\",\"token\":\"to\\\\ken\\u000a\"}}",
+                VoiceGatewayCodec.resume("1", "se\"ss", "to\\ken\n"));
+    }
+
+    @Test
+    public void encodedMessagesScanBack()
+    {
+        assertEquals(3, VoiceGatewayCodec.scanOp(VoiceGatewayCodec.heartbeat(123)));
+        assertEquals(123, VoiceGatewayCodec.scanLongPayload(VoiceGatewayCodec.heartbeat(123)));
+        assertEquals(5, VoiceGatewayCodec.scanOp(VoiceGatewayCodec.speaking(true)));
+        assertEquals(1, VoiceGatewayCodec.scanOp(VoiceGatewayCodec.selectProtocol("1.2.3.4", 5000)));
+    }
+}
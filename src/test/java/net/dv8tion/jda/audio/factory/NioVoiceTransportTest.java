@@ -0,0 +1,145 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio.factory;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class NioVoiceTransportTest
+{
+    //The example handshake of RFC 6455, section 1.3
+    private static final String SAMPLE_KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+    private static final String SAMPLE_ACCEPT = "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=";
+
+    @Test
+    public void acceptMatchesRfcSample()
+    {
+        assertEquals(SAMPLE_ACCEPT, NioVoiceTransport.accept(SAMPLE_KEY));
+    }
+
+    @Test
+    public void frameIsMaskedAndRoundTrips() throws IOException
+    {
+        for (int length : new int[] {0, 1, 125, 126, 0xFFFF, 0x10000})
+        {
+            byte[] payload = new byte[length];
+            for (int i = 0; i < length; i++)
+                payload[i] = (byte) i;
+
+            ByteBuffer frame = NioVoiceTransport.frame(0x1, payload);
+            assertEquals(0x81, frame.get(0) & 0xFF);
+            assertTrue("Client frames have to be masked", (frame.get(1) & 0x80) != 0);
+            int header = length < 126 ? 6 : length <= 0xFFFF ? 8 : 14;
+            assertEquals(header + length, frame.remaining());
+
+            NioVoiceTransport.Frame decoded = NioVoiceTransport.decodeFrame(frame);
+            assertNotNull(decoded);
+            assertTrue(decoded.fin);
+            assertEquals(0x1, decoded.opcode);
+            assertArrayEquals(payload, decoded.payload);
+            assertFalse(frame.hasRemaining());
+        }
+    }
+
+    @Test
+    public void decodesUnmaskedServerFrames() throws IOException
+    {
+        ByteBuffer in = ByteBuffer.wrap(new byte[] {(byte) 0x81, 0x02, 'h', 'i', 0x00, 0x03, 'a', 'b', 'c'});
+
+        NioVoiceTransport.Frame first = NioVoiceTransport.decodeFrame(in);
+        assertTrue(first.fin);
+        assertEquals(0x1, first.opcode);
+        assertArrayEquals("hi".getBytes(StandardCharsets.US_ASCII), first.payload);
+
+        NioVoiceTransport.Frame second = NioVoiceTransport.decodeFrame(in);
+        assertFalse(second.fin);
+        assertEquals(0x0, second.opcode);
+        assertArrayEquals("abc".getBytes(StandardCharsets.US_ASCII), second.payload);
+        assertNull(NioVoiceTransport.decodeFrame(in));
+    }
+
+    @Test
+    public void incompleteFramesAreNotConsumed() throws IOException
+    {
+        ByteBuffer complete = NioVoiceTransport.frame(0x1, new byte[300]);
+        for (int available = 0; available < complete.remaining(); available++)
+        {
+            ByteBuffer in = complete.duplicate();
+            in.limit(available);
+            assertNull(NioVoiceTransport.decodeFrame(in));
+            assertEquals(0, in.position());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOversizedFrames() throws IOException
+    {
+        ByteBuffer in = ByteBuffer.allocate(10);
+        in.put((byte) 0x81).put((byte) 127).putLong(Long.MAX_VALUE).flip();
+        NioVoiceTransport.decodeFrame(in);
+    }
+
+    @Test
+    public void parsesUpgradeResponseAndLeavesFramesInBuffer() throws IOException
+    {
+        String head = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "sec-websocket-accept: " + SAMPLE_ACCEPT + "\r\n\r\n";
+        ByteBuffer in = ByteBuffer.allocate(head.length() + 3);
+        in.put(head.getBytes(StandardCharsets.ISO_8859_1)).put(new byte[] {(byte) 0x81, 0x01, 'x'}).flip();
+
+        assertTrue(NioVoiceTransport.parseUpgradeResponse(in, SAMPLE_ACCEPT));
+        assertEquals(3, in.remaining());
+        assertEquals(0x81, in.get(in.position()) & 0xFF);
+    }
+
+    @Test
+    public void incompleteUpgradeResponseIsNotConsumed() throws IOException
+    {
+        ByteBuffer in = ByteBuffer.wrap("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        assertFalse(NioVoiceTransport.parseUpgradeResponse(in, SAMPLE_ACCEPT));
+        assertEquals(0, in.position());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsRefusedUpgrade() throws IOException
+    {
+        ByteBuffer in = ByteBuffer.wrap("HTTP/1.1 403 Forbidden\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        NioVoiceTransport.parseUpgradeResponse(in, SAMPLE_ACCEPT);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsWrongAccept() throws IOException
+    {
+        String head = "HTTP/1.1 101 Switching Protocols\r\nSec-WebSocket-Accept: bm90IHRoZSByaWdodCBvbmU=\r\n\r\n";
+        NioVoiceTransport.parseUpgradeResponse(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)), SAMPLE_ACCEPT);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMissingAccept() throws IOException
+    {
+        String head = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n\r\n";
+        NioVoiceTransport.parseUpgradeResponse(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)), SAMPLE_ACCEPT);
+    }
+}
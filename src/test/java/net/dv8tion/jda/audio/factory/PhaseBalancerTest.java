@@ -0,0 +1,124 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.audio.factory;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PhaseBalancerTest
+{
+    @Test
+    public void spreadsJoiningSenders()
+    {
+        PhaseBalancer balancer = new PhaseBalancer(4);
+        List<PhaseBalancer.Phase> phases = join(balancer, 8);
+        assertArrayEquals(new int[] {2, 2, 2, 2}, counts(balancer, phases));
+    }
+
+    @Test
+    public void rebalancesWhenSendersLeave()
+    {
+        PhaseBalancer balancer = new PhaseBalancer(4);
+        List<PhaseBalancer.Phase> phases = join(balancer, 8);
+
+        //Empty two slots completely, the senders of the others have to move over.
+        List<PhaseBalancer.Phase> leaving = new ArrayList<>();
+        for (PhaseBalancer.Phase phase : phases)
+        {
+            if (phase.getSlot() < 2)
+                leaving.add(phase);
+        }
+        for (PhaseBalancer.Phase phase : leaving)
+        {
+            phase.leave();
+            phases.remove(phase);
+        }
+        assertEquals(4, phases.size());
+        assertArrayEquals(new int[] {1, 1, 1, 1}, counts(balancer, phases));
+    }
+
+    @Test
+    public void keepsSlotsWithinOneOfEachOther()
+    {
+        PhaseBalancer balancer = new PhaseBalancer(20);
+        List<PhaseBalancer.Phase> phases = join(balancer, 57);
+        for (int i = 0; i < 30; i++)
+        {
+            //Leave from the front, so the same few slots keep losing senders.
+            phases.remove(0).leave();
+            int[] counts = counts(balancer, phases);
+            int min = Integer.MAX_VALUE, max = 0;
+            for (int count : counts)
+            {
+                min = Math.min(min, count);
+                max = Math.max(max, count);
+            }
+            assertTrue("Slots differ by " + (max - min), max - min <= 1);
+        }
+    }
+
+    @Test
+    public void leavingTwiceChangesNothing()
+    {
+        PhaseBalancer balancer = new PhaseBalancer(2);
+        List<PhaseBalancer.Phase> phases = join(balancer, 3);
+        PhaseBalancer.Phase leaving = phases.remove(0);
+        leaving.leave();
+        int[] before = counts(balancer, phases);
+        leaving.leave();
+        assertArrayEquals(before, counts(balancer, phases));
+    }
+
+    @Test
+    public void offsetsDivideTheFrame()
+    {
+        PhaseBalancer balancer = new PhaseBalancer(20);
+        List<PhaseBalancer.Phase> phases = join(balancer, 20);
+        for (PhaseBalancer.Phase phase : phases)
+        {
+            assertEquals(phase.getSlot(), phase.getOffset(20));
+            assertEquals(phase.getSlot() * 1000000L, phase.getOffset(20000000L));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroSlots()
+    {
+        new PhaseBalancer(0);
+    }
+
+    private static List<PhaseBalancer.Phase> join(PhaseBalancer balancer, int count)
+    {
+        List<PhaseBalancer.Phase> phases = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            phases.add(balancer.join());
+        return phases;
+    }
+
+    private static int[] counts(PhaseBalancer balancer, List<PhaseBalancer.Phase> phases)
+    {
+        int[] counts = new int[balancer.getSlotCount()];
+        for (PhaseBalancer.Phase phase : phases)
+            counts[phase.getSlot()]++;
+        return counts;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HashedWheelTimerTest
+{
+    private static final long TIMEOUT = 2000;
+
+    private HashedWheelTimer timer;
+
+    @After
+    public void tearDown()
+    {
+        if (timer != null)
+            timer.shutdown();
+    }
+
+    @Test
+    public void runsNoEarlierThanItsDelay() throws InterruptedException
+    {
+        timer = new HashedWheelTimer("Test Timer", 5, TimeUnit.MILLISECONDS, 8);
+        CountDownLatch ran = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timer.schedule(ran::countDown, 30, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 30);
+    }
+
+    @Test
+    public void waitsForAdditionalRounds() throws InterruptedException
+    {
+        //4 buckets of 2ms, so the task passes its bucket several times before it is due.
+        timer = new HashedWheelTimer("Test Timer", 2, TimeUnit.MILLISECONDS, 3);
+        CountDownLatch ran = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timer.schedule(ran::countDown, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+    }
+
+    @Test
+    public void runsInDeadlineOrder() throws InterruptedException
+    {
+        timer = new HashedWheelTimer("Test Timer", 2, TimeUnit.MILLISECONDS, 4);
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch ran = new CountDownLatch(3);
+        timer.schedule(() -> { order.add("late"); ran.countDown(); }, 60, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> { order.add("early"); ran.countDown(); }, 10, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> { order.add("middle"); ran.countDown(); }, 30, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals("[early, middle, late]", order.toString());
+    }
+
+    @Test
+    public void repeatsAtFixedRate() throws InterruptedException
+    {
+        timer = new HashedWheelTimer("Test Timer", 2, TimeUnit.MILLISECONDS, 8);
+        CountDownLatch ran = new CountDownLatch(5);
+        long start = System.nanoTime();
+        timer.scheduleAtFixedRate(ran::countDown, 0, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 40);
+    }
+
+    @Test
+    public void cancelledTasksDontRun() throws InterruptedException
+    {
+        timer = new HashedWheelTimer("Test Timer", 2, TimeUnit.MILLISECONDS, 8);
+        AtomicInteger runs = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = timer.schedule(runs::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+        timeout.cancel();
+        assertTrue(timeout.isCancelled());
+
+        //A later task proves the timer got past the cancelled one.
+        CountDownLatch later = new CountDownLatch(1);
+        timer.schedule(later::countDown, 60, TimeUnit.MILLISECONDS);
+        assertTrue(later.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void cancellingStopsRepetition() throws InterruptedException
+    {
+        timer = new HashedWheelTimer("Test Timer", 2, TimeUnit.MILLISECONDS, 8);
+        AtomicInteger runs = new AtomicInteger();
+        HashedWheelTimer.Timeout[] timeout = new HashedWheelTimer.Timeout[1];
+        timeout[0] = timer.scheduleAtFixedRate(() ->
+        {
+            if (runs.incrementAndGet() == 3)
+                timeout[0].cancel();
+        }, 0, 5, TimeUnit.MILLISECONDS);
+
+        CountDownLatch later = new CountDownLatch(1);
+        timer.schedule(later::countDown, 80, TimeUnit.MILLISECONDS);
+        assertTrue(later.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(3, runs.get());
+    }
+
+    @Test
+    public void failingTasksDontStopTheTimer() throws InterruptedException
+    {
+        timer = new HashedWheelTimer("Test Timer", 2, TimeUnit.MILLISECONDS, 8);
+        timer.schedule(() -> { throw new IllegalStateException("Expected by the test"); }, 5, TimeUnit.MILLISECONDS);
+        CountDownLatch ran = new CountDownLatch(1);
+        timer.schedule(ran::countDown, 20, TimeUnit.MILLISECONDS);
+        assertTrue(ran.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroPeriod()
+    {
+        new HashedWheelTimer("Test Timer", 2, TimeUnit.MILLISECONDS, 8).scheduleAtFixedRate(() -> {}, 0, 0, TimeUnit.MILLISECONDS);
+    }
+}
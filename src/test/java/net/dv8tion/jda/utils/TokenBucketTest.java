@@ -0,0 +1,97 @@
+/*
+ *     Copyright 2015-2017 Austin Keener & Michael Ritter
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.dv8tion.jda.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest
+{
+    private long now = 1000;
+
+    @Test
+    public void startsFull()
+    {
+        TokenBucket bucket = new TokenBucket(3, 1, 100, () -> now);
+        assertEquals(3, bucket.getAvailableTokens());
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void refillsAtItsRate()
+    {
+        TokenBucket bucket = new TokenBucket(2, 1, 100, () -> now);
+        bucket.tryAcquire();
+        bucket.tryAcquire();
+
+        now += 50;
+        assertFalse(bucket.tryAcquire());
+        assertEquals(50, bucket.getDelay());
+
+        now += 50;
+        assertEquals(0, bucket.getDelay());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void neverExceedsCapacity()
+    {
+        TokenBucket bucket = new TokenBucket(2, 1, 100, () -> now);
+        now += 10000;
+        assertEquals(2, bucket.getAvailableTokens());
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void clockGoingBackwardsAddsNothing()
+    {
+        TokenBucket bucket = new TokenBucket(1, 1, 100, () -> now);
+        bucket.tryAcquire();
+        now -= 500;
+        assertFalse(bucket.tryAcquire());
+        now += 600;
+        assertTrue(bucket.tryAcquire());
+    }
+
+    @Test
+    public void boundsAcquisitionsOverAnInterval()
+    {
+        //Over t milliseconds, at most capacity + t * rate acquisitions succeed.
+        TokenBucket bucket = new TokenBucket(5, 2, 60, () -> now);
+        int acquired = 0;
+        for (int i = 0; i <= 600; i++, now++)
+        {
+            while (bucket.tryAcquire())
+                acquired++;
+        }
+        assertEquals(5 + 600 * 2 / 60, acquired);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroRate()
+    {
+        new TokenBucket(1, 0, 100);
+    }
+}